@@ -1,43 +1,363 @@
 package com.algotrading.connectors.common;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Стакан котировок.
+ * <p>
+ * Уровни хранятся в отсортированных параллельных массивах примитивов (цена, количество):
+ * котировки на покупку -- по убыванию цены, котировки на продажу -- по возрастанию цены,
+ * поэтому лучшие котировки всегда находятся на уровне 0. Экземпляр можно переиспользовать,
+ * вызывая {@link #clear()}; внутренние массивы при этом не пересоздаются.
+ * <p>
+ * Бывшие публичные поля {@code bids} и {@code offers} заменены устаревшими методами {@link #bids()}
+ * и {@link #offers()}, возвращающими копии уровней.
+ * <p>
+ * Класс не является потокобезопасным.
  */
 public class QuoteLevel2 {
-    public final List<QuoteEntry> bids;
-    public final List<QuoteEntry> offers;
 
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private double[] bidPrices;
+    private int[] bidQuantities;
+    private int bidDepth;
+    private double[] offerPrices;
+    private int[] offerQuantities;
+    private int offerDepth;
+
+    /**
+     * Конструктор пустого стакана.
+     */
+    public QuoteLevel2() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Конструктор пустого стакана с заданной начальной ёмкостью каждой из сторон.
+     *
+     * @param capacity начальное количество уровней
+     */
+    public QuoteLevel2(final int capacity) {
+        bidPrices = new double[capacity];
+        bidQuantities = new int[capacity];
+        offerPrices = new double[capacity];
+        offerQuantities = new int[capacity];
+    }
+
+    /**
+     * Конструктор стакана по спискам котировок в произвольном порядке.
+     *
+     * @param bids   котировки на покупку
+     * @param offers котировки на продажу
+     */
     public QuoteLevel2(final List<QuoteEntry> bids, final List<QuoteEntry> offers) {
-        this.bids = bids;
-        this.offers = offers;
+        this(Math.max(Math.max(bids.size(), offers.size()), 1));
+        for (final QuoteEntry quoteEntry : bids) {
+            putBid(quoteEntry.price(), quoteEntry.quantity());
+        }
+        for (final QuoteEntry quoteEntry : offers) {
+            putOffer(quoteEntry.price(), quoteEntry.quantity());
+        }
+    }
+
+    /**
+     * @return количество уровней на покупку
+     */
+    public int bidDepth() {
+        return bidDepth;
+    }
+
+    /**
+     * @return количество уровней на продажу
+     */
+    public int offerDepth() {
+        return offerDepth;
+    }
+
+    /**
+     * @param level номер уровня, начиная с 0 (лучшая цена)
+     * @return цена на покупку на заданном уровне
+     */
+    public double bidPrice(final int level) {
+        checkLevel(level, bidDepth);
+        return bidPrices[level];
+    }
+
+    /**
+     * @param level номер уровня, начиная с 0 (лучшая цена)
+     * @return количество на покупку на заданном уровне
+     */
+    public int bidQuantity(final int level) {
+        checkLevel(level, bidDepth);
+        return bidQuantities[level];
+    }
+
+    /**
+     * @param level номер уровня, начиная с 0 (лучшая цена)
+     * @return цена на продажу на заданном уровне
+     */
+    public double offerPrice(final int level) {
+        checkLevel(level, offerDepth);
+        return offerPrices[level];
+    }
+
+    /**
+     * @param level номер уровня, начиная с 0 (лучшая цена)
+     * @return количество на продажу на заданном уровне
+     */
+    public int offerQuantity(final int level) {
+        checkLevel(level, offerDepth);
+        return offerQuantities[level];
+    }
+
+    /**
+     * @return лучшая цена на покупку или {@link Double#NaN}, если котировок на покупку нет
+     */
+    public double bestBidPrice() {
+        return (bidDepth == 0) ? Double.NaN : bidPrices[0];
     }
 
+    /**
+     * @return количество по лучшей цене на покупку или 0, если котировок на покупку нет
+     */
+    public int bestBidQuantity() {
+        return (bidDepth == 0) ? 0 : bidQuantities[0];
+    }
+
+    /**
+     * @return лучшая цена на продажу или {@link Double#NaN}, если котировок на продажу нет
+     */
+    public double bestOfferPrice() {
+        return (offerDepth == 0) ? Double.NaN : offerPrices[0];
+    }
+
+    /**
+     * @return количество по лучшей цене на продажу или 0, если котировок на продажу нет
+     */
+    public int bestOfferQuantity() {
+        return (offerDepth == 0) ? 0 : offerQuantities[0];
+    }
+
+    /**
+     * @return лучшая котировка на покупку или {@code null}, если котировок на покупку нет
+     */
     public QuoteEntry getBid() {
-        if (bids.isEmpty()) {
-            return null;
+        return (bidDepth == 0) ? null : new QuoteEntry(bidPrices[0], bidQuantities[0]);
+    }
+
+    /**
+     * @return лучшая котировка на продажу или {@code null}, если котировок на продажу нет
+     */
+    public QuoteEntry getOffer() {
+        return (offerDepth == 0) ? null : new QuoteEntry(offerPrices[0], offerQuantities[0]);
+    }
+
+    /**
+     * @return новый список котировок на покупку по убыванию цены
+     * @deprecated создаёт объекты на каждый уровень; используйте {@link #bidDepth()}, {@link #bidPrice(int)}
+     * и {@link #bidQuantity(int)}
+     */
+    @Deprecated
+    public List<QuoteEntry> bids() {
+        return entries(bidPrices, bidQuantities, bidDepth);
+    }
+
+    /**
+     * @return новый список котировок на продажу по возрастанию цены
+     * @deprecated создаёт объекты на каждый уровень; используйте {@link #offerDepth()}, {@link #offerPrice(int)}
+     * и {@link #offerQuantity(int)}
+     */
+    @Deprecated
+    public List<QuoteEntry> offers() {
+        return entries(offerPrices, offerQuantities, offerDepth);
+    }
+
+    private static List<QuoteEntry> entries(final double[] prices, final int[] quantities, final int depth) {
+        final List<QuoteEntry> entries = new ArrayList<>(depth);
+        for (int i = 0; i < depth; i++) {
+            entries.add(new QuoteEntry(prices[i], quantities[i]));
         }
-        QuoteEntry bid = bids.get(0);
-        for (final QuoteEntry quoteEntry : bids) {
-            if (bid.price() < quoteEntry.price()) {
-                bid = quoteEntry;
+        return entries;
+    }
+
+    /**
+     * Удалить все котировки.
+     */
+    public void clear() {
+        bidDepth = 0;
+        offerDepth = 0;
+    }
+
+    /**
+     * Установить количество на покупку по заданной цене.
+     *
+     * @param price    цена
+     * @param quantity количество; если 0, то уровень удаляется
+     */
+    public void putBid(final double price, final int quantity) {
+        final int i = indexOf(bidPrices, bidDepth, price, true);
+        if (i >= 0) {
+            if (quantity == 0) {
+                remove(bidPrices, bidQuantities, bidDepth--, i);
+            } else {
+                bidQuantities[i] = quantity;
+            }
+        } else if (quantity != 0) {
+            if (bidDepth == bidPrices.length) {
+                bidPrices = grow(bidPrices);
+                bidQuantities = grow(bidQuantities);
             }
+            insert(bidPrices, bidQuantities, bidDepth++, -i - 1, price, quantity);
         }
-        return bid;
     }
 
-    public QuoteEntry getOffer() {
-        if (offers.isEmpty()) {
-            return null;
+    /**
+     * Установить количество на продажу по заданной цене.
+     *
+     * @param price    цена
+     * @param quantity количество; если 0, то уровень удаляется
+     */
+    public void putOffer(final double price, final int quantity) {
+        final int i = indexOf(offerPrices, offerDepth, price, false);
+        if (i >= 0) {
+            if (quantity == 0) {
+                remove(offerPrices, offerQuantities, offerDepth--, i);
+            } else {
+                offerQuantities[i] = quantity;
+            }
+        } else if (quantity != 0) {
+            if (offerDepth == offerPrices.length) {
+                offerPrices = grow(offerPrices);
+                offerQuantities = grow(offerQuantities);
+            }
+            insert(offerPrices, offerQuantities, offerDepth++, -i - 1, price, quantity);
         }
-        QuoteEntry offer = offers.get(0);
-        for (final QuoteEntry quoteEntry : offers) {
-            if (offer.price() > quoteEntry.price()) {
-                offer = quoteEntry;
+    }
+
+    /**
+     * Скопировать котировки из другого стакана в этот без создания новых объектов
+     * (если ёмкости достаточно).
+     *
+     * @param other стакан-источник
+     */
+    public void copyFrom(final QuoteLevel2 other) {
+        if (bidPrices.length < other.bidDepth) {
+            bidPrices = new double[other.bidPrices.length];
+            bidQuantities = new int[other.bidPrices.length];
+        }
+        if (offerPrices.length < other.offerDepth) {
+            offerPrices = new double[other.offerPrices.length];
+            offerQuantities = new int[other.offerPrices.length];
+        }
+        System.arraycopy(other.bidPrices, 0, bidPrices, 0, other.bidDepth);
+        System.arraycopy(other.bidQuantities, 0, bidQuantities, 0, other.bidDepth);
+        System.arraycopy(other.offerPrices, 0, offerPrices, 0, other.offerDepth);
+        System.arraycopy(other.offerQuantities, 0, offerQuantities, 0, other.offerDepth);
+        bidDepth = other.bidDepth;
+        offerDepth = other.offerDepth;
+    }
+
+    /**
+     * Обновить стакан до нового состояния и вычислить изменённые уровни.
+     * Обе стороны стаканов отсортированы, поэтому сравнение выполняется за один проход.
+     *
+     * @param newQuoteLevel2 новое состояние стакана
+     * @param changes        переиспользуемый объект, в который записываются изменённые уровни
+     */
+    public void update(final QuoteLevel2 newQuoteLevel2, final QuoteLevel2Changes changes) {
+        changes.clear();
+        diff(true, bidPrices, bidQuantities, bidDepth,
+                newQuoteLevel2.bidPrices, newQuoteLevel2.bidQuantities, newQuoteLevel2.bidDepth, changes);
+        diff(false, offerPrices, offerQuantities, offerDepth,
+                newQuoteLevel2.offerPrices, newQuoteLevel2.offerQuantities, newQuoteLevel2.offerDepth, changes);
+        copyFrom(newQuoteLevel2);
+    }
+
+    private static void diff(final boolean bid,
+                             final double[] oldPrices, final int[] oldQuantities, final int oldDepth,
+                             final double[] newPrices, final int[] newQuantities, final int newDepth,
+                             final QuoteLevel2Changes changes) {
+        int i = 0;
+        int j = 0;
+        while (i < oldDepth || j < newDepth) {
+            if (j == newDepth || i < oldDepth && (bid ? oldPrices[i] > newPrices[j] : oldPrices[i] < newPrices[j])) {
+                changes.add(bid, oldPrices[i], 0);
+                i++;
+            } else if (i == oldDepth || oldPrices[i] != newPrices[j]) {
+                changes.add(bid, newPrices[j], newQuantities[j]);
+                j++;
+            } else {
+                if (oldQuantities[i] != newQuantities[j]) {
+                    changes.add(bid, newPrices[j], newQuantities[j]);
+                }
+                i++;
+                j++;
             }
         }
-        return offer;
+    }
+
+    /**
+     * Найти уровень с заданной ценой. Сначала проверяется последний уровень, поэтому заполнение стакана
+     * от лучшей цены к худшей выполняется за O(1) на уровень.
+     *
+     * @return индекс уровня или {@code -(точка вставки) - 1}, если уровня с такой ценой нет
+     */
+    private static int indexOf(final double[] prices, final int depth, final double price, final boolean descending) {
+        if (depth == 0) {
+            return -1;
+        }
+        final double last = prices[depth - 1];
+        if (last == price) {
+            return depth - 1;
+        }
+        if (descending ? price < last : price > last) {
+            return -depth - 1;
+        }
+        int lo = 0;
+        int hi = depth - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final double p = prices[mid];
+            if (p == price) {
+                return mid;
+            }
+            if (descending ? p > price : p < price) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -lo - 1;
+    }
+
+    private static void insert(final double[] prices, final int[] quantities, final int depth,
+                               final int i, final double price, final int quantity) {
+        System.arraycopy(prices, i, prices, i + 1, depth - i);
+        System.arraycopy(quantities, i, quantities, i + 1, depth - i);
+        prices[i] = price;
+        quantities[i] = quantity;
+    }
+
+    private static void remove(final double[] prices, final int[] quantities, final int depth, final int i) {
+        System.arraycopy(prices, i + 1, prices, i, depth - i - 1);
+        System.arraycopy(quantities, i + 1, quantities, i, depth - i - 1);
+    }
+
+    private static double[] grow(final double[] array) {
+        return Arrays.copyOf(array, Math.max(DEFAULT_CAPACITY, array.length * 2));
+    }
+
+    private static int[] grow(final int[] array) {
+        return Arrays.copyOf(array, Math.max(DEFAULT_CAPACITY, array.length * 2));
+    }
+
+    private static void checkLevel(final int level, final int depth) {
+        if (level < 0 || level >= depth) {
+            throw new IndexOutOfBoundsException("level=" + level + ", depth=" + depth);
+        }
     }
 
     @Override
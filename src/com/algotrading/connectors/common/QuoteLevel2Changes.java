@@ -0,0 +1,96 @@
+package com.algotrading.connectors.common;
+
+import java.util.Arrays;
+
+/**
+ * Изменённые уровни стакана котировок между двумя его состояниями.
+ * <p>
+ * Каждое изменение -- это сторона, цена и новое количество; количество 0 означает, что уровень удалён.
+ * Экземпляр переиспользуется: перед заполнением вызывается {@link #clear()}, внутренние массивы
+ * при этом не пересоздаются.
+ */
+public class QuoteLevel2Changes {
+
+    private boolean[] bids = new boolean[16];
+    private double[] prices = new double[16];
+    private int[] quantities = new int[16];
+    private int size;
+
+    /**
+     * @return количество изменённых уровней
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i номер изменения
+     * @return {@code true}, если изменён уровень на покупку, {@code false} -- на продажу
+     */
+    public boolean isBid(final int i) {
+        checkIndex(i);
+        return bids[i];
+    }
+
+    /**
+     * @param i номер изменения
+     * @return цена изменённого уровня
+     */
+    public double price(final int i) {
+        checkIndex(i);
+        return prices[i];
+    }
+
+    /**
+     * @param i номер изменения
+     * @return новое количество на уровне или 0, если уровень удалён
+     */
+    public int quantity(final int i) {
+        checkIndex(i);
+        return quantities[i];
+    }
+
+    /**
+     * Удалить все изменения.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Добавить изменение.
+     *
+     * @param bid      {@code true} для уровня на покупку, {@code false} -- на продажу
+     * @param price    цена
+     * @param quantity новое количество или 0, если уровень удалён
+     */
+    public void add(final boolean bid, final double price, final int quantity) {
+        if (size == prices.length) {
+            bids = Arrays.copyOf(bids, size * 2);
+            prices = Arrays.copyOf(prices, size * 2);
+            quantities = Arrays.copyOf(quantities, size * 2);
+        }
+        bids[size] = bid;
+        prices[size] = price;
+        quantities[size] = quantity;
+        size++;
+    }
+
+    private void checkIndex(final int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("i=" + i + ", size=" + size);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("QuoteLevel2Changes{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(bids[i] ? "bid " : "offer ").append(quantities[i]).append('@').append(prices[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
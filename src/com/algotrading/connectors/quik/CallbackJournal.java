@@ -0,0 +1,621 @@
+package com.algotrading.connectors.quik;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Журнал колбэков терминала QUIK в отображаемых в память файлах.
+ * <p>
+ * Каждый колбэк записывается как запись: длина записи, длина имени колбэка, момент получения
+ * (System.currentTimeMillis()), имя колбэка и json-представление колбэка в кодировке UTF-8.
+ * Записи выровнены на 8 байтов; длина записи публикуется последней, поэтому журнал можно читать
+ * курсором {@link Cursor} одновременно с записью.
+ * <p>
+ * Журнал разбит на сегменты фиксированного размера с именами вида {@code name-yyyymmdd-0001.journal},
+ * где yyyymmdd -- торговая дата по календарю {@link QuikCalendar}. Следующий сегмент той же даты
+ * подготавливается заранее в фоновом потоке, поэтому запись не блокирует поток колбэков. Неиспользованный
+ * подготовленный сегмент удаляется при смене торговой даты и закрытии журнала, а если удалить его
+ * не удалось -- используется при следующем открытии журнала за ту же дату.
+ * <p>
+ * Json-объекты и массивы ({@link Map} и {@link List}) со строковыми ключами, строками, числами
+ * {@link Long}, {@link Integer}, {@link Double} и логическими значениями записываются без создания
+ * объектов на каждое событие; значения других типов записываются через {@code toString()}.
+ * Запись выполняется одним потоком.
+ */
+public class CallbackJournal implements Closeable {
+
+    private static final VarHandle INT_HANDLE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int HEADER_SIZE = 16;
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SUFFIX = ".journal";
+
+    private final Path directory;
+    private final String name;
+    private final QuikCalendar quikCalendar;
+    private final int segmentSize;
+    private final ExecutorService executor;
+    private final StringBuilder sb = new StringBuilder(4096);
+    private final BiConsumer<Object, Object> entryWriter = this::appendEntry;
+    private boolean isFirstEntry;
+
+    private int tradingDate;
+    private long tradingDateEnd;
+    private int segmentNumber;
+    private MappedByteBuffer buffer;
+    private int position;
+    private Future<MappedByteBuffer> nextBuffer;
+    private Path nextBufferPath;
+    private long dropped;
+
+    /**
+     * Конструктор.
+     *
+     * @param directory    каталог для файлов журнала
+     * @param name         префикс имён файлов журнала
+     * @param quikCalendar календарь для разбиения журнала по торговым датам
+     * @param segmentSize  размер сегмента в байтах
+     */
+    public CallbackJournal(final Path directory, final String name, final QuikCalendar quikCalendar, final int segmentSize) {
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Illegal segmentSize: " + segmentSize);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.quikCalendar = quikCalendar;
+        this.segmentSize = segmentSize & ~7;
+        executor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "CallbackJournal-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Files.createDirectories(directory);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        openTradingDate(System.currentTimeMillis());
+    }
+
+    /**
+     * @return количество колбэков, не записанных из-за того, что они не помещаются в сегмент
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Записать колбэк в журнал.
+     *
+     * @param callback   имя колбэка
+     * @param jsonObject json-представление колбэка
+     * @return {@code true}, если колбэк записан
+     */
+    public boolean append(final String callback, final Map<?, ?> jsonObject) {
+        final long time = System.currentTimeMillis();
+        if (time >= tradingDateEnd) {
+            finishSegment(false);
+            openTradingDate(time);
+        }
+        sb.setLength(0);
+        appendJson(jsonObject);
+        final int nameLength = callback.length();
+        final int payloadLength = utf8Length(sb);
+        final int recordLength = HEADER_SIZE + nameLength + payloadLength;
+        final int alignedLength = (recordLength + 7) & ~7;
+        if (alignedLength + 8 > segmentSize) {
+            dropped++;
+            return false;
+        }
+        if (position + alignedLength + 8 > segmentSize) {
+            nextSegment();
+        }
+        final MappedByteBuffer b = buffer;
+        final int p = position;
+        b.putInt(p + 4, nameLength);
+        b.putLong(p + 8, time);
+        int i = p + HEADER_SIZE;
+        for (int j = 0; j < nameLength; j++) {
+            b.put(i++, (byte) callback.charAt(j));
+        }
+        putUtf8(b, i, sb);
+        position = p + alignedLength;
+        INT_HANDLE.setRelease(b, p, recordLength);
+        return true;
+    }
+
+    /**
+     * Завершить текущий сегмент и остановить фоновый поток подготовки сегментов.
+     * После закрытия журнал не используется.
+     */
+    @Override
+    public void close() {
+        finishSegment(true);
+        discardNextSegment();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10L, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void openTradingDate(final long time) {
+        tradingDate = quikCalendar.getTradingDate(time);
+        tradingDateEnd = quikCalendar.getTradingDateEnd(time);
+        discardNextSegment();
+        final int lastSegmentNumber = lastSegmentNumber(directory, name, tradingDate);
+        // Пустой последний сегмент (подготовленный, но не использованный) используется повторно
+        segmentNumber = (lastSegmentNumber > 0 && Cursor.firstInt(segmentPath(lastSegmentNumber)) == 0)
+                ? lastSegmentNumber : lastSegmentNumber + 1;
+        buffer = map(segmentPath(segmentNumber));
+        position = 0;
+        prepareNextSegment();
+    }
+
+    private void nextSegment() {
+        finishSegment(false);
+        try {
+            buffer = nextBuffer.get();
+        } catch (final ExecutionException e) {
+            throw new UncheckedIOException(new IOException(e.getCause()));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            buffer = map(segmentPath(segmentNumber + 1));
+        }
+        segmentNumber++;
+        position = 0;
+        prepareNextSegment();
+    }
+
+    /**
+     * Записать маркер конца сегмента и сбросить сегмент на диск: синхронно или в фоновом потоке,
+     * чтобы не блокировать поток колбэков.
+     */
+    private void finishSegment(final boolean sync) {
+        if (buffer != null) {
+            final MappedByteBuffer b = buffer;
+            INT_HANDLE.setRelease(b, position, END_OF_SEGMENT);
+            if (sync) {
+                b.force();
+            } else {
+                executor.execute(b::force);
+            }
+            buffer = null;
+        }
+    }
+
+    private void prepareNextSegment() {
+        final Path path = segmentPath(segmentNumber + 1);
+        nextBufferPath = path;
+        nextBuffer = executor.submit(() -> map(path));
+    }
+
+    /**
+     * Удалить подготовленный, но не использованный сегмент. Удаление выполняется в фоновом потоке после
+     * подготовки сегмента; если файл удалить не удалось (например, пока он отображён в память),
+     * он остаётся пустым и используется повторно.
+     */
+    private void discardNextSegment() {
+        if (nextBuffer == null) {
+            return;
+        }
+        final Path path = nextBufferPath;
+        nextBuffer = null;
+        nextBufferPath = null;
+        executor.execute(() -> {
+            try {
+                if (Cursor.firstInt(path) == 0) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (final IOException | UncheckedIOException ignored) {
+            }
+        });
+    }
+
+    private Path segmentPath(final int number) {
+        return directory.resolve(String.format("%s-%08d-%04d%s", name, tradingDate, number, SUFFIX));
+    }
+
+    private MappedByteBuffer map(final Path path) {
+        try (final FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer mappedByteBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            mappedByteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            return mappedByteBuffer;
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int lastSegmentNumber(final Path directory, final String name, final int tradingDate) {
+        int last = 0;
+        for (final Path path : segments(directory, name)) {
+            final String fileName = path.getFileName().toString();
+            final int date = Integer.parseInt(fileName.substring(name.length() + 1, name.length() + 9));
+            if (date == tradingDate) {
+                last = Math.max(last, Integer.parseInt(fileName.substring(name.length() + 10, fileName.length() - SUFFIX.length())));
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return файлы сегментов журнала, упорядоченные по торговой дате и номеру сегмента
+     */
+    static List<Path> segments(final Path directory, final String name) {
+        final String prefix = name + "-";
+        try (final Stream<Path> stream = Files.list(directory)) {
+            return new ArrayList<>(stream
+                    .filter(path -> {
+                        final String fileName = path.getFileName().toString();
+                        return fileName.startsWith(prefix) && fileName.endsWith(SUFFIX)
+                               && fileName.length() == prefix.length() + 8 + 1 + 4 + SUFFIX.length();
+                    })
+                    .sorted()
+                    .toList());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void appendJson(final Object o) {
+        if (o == null) {
+            sb.append("null");
+        } else if (o instanceof String s) {
+            appendString(sb, s);
+        } else if (o instanceof Double d) {
+            final double value = d;
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                sb.append("null");
+            } else {
+                sb.append(value);
+            }
+        } else if (o instanceof Long l) {
+            sb.append(l.longValue());
+        } else if (o instanceof Integer i) {
+            sb.append(i.intValue());
+        } else if (o instanceof Boolean b) {
+            sb.append(b.booleanValue());
+        } else if (o instanceof Map<?, ?> map) {
+            // Map.forEach обходит записи без создания итератора
+            final boolean isFirst = isFirstEntry;
+            isFirstEntry = true;
+            sb.append('{');
+            map.forEach(entryWriter);
+            sb.append('}');
+            isFirstEntry = isFirst;
+        } else if (o instanceof List<?> list) {
+            sb.append('[');
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendJson(list.get(i));
+            }
+            sb.append(']');
+        } else if (o instanceof Number) {
+            sb.append(o);
+        } else {
+            appendString(sb, o.toString());
+        }
+    }
+
+    private void appendEntry(final Object key, final Object value) {
+        if (!isFirstEntry) {
+            sb.append(',');
+        }
+        isFirstEntry = false;
+        appendString(sb, (key instanceof String s) ? s : String.valueOf(key));
+        sb.append(':');
+        appendJson(value);
+    }
+
+    private static void appendString(final StringBuilder sb, final String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                case '\b' -> sb.append("\\b");
+                case '\f' -> sb.append("\\f");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static int utf8Length(final CharSequence s) {
+        final int n = s.length();
+        int length = n;
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    length += 1;
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 2;
+                    i++;
+                } else {
+                    length += 2;
+                }
+            }
+        }
+        return length;
+    }
+
+    private static void putUtf8(final MappedByteBuffer b, int p, final CharSequence s) {
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                b.put(p++, (byte) c);
+            } else if (c < 0x800) {
+                b.put(p++, (byte) (0xC0 | (c >> 6)));
+                b.put(p++, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                b.put(p++, (byte) (0xF0 | (cp >> 18)));
+                b.put(p++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                b.put(p++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                b.put(p++, (byte) (0x80 | (cp & 0x3F)));
+            } else {
+                b.put(p++, (byte) (0xE0 | (c >> 12)));
+                b.put(p++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                b.put(p++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Открыть курсор для чтения всех сегментов журнала.
+     *
+     * @param directory каталог с файлами журнала
+     * @param name      префикс имён файлов журнала
+     * @return курсор
+     */
+    public static Cursor cursor(final Path directory, final String name) {
+        return new Cursor(directory, name, 0);
+    }
+
+    /**
+     * Открыть курсор для чтения сегментов журнала начиная с заданной торговой даты.
+     *
+     * @param directory   каталог с файлами журнала
+     * @param name        префикс имён файлов журнала
+     * @param tradingDate торговая дата в формате yyyymmdd
+     * @return курсор
+     */
+    public static Cursor cursor(final Path directory, final String name, final int tradingDate) {
+        return new Cursor(directory, name, tradingDate);
+    }
+
+    /**
+     * Курсор для последовательного чтения записей журнала, в том числе одновременно с записью.
+     * Курсор используется одним потоком; данные текущей записи действительны до следующего вызова {@link #next()}.
+     * <p>
+     * Каталог журнала просматривается сразу после маркера конца сегмента, а пока новых записей нет --
+     * не чаще одного раза в {@link #SCAN_PERIOD_NANOS} наносекунд.
+     */
+    public static final class Cursor implements Closeable {
+        /**
+         * Минимальный период просмотра каталога журнала, пока новых записей нет.
+         */
+        public static final long SCAN_PERIOD_NANOS = 100_000_000L;
+
+        private final Path directory;
+        private final String name;
+        private final String fromFileName;
+        private Path segment;
+        private MappedByteBuffer buffer;
+        private int position;
+        private final List<String> callbacks = new ArrayList<>();
+        private String callback;
+        private long time;
+        private byte[] payload = new byte[4096];
+        private int payloadLength;
+        private long nextScanNanos = System.nanoTime();
+
+        private Cursor(final Path directory, final String name, final int tradingDate) {
+            this.directory = directory;
+            this.name = name;
+            fromFileName = String.format("%s-%08d-", name, tradingDate);
+        }
+
+        /**
+         * Перейти к следующей записи.
+         *
+         * @return {@code true}, если запись прочитана; {@code false}, если записей пока больше нет
+         */
+        public boolean next() {
+            while (true) {
+                if (buffer == null && !openNextSegment()) {
+                    return false;
+                }
+                final int length = (position + HEADER_SIZE <= buffer.capacity())
+                        ? (int) INT_HANDLE.getAcquire(buffer, position) : END_OF_SEGMENT;
+                if (length > 0) {
+                    read(length);
+                    return true;
+                }
+                if (length == 0 && (!isScanDue() || !hasNextSegment())) {
+                    // запись в сегмент ещё продолжается
+                    return false;
+                }
+                buffer = null;
+                nextScanNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * @return имя колбэка текущей записи
+         */
+        public String callback() {
+            return callback;
+        }
+
+        /**
+         * @return момент получения колбэка (System.currentTimeMillis())
+         */
+        public long time() {
+            return time;
+        }
+
+        /**
+         * @return переиспользуемый массив с json-представлением колбэка в кодировке UTF-8
+         */
+        public byte[] payload() {
+            return payload;
+        }
+
+        /**
+         * @return длина json-представления колбэка в массиве {@link #payload()}
+         */
+        public int payloadLength() {
+            return payloadLength;
+        }
+
+        /**
+         * @return json-представление колбэка в виде строки
+         */
+        public String payloadString() {
+            return new String(payload, 0, payloadLength, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            buffer = null;
+            segment = null;
+        }
+
+        private void read(final int length) {
+            final int nameLength = buffer.getInt(position + 4);
+            time = buffer.getLong(position + 8);
+            callback = callbackName(position + HEADER_SIZE, nameLength);
+            payloadLength = length - HEADER_SIZE - nameLength;
+            if (payload.length < payloadLength) {
+                payload = new byte[Math.max(payloadLength, payload.length * 2)];
+            }
+            buffer.get(position + HEADER_SIZE + nameLength, payload, 0, payloadLength);
+            position += (length + 7) & ~7;
+        }
+
+        private String callbackName(final int offset, final int length) {
+            for (final String s : callbacks) {
+                if (s.length() == length && regionEquals(s, offset)) {
+                    return s;
+                }
+            }
+            final byte[] bytes = new byte[length];
+            buffer.get(offset, bytes, 0, length);
+            final String s = new String(bytes, StandardCharsets.US_ASCII);
+            callbacks.add(s);
+            return s;
+        }
+
+        private boolean regionEquals(final String s, final int offset) {
+            for (int i = 0; i < s.length(); i++) {
+                if (buffer.get(offset + i) != (byte) s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Сегмент без маркера конца остаётся после аварийного завершения записи; переход к следующему
+         * сегменту возможен, только если в каком-либо из следующих сегментов уже есть записи.
+         */
+        private boolean hasNextSegment() {
+            final String current = segment.getFileName().toString();
+            for (final Path path : segments(directory, name)) {
+                if (path.getFileName().toString().compareTo(current) > 0 && firstInt(path) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static int firstInt(final Path path) {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final ByteBuffer b = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                return (channel.read(b, 0) == 4) ? b.getInt(0) : 0;
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private Path nextSegmentPath() {
+            for (final Path path : segments(directory, name)) {
+                final String fileName = path.getFileName().toString();
+                if (fileName.compareTo(fromFileName) >= 0
+                    && (segment == null || fileName.compareTo(segment.getFileName().toString()) > 0)) {
+                    return path;
+                }
+            }
+            return null;
+        }
+
+        private boolean isScanDue() {
+            final long now = System.nanoTime();
+            if (now - nextScanNanos < 0L) {
+                return false;
+            }
+            nextScanNanos = now + SCAN_PERIOD_NANOS;
+            return true;
+        }
+
+        private boolean openNextSegment() {
+            if (!isScanDue()) {
+                return false;
+            }
+            final Path path = nextSegmentPath();
+            if (path == null) {
+                return false;
+            }
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() < HEADER_SIZE) {
+                    // сегмент ещё создаётся
+                    return false;
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segment = path;
+            position = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.algotrading.connectors.quik;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Воспроизведение колбэков, записанных в журнал {@link CallbackJournal}, в слушатели терминала
+ * в исходном порядке: с максимальной скоростью, в реальном времени или с ускорением в N раз.
+ * <p>
+ * Используется для нагрузочного тестирования и отладки без подключения к терминалу QUIK.
+ * Колбэки передаются в слушатель в потоке, вызвавшем {@link #replay(double, long)}.
+ */
+public class CallbackReplay {
+
+    /**
+     * Скорость воспроизведения "как можно быстрее".
+     */
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+    /**
+     * Скорость воспроизведения в реальном времени.
+     */
+    public static final double REAL_TIME = 1.0;
+
+    private final CallbackJournal.Cursor cursor;
+    private final BiConsumer<String, JSONObject> target;
+    private final JSONParser jsonParser = new JSONParser();
+    private long events;
+    private long errors;
+    private long elapsedNanos;
+
+    /**
+     * Конструктор.
+     *
+     * @param cursor курсор журнала
+     * @param target получатель колбэков: имя колбэка и json-объект
+     */
+    public CallbackReplay(final CallbackJournal.Cursor cursor, final BiConsumer<String, JSONObject> target) {
+        this.cursor = cursor;
+        this.target = target;
+    }
+
+    /**
+     * @param cursor                 курсор журнала
+     * @param marketDataQuikListener слушатель, в который воспроизводятся колбэки
+     * @return объект для воспроизведения
+     */
+    public static CallbackReplay of(final CallbackJournal.Cursor cursor, final MarketDataQuikListener marketDataQuikListener) {
+        return new CallbackReplay(cursor, marketDataQuikListener::processCallback);
+    }
+
+    /**
+     * @param cursor              курсор журнала
+     * @param tradingQuikListener слушатель, в который воспроизводятся колбэки
+     * @return объект для воспроизведения
+     */
+    public static CallbackReplay of(final CallbackJournal.Cursor cursor, final TradingQuikListener tradingQuikListener) {
+        return new CallbackReplay(cursor, tradingQuikListener::processCallback);
+    }
+
+    /**
+     * Воспроизвести все записи журнала, доступные курсору.
+     *
+     * @param speed скорость воспроизведения: {@link #REAL_TIME}, N для ускорения в N раз
+     *              или {@link #AS_FAST_AS_POSSIBLE}
+     * @return количество воспроизведённых колбэков
+     */
+    public long replay(final double speed) {
+        return replay(speed, Long.MAX_VALUE);
+    }
+
+    /**
+     * Воспроизвести записи журнала, доступные курсору.
+     *
+     * @param speed     скорость воспроизведения: {@link #REAL_TIME}, N для ускорения в N раз
+     *                  или {@link #AS_FAST_AS_POSSIBLE}
+     * @param maxEvents максимальное количество колбэков
+     * @return количество воспроизведённых колбэков
+     */
+    public long replay(final double speed, final long maxEvents) {
+        if (!(speed > 0.0)) {
+            throw new IllegalArgumentException("Illegal speed: " + speed);
+        }
+        final boolean isPaced = speed != AS_FAST_AS_POSSIBLE;
+        final long startNanos = System.nanoTime();
+        long firstTime = Long.MIN_VALUE;
+        long count = 0;
+        while (count < maxEvents && !Thread.currentThread().isInterrupted() && cursor.next()) {
+            if (isPaced) {
+                if (firstTime == Long.MIN_VALUE) {
+                    firstTime = cursor.time();
+                }
+                final long dueNanos = startNanos + (long) ((cursor.time() - firstTime) * 1_000_000.0 / speed);
+                long delay;
+                while ((delay = dueNanos - System.nanoTime()) > 0L) {
+                    LockSupport.parkNanos(delay);
+                }
+            }
+            final JSONObject jsonObject;
+            try {
+                jsonObject = (JSONObject) jsonParser.parse(cursor.payloadString());
+            } catch (final ParseException | ClassCastException e) {
+                errors++;
+                continue;
+            }
+            try {
+                target.accept(cursor.callback(), jsonObject);
+            } catch (final RuntimeException e) {
+                errors++;
+            }
+            count++;
+        }
+        events += count;
+        elapsedNanos += System.nanoTime() - startNanos;
+        return count;
+    }
+
+    /**
+     * @return общее количество воспроизведённых колбэков
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return количество записей, которые не удалось разобрать или обработать
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return суммарное время воспроизведения в наносекундах
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return достигнутая скорость воспроизведения (колбэков в секунду)
+     */
+    public double getEventsPerSecond() {
+        return (elapsedNanos == 0L) ? 0.0 : events * 1e9 / elapsedNanos;
+    }
+}
@@ -0,0 +1,41 @@
+package com.algotrading.connectors.quik;
+
+import com.simpleutils.logs.AbstractLogger;
+import com.simpleutils.logs.SimpleLogger;
+import com.simpleutils.quik.ClassSecCode;
+
+import java.nio.file.Path;
+
+public class CallbackReplayTest {
+
+    private final AbstractLogger logger = new SimpleLogger();
+
+    /**
+     * @param args каталог журнала, префикс имён файлов журнала и скорость воспроизведения
+     *             (0 -- как можно быстрее, 1 -- реальное время, N -- ускорение в N раз)
+     */
+    public static void main(final String[] args) {
+        new CallbackReplayTest().test(Path.of(args[0]), args[1], (args.length > 2) ? Double.parseDouble(args[2]) : 0.0);
+    }
+
+    private void test(final Path directory, final String name, final double speed) {
+        logger.withLogLevel(AbstractLogger.INFO);
+
+        final MarketDataQuikListener marketDataQuikListener = new MarketDataQuikListener();
+        marketDataQuikListener.setLogger(logger);
+        marketDataQuikListener.setLogPrefix(CallbackReplayTest.class.getSimpleName() + ": ");
+        marketDataQuikListener.addLevel2Quotes(ClassSecCode.of("TQBR", "SBER"));
+        marketDataQuikListener.addTradeTape(ClassSecCode.of("TQBR", "SBER"), 1 << 16);
+
+        try (final CallbackJournal.Cursor cursor = CallbackJournal.cursor(directory, name)) {
+            final CallbackReplay callbackReplay = CallbackReplay.of(cursor, marketDataQuikListener);
+            callbackReplay.replay((speed == 0.0) ? CallbackReplay.AS_FAST_AS_POSSIBLE : speed);
+            logger.info(String.format("Replayed %d callbacks (%d errors) in %.3f s: %.0f callbacks/s",
+                    callbackReplay.getEvents(),
+                    callbackReplay.getErrors(),
+                    callbackReplay.getElapsedNanos() / 1e9,
+                    callbackReplay.getEventsPerSecond()));
+        }
+        logger.info("TQBR:SBER " + marketDataQuikListener.getLiveQuoteLevel2("TQBR", "SBER"));
+    }
+}
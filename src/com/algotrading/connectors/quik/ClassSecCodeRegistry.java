@@ -0,0 +1,164 @@
+package com.algotrading.connectors.quik;
+
+import com.simpleutils.quik.ClassSecCode;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.simpleutils.Deduplicator.STRING_DEDUPLICATOR;
+
+/**
+ * Реестр инструментов: каждому инструменту один раз присваивается плотный целочисленный идентификатор
+ * (0, 1, 2, ...), по которому данные инструментов хранятся в массивах.
+ * <p>
+ * Поиск идентификатора по коду класса и коду инструмента (или по строке вида "CLASS:SEC") не создаёт объектов
+ * и не требует блокировок; регистрация нового инструмента синхронизирована. Идентификаторы не освобождаются.
+ */
+public class ClassSecCodeRegistry {
+
+    public static final ClassSecCodeRegistry CLASS_SEC_CODE_REGISTRY = new ClassSecCodeRegistry();
+
+    /**
+     * Соответствие: код класса -> код инструмента -> идентификатор.
+     */
+    private final Map<String, Map<String, Integer>> ids = new ConcurrentHashMap<>();
+    /**
+     * Соответствие: строка вида "CLASS:SEC" -> идентификатор.
+     */
+    private final Map<String, Integer> securityIds = new ConcurrentHashMap<>();
+    private volatile ClassSecCode[] classSecCodes = new ClassSecCode[0];
+    private volatile String[] securities = new String[0];
+    private volatile int size;
+
+    /**
+     * @return количество зарегистрированных инструментов
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param classSecCode инструмент
+     * @return идентификатор инструмента; если инструмент не зарегистрирован, он регистрируется
+     */
+    public int register(final ClassSecCode classSecCode) {
+        return register(classSecCode.classCode(), classSecCode.secCode());
+    }
+
+    /**
+     * @param classCode код класса
+     * @param secCode   код инструмента
+     * @return идентификатор инструмента; если инструмент не зарегистрирован, он регистрируется
+     */
+    public int register(final String classCode, final String secCode) {
+        final int id = getId(classCode, secCode);
+        return (id >= 0) ? id : add(classCode, secCode);
+    }
+
+    /**
+     * @param security инструмент в формате "CLASS:SEC"
+     * @return идентификатор инструмента; если инструмент не зарегистрирован, он регистрируется
+     */
+    public int register(final String security) {
+        final Integer id = securityIds.get(security);
+        if (id != null) {
+            return id;
+        }
+        final int j = security.indexOf(':');
+        if (j < 0) {
+            throw new IllegalArgumentException("Illegal security: " + security);
+        }
+        return register(security.substring(0, j), security.substring(j + 1));
+    }
+
+    /**
+     * @param classCode код класса
+     * @param secCode   код инструмента
+     * @return идентификатор инструмента или -1, если инструмент не зарегистрирован
+     */
+    public int getId(final String classCode, final String secCode) {
+        final Map<String, Integer> map = ids.get(classCode);
+        if (map == null) {
+            return -1;
+        }
+        final Integer id = map.get(secCode);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * @param security инструмент в формате "CLASS:SEC"
+     * @return идентификатор инструмента или -1, если инструмент не зарегистрирован
+     */
+    public int getId(final String security) {
+        final Integer id = securityIds.get(security);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * @param id идентификатор инструмента
+     * @return инструмент
+     */
+    public ClassSecCode get(final int id) {
+        final ClassSecCode[] array = classSecCodes;
+        if (id < 0 || id >= array.length || array[id] == null) {
+            throw new IllegalArgumentException("Illegal id: " + id);
+        }
+        return array[id];
+    }
+
+    /**
+     * @param id идентификатор инструмента
+     * @return инструмент в формате "CLASS:SEC"
+     */
+    public String security(final int id) {
+        final String[] array = securities;
+        if (id < 0 || id >= array.length || array[id] == null) {
+            throw new IllegalArgumentException("Illegal id: " + id);
+        }
+        return array[id];
+    }
+
+    /**
+     * @param id идентификатор инструмента
+     * @return код класса
+     */
+    public String classCode(final int id) {
+        return get(id).classCode();
+    }
+
+    /**
+     * @param id идентификатор инструмента
+     * @return код инструмента
+     */
+    public String secCode(final int id) {
+        return get(id).secCode();
+    }
+
+    private synchronized int add(final String classCode, final String secCode) {
+        final int existingId = getId(classCode, secCode);
+        if (existingId >= 0) {
+            return existingId;
+        }
+        final int id = size;
+        final ClassSecCode classSecCode = new ClassSecCode(
+                STRING_DEDUPLICATOR.deduplicate(classCode),
+                STRING_DEDUPLICATOR.deduplicate(secCode));
+        final String security = STRING_DEDUPLICATOR.deduplicate(classCode + ":" + secCode);
+        // Массивы публикуются до отображений, чтобы найденный идентификатор всегда был действителен
+        ClassSecCode[] newClassSecCodes = classSecCodes;
+        String[] newSecurities = securities;
+        if (id == newClassSecCodes.length) {
+            newClassSecCodes = Arrays.copyOf(newClassSecCodes, Math.max(16, id * 2));
+            newSecurities = Arrays.copyOf(newSecurities, newClassSecCodes.length);
+        }
+        newClassSecCodes[id] = classSecCode;
+        newSecurities[id] = security;
+        classSecCodes = newClassSecCodes;
+        securities = newSecurities;
+        size = id + 1;
+        ids.computeIfAbsent(classSecCode.classCode(), k -> new ConcurrentHashMap<>()).put(classSecCode.secCode(), id);
+        securityIds.put(security, id);
+        return id;
+    }
+}
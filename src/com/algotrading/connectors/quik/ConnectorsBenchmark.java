@@ -0,0 +1,260 @@
+package com.algotrading.connectors.quik;
+
+import com.algotrading.connectors.common.QuoteLevel2;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Микробенчмарки горячих путей коннектора: разбор времени и свечей, стакан котировок,
+ * обновление {@link MarketDataSeries} и проверка календаря.
+ * <p>
+ * Для каждого бенчмарка выполняются прогревочные и измерительные раунды; выводятся время на операцию,
+ * пропускная способность, объём выделенной памяти на операцию и количество сборок мусора
+ * (аналог профилировщика gc в JMH).
+ * <p>
+ * Модуль коннектора не требует {@code jdk.management} во время выполнения, поэтому при запуске
+ * из модульного пути бенчмарку нужен параметр {@code --add-modules jdk.management}.
+ */
+public class ConnectorsBenchmark {
+
+    private static final int CANDLES_SIZE = 10_000;
+    private static final int BOOK_DEPTH = 50;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASUREMENT_ROUNDS = 10;
+    private static final long ROUND_NANOS = 500_000_000L;
+
+    @FunctionalInterface
+    private interface Benchmark {
+        /**
+         * @param iterations количество операций
+         * @return значение, зависящее от результатов, чтобы JIT не удалил вычисления
+         */
+        long run(int iterations);
+    }
+
+    private final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final List<GarbageCollectorMXBean> garbageCollectorMXBeans = ManagementFactory.getGarbageCollectorMXBeans();
+    private long blackhole;
+
+    public static void main(final String[] args) {
+        new ConnectorsBenchmark().test(args);
+    }
+
+    private void test(final String[] args) {
+        final String filter = (args.length > 0) ? args[0] : "";
+
+        final String[] timestamps = new String[CANDLES_SIZE];
+        final JSONObject jsonCandles = newJsonCandles(CANDLES_SIZE, timestamps);
+        final String textCandles = jsonCandles.toJSONString();
+        final byte[] timestampBytes = String.join("", timestamps).getBytes(StandardCharsets.US_ASCII);
+        final int[] timestampOffsets = new int[CANDLES_SIZE];
+        final int[] timestampLengths = new int[CANDLES_SIZE];
+        for (int i = 0, offset = 0; i < CANDLES_SIZE; offset += timestamps[i++].length()) {
+            timestampOffsets[i] = offset;
+            timestampLengths[i] = timestamps[i].length();
+        }
+        final long[] timeCodes = new long[CANDLES_SIZE];
+        final JSONObject jsonQuotes = newJsonQuotes(BOOK_DEPTH);
+        final QuoteLevel2 quoteLevel2 = QuikDecoder.quoteLevel2(jsonQuotes, new QuoteLevel2());
+        final QuoteLevel2 scratch = new QuoteLevel2();
+        final MarketDataSeries marketDataSeries = new MarketDataSeries(newSeriesConfig(false));
+        final MarketDataSeries incrementalSeries = new MarketDataSeries(newSeriesConfig(true));
+        final QuikCalendar quikCalendar = new QuikCalendar(newCalendarConfig());
+
+        measure(filter, "QuikDecoder.parseTimestamp", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                x += QuikDecoder.parseTimestamp(timestamps[i % CANDLES_SIZE]);
+            }
+            return x;
+        });
+        measure(filter, "QuikDecoder.parseTimestamps(byte[]) 10k", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                QuikDecoder.parseTimestamps(timestampBytes, timestampOffsets, timestampLengths, CANDLES_SIZE, timeCodes);
+                x += timeCodes[i % CANDLES_SIZE];
+            }
+            return x;
+        });
+        measure(filter, "QuikDecoder.candles(JSONObject) 10k", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                x += QuikDecoder.candles(jsonCandles).timeCode().length();
+            }
+            return x;
+        });
+        measure(filter, "QuikDecoder.candles(CharSequence) 10k", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                x += QuikDecoder.candles(textCandles, null, null).timeCode().length();
+            }
+            return x;
+        });
+        measure(filter, "QuoteLevel2.getBid/getOffer 50", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                x += quoteLevel2.getBid().quantity() + quoteLevel2.getOffer().quantity();
+            }
+            return x;
+        });
+        measure(filter, "QuoteLevel2.bestBidPrice/bestOfferPrice 50", n -> {
+            double x = 0;
+            for (int i = 0; i < n; i++) {
+                x += quoteLevel2.bestBidPrice() - quoteLevel2.bestOfferPrice();
+            }
+            return (long) x;
+        });
+        measure(filter, "QuikDecoder.quoteLevel2 50", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                x += QuikDecoder.quoteLevel2(jsonQuotes, scratch).bidDepth();
+            }
+            return x;
+        });
+        measure(filter, "MarketDataSeries.update 10k", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                x += marketDataSeries.update(jsonCandles);
+            }
+            return x;
+        });
+        measure(filter, "MarketDataSeries.update 10k incremental", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                x += incrementalSeries.update(jsonCandles);
+            }
+            return x;
+        });
+        measure(filter, "QuikCalendar.isWorking", n -> {
+            long x = 0;
+            for (int i = 0; i < n; i++) {
+                if (quikCalendar.isWorking()) {
+                    x++;
+                }
+            }
+            return x;
+        });
+        System.out.println("blackhole=" + blackhole);
+    }
+
+    private void measure(final String filter, final String name, final Benchmark benchmark) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        int iterations = 1;
+        while (true) {
+            final long t = System.nanoTime();
+            blackhole += benchmark.run(iterations);
+            if (System.nanoTime() - t > ROUND_NANOS / 10 || iterations >= (1 << 30)) {
+                break;
+            }
+            iterations *= 2;
+        }
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            blackhole += benchmark.run(iterations);
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long gcCount = gcCount();
+        final long bytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        final long t = System.nanoTime();
+        for (int i = 0; i < MEASUREMENT_ROUNDS; i++) {
+            blackhole += benchmark.run(iterations);
+        }
+        final double operations = (double) iterations * MEASUREMENT_ROUNDS;
+        final double nanosPerOperation = (System.nanoTime() - t) / operations;
+        final double bytesPerOperation = (threadMXBean.getThreadAllocatedBytes(threadId) - bytes) / operations;
+        System.out.printf(Locale.US, "%-45s %14.1f ns/op %14.0f ops/s %12.1f B/op %6d gc%n",
+                name, nanosPerOperation, 1e9 / nanosPerOperation, bytesPerOperation, gcCount() - gcCount);
+    }
+
+    private long gcCount() {
+        long count = 0;
+        for (final GarbageCollectorMXBean garbageCollectorMXBean : garbageCollectorMXBeans) {
+            count += Math.max(0L, garbageCollectorMXBean.getCollectionCount());
+        }
+        return count;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject newJsonCandles(final int size, final String[] timestamps) {
+        final JSONArray arrayT = new JSONArray();
+        final JSONArray arrayO = new JSONArray();
+        final JSONArray arrayH = new JSONArray();
+        final JSONArray arrayL = new JSONArray();
+        final JSONArray arrayC = new JSONArray();
+        final JSONArray arrayV = new JSONArray();
+        double price = 250.0;
+        for (int i = 0; i < size; i++) {
+            final int minutes = 600 + i % 540;
+            timestamps[i] = String.format("2020-11-%02dT%02d:%02d:00", 1 + i / 540, minutes / 60, minutes % 60);
+            final double open = price;
+            price = Math.round((price + Math.sin(i) * 0.5) * 100.0) / 100.0;
+            arrayT.add(timestamps[i]);
+            arrayO.add(open);
+            arrayH.add(Math.max(open, price) + 0.1);
+            arrayL.add(Math.min(open, price) - 0.1);
+            arrayC.add(price);
+            arrayV.add((long) (1000 + i % 777));
+        }
+        final JSONObject jsonCandles = new JSONObject();
+        jsonCandles.put("size", (long) size);
+        jsonCandles.put("T", arrayT);
+        jsonCandles.put("O", arrayO);
+        jsonCandles.put("H", arrayH);
+        jsonCandles.put("L", arrayL);
+        jsonCandles.put("C", arrayC);
+        jsonCandles.put("V", arrayV);
+        return jsonCandles;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject newJsonQuotes(final int depth) {
+        final JSONArray bids = new JSONArray();
+        final JSONArray offers = new JSONArray();
+        for (int i = 0; i < depth; i++) {
+            final JSONObject bid = new JSONObject();
+            bid.put("price", String.valueOf(250.0 - (depth - i) * 0.01));
+            bid.put("quantity", String.valueOf(10 + i));
+            bids.add(bid);
+            final JSONObject offer = new JSONObject();
+            offer.put("price", String.valueOf(250.0 + i * 0.01));
+            offer.put("quantity", String.valueOf(10 + i));
+            offers.add(offer);
+        }
+        final JSONObject jsonQuotes = new JSONObject();
+        jsonQuotes.put("bid_count", String.valueOf(depth));
+        jsonQuotes.put("offer_count", String.valueOf(depth));
+        jsonQuotes.put("bid", bids);
+        jsonQuotes.put("offer", offers);
+        return jsonQuotes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject newSeriesConfig(final boolean incremental) {
+        final JSONObject config = new JSONObject();
+        config.put("seriesId", "SBER_M5");
+        config.put("clientId", "benchmark");
+        config.put("candlesId", "TQBR:SBER:1");
+        config.put("compress", "5m");
+        config.put("updateSizes", "2,10," + CANDLES_SIZE);
+        config.put("truncationSize", (long) (2 * CANDLES_SIZE));
+        config.put("targetSize", (long) CANDLES_SIZE);
+        config.put("incremental", incremental);
+        return config;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject newCalendarConfig() {
+        final JSONObject config = new JSONObject();
+        config.put("holidays", new JSONArray());
+        config.put("workdays", new JSONArray());
+        return config;
+    }
+}
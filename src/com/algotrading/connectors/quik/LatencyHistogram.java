@@ -0,0 +1,141 @@
+package com.algotrading.connectors.quik;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек в наносекундах без блокировок.
+ * <p>
+ * Диапазон значений делится на интервалы по степеням двойки, каждый из которых делится на 8 корзин,
+ * поэтому относительная погрешность процентилей не превышает 12,5%. Запись выполняется любым количеством
+ * потоков без выделения памяти; снимок читается без остановки записи и может не учитывать значения,
+ * записанные во время его чтения.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Снимок гистограммы.
+     *
+     * @param count  количество значений
+     * @param sum    сумма значений в наносекундах
+     * @param max    максимальное значение в наносекундах
+     * @param counts количество значений по корзинам
+     */
+    public record Snapshot(long count, long sum, long max, long[] counts) {
+
+        /**
+         * @return среднее значение в наносекундах или 0, если значений нет
+         */
+        public long mean() {
+            return (count == 0L) ? 0L : sum / count;
+        }
+
+        /**
+         * @param percentile процентиль от 0 до 100
+         * @return верхняя граница корзины, содержащей процентиль, в наносекундах (не больше {@link #max}),
+         * или 0, если значений нет
+         */
+        public long percentile(final double percentile) {
+            if (percentile < 0.0 || percentile > 100.0) {
+                throw new IllegalArgumentException("Illegal percentile: " + percentile);
+            }
+            long total = 0L;
+            for (final long c : counts) {
+                total += c;
+            }
+            if (total == 0L) {
+                return 0L;
+            }
+            final long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+            long accumulated = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                accumulated += counts[i];
+                if (accumulated >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count
+                   + " mean=" + micros(mean())
+                   + " p50=" + micros(percentile(50.0))
+                   + " p99=" + micros(percentile(99.0))
+                   + " p99.9=" + micros(percentile(99.9))
+                   + " max=" + micros(max);
+        }
+
+        private static String micros(final long nanos) {
+            return nanos / 1000L + "." + nanos / 100L % 10L + "us";
+        }
+    }
+
+    /**
+     * Записать значение.
+     *
+     * @param nanos задержка в наносекундах (отрицательные значения записываются как 0)
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0L, nanos);
+        counts.incrementAndGet(index(value));
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return снимок гистограммы
+     */
+    public Snapshot snapshot() {
+        final long[] array = new long[BUCKETS];
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            array[i] = counts.get(i);
+            count += array[i];
+        }
+        return new Snapshot(count, sum.get(), max.get(), array);
+    }
+
+    /**
+     * @return снимок гистограммы; значения, вошедшие в снимок, удаляются из гистограммы
+     */
+    public Snapshot snapshotAndReset() {
+        final long[] array = new long[BUCKETS];
+        long count = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            array[i] = counts.getAndSet(i, 0L);
+            count += array[i];
+        }
+        return new Snapshot(count, sum.getAndSet(0L), max.getAndSet(0L), array);
+    }
+
+    static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1L;
+    }
+}
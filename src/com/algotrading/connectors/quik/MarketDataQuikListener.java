@@ -1,5 +1,6 @@
 package com.algotrading.connectors.quik;
 
+import com.algotrading.connectors.common.QuoteLevel2;
 import com.simpleutils.json.JSONConfig;
 import com.simpleutils.logs.AbstractLogger;
 import com.simpleutils.quik.ClassSecCode;
@@ -12,26 +13,97 @@ import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
+import static com.algotrading.connectors.quik.ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY;
+
 public class MarketDataQuikListener extends SimpleQuikListener {
 
     protected Map<ClassSecCode, Set<String>> securityParametersMap = new LinkedHashMap<>();
     protected Map<ClassSecCode, Set<Integer>> securityCandlesMap = new LinkedHashMap<>();
     protected Set<ClassSecCode> level2QuotesSet = new LinkedHashSet<>();
+    /**
+     * Оформленные подписки на параметры, свечи и стаканы; при повторной подписке запрашиваются только
+     * недостающие. Сбрасываются при изменении состояния связи с терминалом и при запросе подписки,
+     * завершившемся без ответа терминала (терминал мог быть перезапущен между проверками связи).
+     */
+    protected final Map<ClassSecCode, Set<String>> subscribedParametersMap = new ConcurrentHashMap<>();
+    protected final Map<ClassSecCode, Set<Integer>> subscribedCandlesMap = new ConcurrentHashMap<>();
+    protected final Set<ClassSecCode> subscribedLevel2QuotesSet = ConcurrentHashMap.newKeySet();
+    private boolean wasOnline = false;
+    private boolean isSubscriptionRequestFailed = false;
+    protected final QuoteLevel2Books quoteLevel2Books = new QuoteLevel2Books();
+    protected final SecurityParametersTable securityParametersTable = new SecurityParametersTable();
+    /**
+     * Ленты обезличенных сделок по идентификаторам инструментов в {@link ClassSecCodeRegistry}.
+     */
+    protected TradeTape[] tradeTapes = new TradeTape[0];
+    protected CallbackJournal callbackJournal = null;
+    private final QuikAllTradeEvent allTradeEvent = new QuikAllTradeEvent();
+    protected Consumer<QuikAllTradeEvent> allTradeHandler = null;
+    /**
+     * Режим объединения обновлений: колбэки OnQuote и OnParam не применяются сразу, а для каждого инструмента
+     * сохраняется последний стакан и объединение обновлений параметров. Отложенные обновления применяются,
+     * когда очередь колбэков опустела, перед обработкой любого другого колбэка и по вызову
+     * {@link #flushConflatedUpdates()}.
+     */
+    protected boolean isConflating = false;
+    private JSONObject[] pendingQuotes = new JSONObject[0];
+    private JSONObject[] pendingParams = new JSONObject[0];
+    private JSONObject[] paramsBuffers = new JSONObject[0];
+    private boolean[] isPending = new boolean[0];
+    private int[] pendingIds = new int[0];
+    private int pendingCount;
+    private volatile long conflatedUpdates;
+    private final Runnable flushConflatedUpdatesRunnable = this::flushConflatedUpdates;
+    protected final QuikListenerMetrics metrics = new QuikListenerMetrics();
+    /**
+     * Максимальное количество одновременно выполняемых запросов к терминалу при подписке.
+     */
+    protected int maxRequestsInFlight = 8;
+    private ThreadPoolExecutor requestExecutor = null;
 
     public void addSecurityParameter(final ClassSecCode classSecCode, final String parameter) {
         securityParametersMap.computeIfAbsent(classSecCode, k -> new LinkedHashSet<>()).add(parameter);
+        securityParametersTable.add(classSecCode, parameter);
     }
 
     public void addSecurityParameters(final ClassSecCode classSecCode, final String[] parameters) {
-        Collections.addAll(securityParametersMap.computeIfAbsent(classSecCode, k -> new LinkedHashSet<>()), parameters);
+        for (final String parameter : parameters) {
+            addSecurityParameter(classSecCode, parameter);
+        }
     }
 
     public void addSecurityParameters(final ClassSecCode classSecCode, final Collection<String> parameters) {
-        securityParametersMap.computeIfAbsent(classSecCode, k -> new LinkedHashSet<>()).addAll(parameters);
+        for (final String parameter : parameters) {
+            addSecurityParameter(classSecCode, parameter);
+        }
+    }
+
+    /**
+     * @return таблица текущих значений параметров инструментов, поддерживаемая по колбэкам OnParam;
+     * читается из любых потоков без обращения к терминалу
+     */
+    public SecurityParametersTable getSecurityParametersTable() {
+        return securityParametersTable;
+    }
+
+    /**
+     * @param classCode код класса
+     * @param secCode   код инструмента
+     * @param parameter наименование параметра
+     * @return текущее значение параметра или {@code NaN}, если параметр не добавлен в {@link #securityParametersMap}
+     * или значение ещё не получено
+     */
+    public double getLiveParam(final String classCode, final String secCode, final String parameter) {
+        final int securityId = securityParametersTable.getSecurityId(classCode, secCode);
+        if (securityId < 0) {
+            return Double.NaN;
+        }
+        final int index = securityParametersTable.getParameterIndex(securityId, parameter);
+        return (index < 0) ? Double.NaN : securityParametersTable.get(securityId, index);
     }
 
     public void addSecurityCandles(final ClassSecCode classSecCode, final int interval) {
@@ -51,6 +123,228 @@ public class MarketDataQuikListener extends SimpleQuikListener {
 
     public void addLevel2Quotes(final ClassSecCode classSecCode) {
         level2QuotesSet.add(classSecCode);
+        quoteLevel2Books.add(classSecCode);
+    }
+
+    /**
+     * Исключить инструмент из подписок на параметры, свечи и стаканы и удалить его стакан вместе
+     * с подписчиками, значения параметров и ленту обезличенных сделок. Оформленные в терминале подписки
+     * не отменяются; при следующей подписке (например, после восстановления связи) инструмент не запрашивается,
+     * а колбэки по нему игнорируются. Подписчиков и ленту, которые нужно сохранить (например, при переносе
+     * инструмента в другой терминал), следует получить до вызова: {@link #getQuoteLevel2Subscribers(ClassSecCode)},
+     * {@link #getTradeTape(String, String)}. Вызывается из потока обработки колбэков.
+     *
+     * @param classSecCode инструмент
+     */
+    public void removeSecurity(final ClassSecCode classSecCode) {
+        securityParametersMap.remove(classSecCode);
+        securityCandlesMap.remove(classSecCode);
+        level2QuotesSet.remove(classSecCode);
+        subscribedParametersMap.remove(classSecCode);
+        subscribedCandlesMap.remove(classSecCode);
+        subscribedLevel2QuotesSet.remove(classSecCode);
+        quoteLevel2Books.remove(classSecCode);
+        securityParametersTable.remove(classSecCode);
+        final int securityId = CLASS_SEC_CODE_REGISTRY.getId(classSecCode.classCode(), classSecCode.secCode());
+        if (securityId >= 0 && securityId < tradeTapes.length) {
+            tradeTapes[securityId] = null;
+        }
+    }
+
+    /**
+     * Добавить подписчика на изменения стакана котировок инструмента.
+     * Подписчик вызывается в потоке обработки колбэков и получает только изменённые уровни.
+     *
+     * @param classSecCode инструмент
+     * @param subscriber   подписчик
+     */
+    public void addQuoteLevel2Subscriber(final ClassSecCode classSecCode, final QuoteLevel2Books.Subscriber subscriber) {
+        addLevel2Quotes(classSecCode);
+        quoteLevel2Books.addSubscriber(classSecCode, subscriber);
+    }
+
+    /**
+     * @param classSecCode инструмент
+     * @return подписчики на изменения стакана котировок инструмента (без подписчиков на все инструменты)
+     */
+    public List<QuoteLevel2Books.Subscriber> getQuoteLevel2Subscribers(final ClassSecCode classSecCode) {
+        return quoteLevel2Books.getSubscribers(classSecCode);
+    }
+
+    /**
+     * Добавить подписчика на изменения стаканов котировок всех инструментов.
+     *
+     * @param subscriber подписчик
+     */
+    public void addQuoteLevel2Subscriber(final QuoteLevel2Books.Subscriber subscriber) {
+        quoteLevel2Books.addSubscriber(subscriber);
+    }
+
+    /**
+     * @param classCode код класса
+     * @param secCode   код инструмента
+     * @return актуальный стакан, поддерживаемый по колбэкам OnQuote, или {@code null},
+     * если инструмент не добавлен в {@link #level2QuotesSet}
+     */
+    public QuoteLevel2 getLiveQuoteLevel2(final String classCode, final String secCode) {
+        return quoteLevel2Books.get(classCode, secCode);
+    }
+
+    /**
+     * Добавить ленту обезличенных сделок для инструмента. Сделки поступают через колбэк OnAllTrade,
+     * подписка на который задаётся отдельно.
+     *
+     * @param classSecCode инструмент
+     * @param capacity     ёмкость ленты (количество последних хранимых сделок)
+     * @return лента сделок
+     */
+    public TradeTape addTradeTape(final ClassSecCode classSecCode, final int capacity) {
+        final int securityId = CLASS_SEC_CODE_REGISTRY.register(classSecCode);
+        if (securityId >= tradeTapes.length) {
+            tradeTapes = Arrays.copyOf(tradeTapes, Math.max(Math.max(16, securityId + 1), tradeTapes.length * 2));
+        }
+        if (tradeTapes[securityId] == null) {
+            tradeTapes[securityId] = new TradeTape(capacity);
+        }
+        return tradeTapes[securityId];
+    }
+
+    /**
+     * Добавить существующую ленту обезличенных сделок, например ленту инструмента, перенесённого
+     * из другого терминала: читатели ленты продолжают работать с тем же экземпляром.
+     * Вызывается из потока обработки колбэков.
+     *
+     * @param classSecCode инструмент
+     * @param tradeTape    лента сделок
+     * @throws IllegalArgumentException если для инструмента уже добавлена другая лента
+     */
+    public void addTradeTape(final ClassSecCode classSecCode, final TradeTape tradeTape) {
+        final int securityId = CLASS_SEC_CODE_REGISTRY.register(classSecCode);
+        if (securityId >= tradeTapes.length) {
+            tradeTapes = Arrays.copyOf(tradeTapes, Math.max(Math.max(16, securityId + 1), tradeTapes.length * 2));
+        }
+        if (tradeTapes[securityId] != null && tradeTapes[securityId] != tradeTape) {
+            throw new IllegalArgumentException("Illegal tradeTape: already added for " + classSecCode);
+        }
+        tradeTapes[securityId] = Objects.requireNonNull(tradeTape);
+    }
+
+    /**
+     * @param classCode код класса
+     * @param secCode   код инструмента
+     * @return лента обезличенных сделок или {@code null}, если она не добавлена
+     */
+    public TradeTape getTradeTape(final String classCode, final String secCode) {
+        return getTradeTape(CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode));
+    }
+
+    /**
+     * @param securityId идентификатор инструмента в {@link ClassSecCodeRegistry}
+     * @return лента обезличенных сделок или {@code null}, если она не добавлена
+     */
+    public TradeTape getTradeTape(final int securityId) {
+        return (securityId >= 0 && securityId < tradeTapes.length) ? tradeTapes[securityId] : null;
+    }
+
+    /**
+     * Задать обработчик обезличенных сделок. Вызывается в потоке обработки колбэков;
+     * событие действительно только во время вызова.
+     *
+     * @param allTradeHandler обработчик или {@code null}
+     */
+    public void setAllTradeHandler(final Consumer<QuikAllTradeEvent> allTradeHandler) {
+        this.allTradeHandler = allTradeHandler;
+    }
+
+    /**
+     * Включить или выключить режим объединения обновлений стаканов и параметров {@link #isConflating}.
+     * Вызывается до запуска обработки колбэков или из потока обработки колбэков.
+     *
+     * @param isConflating {@code true}, если обновления объединяются
+     */
+    public void setConflating(final boolean isConflating) {
+        if (!isConflating) {
+            flushConflatedUpdates();
+        }
+        this.isConflating = isConflating;
+    }
+
+    /**
+     * @return количество обновлений стаканов и параметров, заменённых более поздними в режиме объединения
+     */
+    public long getConflatedUpdates() {
+        return conflatedUpdates;
+    }
+
+    /**
+     * @return количество инструментов с отложенными обновлениями
+     */
+    public int getPendingUpdates() {
+        return pendingCount;
+    }
+
+    /**
+     * @return метрики запросов к терминалу, колбэков и подписок
+     */
+    public QuikListenerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Записать в журнал метрики, собранные с предыдущей записи, и сбросить их.
+     */
+    public void logMetrics() {
+        logger.info(logPrefix + "Metrics: " + metrics.snapshotAndReset());
+    }
+
+    /**
+     * Задать журнал, в который записываются все получаемые колбэки.
+     *
+     * @param callbackJournal журнал или {@code null}, если журналирование не нужно
+     */
+    public void setCallbackJournal(final CallbackJournal callbackJournal) {
+        this.callbackJournal = callbackJournal;
+    }
+
+    /**
+     * Задать максимальное количество одновременно выполняемых запросов к терминалу.
+     * Подписки на параметры и свечи разных инструментов выполняются параллельно в пределах этого ограничения.
+     *
+     * @param maxRequestsInFlight количество запросов (не меньше 1)
+     */
+    public synchronized void setMaxRequestsInFlight(final int maxRequestsInFlight) {
+        if (maxRequestsInFlight < 1) {
+            throw new IllegalArgumentException("Illegal maxRequestsInFlight: " + maxRequestsInFlight);
+        }
+        this.maxRequestsInFlight = maxRequestsInFlight;
+        if (requestExecutor != null) {
+            if (maxRequestsInFlight > requestExecutor.getMaximumPoolSize()) {
+                requestExecutor.setMaximumPoolSize(maxRequestsInFlight);
+                requestExecutor.setCorePoolSize(maxRequestsInFlight);
+            } else {
+                requestExecutor.setCorePoolSize(maxRequestsInFlight);
+                requestExecutor.setMaximumPoolSize(maxRequestsInFlight);
+            }
+        }
+    }
+
+    /**
+     * @return исполнитель запросов к терминалу с числом потоков {@link #maxRequestsInFlight};
+     * потоки-демоны завершаются после простоя
+     */
+    protected synchronized ExecutorService getRequestExecutor() {
+        if (requestExecutor == null) {
+            final String prefix = getClass().getSimpleName() + "-request-";
+            final AtomicInteger threadNumber = new AtomicInteger();
+            requestExecutor = new ThreadPoolExecutor(maxRequestsInFlight, maxRequestsInFlight,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            requestExecutor.allowCoreThreadTimeOut(true);
+        }
+        return requestExecutor;
     }
 
     public void configurate(final AbstractLogger logger, final JSONObject config) {
@@ -62,10 +356,17 @@ public class MarketDataQuikListener extends SimpleQuikListener {
         configurate(config, "checkConnectedPeriod", this::setCheckConnectedPeriod);
         configurate(config, "subscriptionPeriod", this::setSubscriptionPeriod);
         configurate(config, "onlineDuration", this::setOnlineDuration);
+        if (config.containsKey("maxRequestsInFlight")) {
+            setMaxRequestsInFlight((int) JSONConfig.getLong(config, "maxRequestsInFlight"));
+        }
+        setConflating(Boolean.TRUE.equals(config.get("conflation")));
 
         configurateParams((JSONArray) config.get("params"));
         configurateCandles((JSONArray) config.get("candles"));
         configurateLevel2Quotes((JSONArray) config.get("level2Quotes"));
+        if (config.get("tradeTapes") instanceof JSONArray tradeTapesArray) {
+            configurateTradeTapes(tradeTapesArray);
+        }
         configurateCallbacks((JSONArray) config.get("callbacks"));
     }
 
@@ -126,6 +427,21 @@ public class MarketDataQuikListener extends SimpleQuikListener {
         }
     }
 
+    private void configurateTradeTapes(final JSONArray array) {
+        for (final Object o : array) {
+            final String entry = (String) o;
+            final String[] parts = entry.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Illegal tradeTapes entry: " + entry);
+            }
+            try {
+                addTradeTape(new ClassSecCode(parts[0], parts[1]), Integer.parseInt(parts[2]));
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal tradeTapes entry: " + entry);
+            }
+        }
+    }
+
     private void configurateCallbacks(final JSONArray array) {
         for (final Object o : array) {
             final JSONObject json = (JSONObject) o;
@@ -138,64 +454,337 @@ public class MarketDataQuikListener extends SimpleQuikListener {
 
     @Override
     protected void processCallback(final String callback, final JSONObject jsonObject) {
-        switch (callback) {
-            case "OnAllTrade" -> onAllTrade((JSONObject) jsonObject.get("arg1"));
-            case "OnQuote" -> onQuote(
-                    (String) jsonObject.get("arg1"),
-                    (String) jsonObject.get("arg2"),
-                    jsonObject.get("result"));
-            default -> super.processCallback(callback, jsonObject);
+        final long start = System.nanoTime();
+        try {
+            dispatchCallback(callback, jsonObject);
+        } finally {
+            metrics.recordCallback(callback, System.nanoTime() - start);
         }
     }
 
+    private void dispatchCallback(final String callback, final JSONObject jsonObject) {
+        if (callbackJournal != null) {
+            callbackJournal.append(callback, jsonObject);
+        }
+        final QuikCallback quikCallback = QuikCallback.of(callback);
+        switch (quikCallback) {
+            case ON_QUOTE, ON_PARAM -> {
+                final String classCode = (String) jsonObject.get("arg1");
+                final String secCode = (String) jsonObject.get("arg2");
+                final Object result = jsonObject.get("result");
+                if (!isConflating || !conflate(quikCallback, classCode, secCode, result)) {
+                    if (quikCallback == QuikCallback.ON_QUOTE) {
+                        onQuote(classCode, secCode, result);
+                    } else {
+                        onParam(classCode, secCode, result);
+                    }
+                }
+            }
+            case ON_ALL_TRADE -> {
+                flushConflatedUpdates();
+                onAllTrade((JSONObject) jsonObject.get("arg1"));
+            }
+            default -> {
+                flushConflatedUpdates();
+                super.processCallback(callback, jsonObject);
+            }
+        }
+    }
+
+    /**
+     * В режиме объединения возвращает задачу применения отложенных обновлений, когда очередь колбэков опустела.
+     */
+    @Override
+    public Runnable poll() {
+        final Runnable runnable = super.poll();
+        return (runnable == null && pendingCount > 0) ? flushConflatedUpdatesRunnable : runnable;
+    }
+
+    /**
+     * Применить отложенные в режиме объединения обновления стаканов и параметров.
+     * Вызывается из потока обработки колбэков.
+     */
+    public void flushConflatedUpdates() {
+        for (int i = 0; i < pendingCount; i++) {
+            final int securityId = pendingIds[i];
+            isPending[securityId] = false;
+            final JSONObject quotes = pendingQuotes[securityId];
+            final JSONObject params = pendingParams[securityId];
+            pendingQuotes[securityId] = null;
+            pendingParams[securityId] = null;
+            final ClassSecCode classSecCode = CLASS_SEC_CODE_REGISTRY.get(securityId);
+            if (quotes != null) {
+                onQuote(classSecCode.classCode(), classSecCode.secCode(), quotes);
+            }
+            if (params != null) {
+                onParam(classSecCode.classCode(), classSecCode.secCode(), params);
+            }
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Отложить обновление стакана или параметров инструмента, заменив (для параметров -- дополнив)
+     * ранее отложенное обновление.
+     *
+     * @return {@code false}, если обновление не может быть отложено и должно быть применено сразу
+     */
+    @SuppressWarnings("unchecked")
+    private boolean conflate(final QuikCallback quikCallback,
+                             final String classCode,
+                             final String secCode,
+                             final Object result) {
+        if (!(result instanceof JSONObject json)) {
+            return false;
+        }
+        final int securityId = CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode);
+        if (securityId < 0) {
+            return false;
+        }
+        if (securityId >= isPending.length) {
+            final int capacity = Math.max(Math.max(16, securityId + 1), isPending.length * 2);
+            pendingQuotes = Arrays.copyOf(pendingQuotes, capacity);
+            pendingParams = Arrays.copyOf(pendingParams, capacity);
+            paramsBuffers = Arrays.copyOf(paramsBuffers, capacity);
+            isPending = Arrays.copyOf(isPending, capacity);
+            pendingIds = Arrays.copyOf(pendingIds, capacity);
+        }
+        if (quikCallback == QuikCallback.ON_QUOTE) {
+            if (pendingQuotes[securityId] != null) {
+                conflatedUpdates++;
+            }
+            pendingQuotes[securityId] = json;
+        } else {
+            final JSONObject pending = pendingParams[securityId];
+            if (pending == null) {
+                pendingParams[securityId] = json;
+            } else {
+                conflatedUpdates++;
+                // Параметры, отсутствующие в новом обновлении, сохраняются из предыдущих
+                JSONObject buffer = paramsBuffers[securityId];
+                if (pending != buffer) {
+                    if (buffer == null) {
+                        buffer = new JSONObject();
+                        paramsBuffers[securityId] = buffer;
+                    } else {
+                        buffer.clear();
+                    }
+                    buffer.putAll(pending);
+                }
+                buffer.putAll(json);
+                pendingParams[securityId] = buffer;
+            }
+        }
+        if (!isPending[securityId]) {
+            isPending[securityId] = true;
+            pendingIds[pendingCount++] = securityId;
+        }
+        return true;
+    }
+
     protected void onAllTrade(final JSONObject jsonObject) {
         logger.debug(() -> logPrefix + "OnAllTrade: " + jsonObject);
+        if (jsonObject == null) {
+            return;
+        }
+        final QuikAllTradeEvent event = QuikDecoder.allTrade(jsonObject, allTradeEvent);
+        final TradeTape tradeTape = getTradeTape(event.securityId);
+        if (tradeTape != null) {
+            tradeTape.append(event.price, event.quantity, event.side, event.tradeNum, event.timeCode);
+        }
+        if (allTradeHandler != null) {
+            allTradeHandler.accept(event);
+        }
     }
 
     protected void onQuote(final String classCode, final String secCode, final Object result) {
         logger.debug(() -> logPrefix + "OnQuote(" + classCode + "," + secCode + "): " + result);
+        if (result instanceof JSONObject jsonQuotes) {
+            quoteLevel2Books.update(CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode), jsonQuotes);
+        }
+    }
+
+    protected void onParam(final String classCode, final String secCode, final Object result) {
+        logger.debug(() -> logPrefix + "OnParam(" + classCode + "," + secCode + "): " + result);
+        if (result instanceof JSONObject jsonParams) {
+            securityParametersTable.update(CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode), jsonParams);
+        }
+    }
+
+    /**
+     * Сбросить состояние оформленных подписок, чтобы при следующей подписке
+     * все параметры, свечи и стаканы были запрошены заново.
+     */
+    public void resetSubscriptions() {
+        subscribedParametersMap.clear();
+        subscribedCandlesMap.clear();
+        subscribedLevel2QuotesSet.clear();
     }
 
+    @Override
+    public void ensureConnection() {
+        super.ensureConnection();
+        final boolean isOnline = isOnline();
+        if (!isOnline || isOnline != wasOnline) {
+            resetSubscriptions();
+        }
+        if (isOnline != wasOnline) {
+            // Сделки, не полученные при потере связи, не переполняют ленту, поэтому разрыв отмечается явно
+            for (final TradeTape tradeTape : tradeTapes) {
+                if (tradeTape != null) {
+                    tradeTape.markGap();
+                }
+            }
+        }
+        wasOnline = isOnline;
+    }
+
+    /**
+     * Оформить недостающие подписки: на параметры, свечи и стаканы, которые были добавлены,
+     * не были оформлены из-за ошибки или сброшены при потере связи. Если запрос подписки завершился
+     * без ответа терминала, при следующей подписке все подписки запрашиваются заново.
+     */
     @Override
     public void subscribe() {
+        isSubscriptionRequestFailed = false;
         try {
-            subscribeToParameters();
-            subscribeToCandles();
-            subscribeToLevel2Quotes();
+            RuntimeException runtimeException = null;
+            try {
+                subscribeToParameters();
+            } catch (final RuntimeException e) {
+                runtimeException = e;
+            }
+            try {
+                subscribeToCandles();
+            } catch (final RuntimeException e) {
+                runtimeException = e;
+            }
+            try {
+                subscribeToLevel2Quotes();
+            } catch (final RuntimeException e) {
+                runtimeException = e;
+            }
+            if (runtimeException != null) {
+                throw runtimeException;
+            }
             super.subscribe();
         } catch (final Exception e) {
             isSubscribed = false;
             nextSubscriptionTime = ZonedDateTime.now().plus(subscriptionPeriod);
+            if (isSubscriptionRequestFailed || e instanceof ExecutionException) {
+                resetSubscriptions();
+            }
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
             }
+        } finally {
+            metrics.recordSubscribe(isSubscribed);
         }
     }
 
-    private void subscribeToParameters() throws ExecutionException, InterruptedException {
-        for (final Map.Entry<ClassSecCode, Set<String>> entry : securityParametersMap.entrySet()) {
-            subscribeToSecurityParameters(entry.getKey(), entry.getValue());
+    private void subscribeToParameters() throws InterruptedException {
+        subscribeConcurrently(missing(securityParametersMap, subscribedParametersMap), this::subscribeToSecurityParameters);
+    }
+
+    private void subscribeToCandles() throws InterruptedException {
+        subscribeConcurrently(missing(securityCandlesMap, subscribedCandlesMap), this::subscribeToSecurityCandles);
+    }
+
+    /**
+     * @return соответствие: инструмент -> значения, на которые подписка требуется, но ещё не оформлена
+     */
+    private static <T> Map<ClassSecCode, Set<T>> missing(final Map<ClassSecCode, Set<T>> required,
+                                                         final Map<ClassSecCode, Set<T>> subscribed) {
+        final Map<ClassSecCode, Set<T>> missing = new LinkedHashMap<>();
+        for (final Map.Entry<ClassSecCode, Set<T>> entry : required.entrySet()) {
+            final Set<T> done = subscribed.get(entry.getKey());
+            final Set<T> values = new LinkedHashSet<>();
+            for (final T value : entry.getValue()) {
+                if (done == null || !done.contains(value)) {
+                    values.add(value);
+                }
+            }
+            if (!values.isEmpty()) {
+                missing.put(entry.getKey(), values);
+            }
         }
+        return missing;
     }
 
-    private void subscribeToCandles() throws ExecutionException, InterruptedException {
-        for (final Map.Entry<ClassSecCode, Set<Integer>> entry : securityCandlesMap.entrySet()) {
-            subscribeToSecurityCandles(entry.getKey(), entry.getValue());
+    /**
+     * Подписка по одному инструменту.
+     */
+    @FunctionalInterface
+    private interface SecuritySubscription<T> {
+        /**
+         * @return сообщение об ошибке или {@code null}, если подписка выполнена
+         */
+        String subscribe(ClassSecCode classSecCode, T value) throws ExecutionException, InterruptedException;
+    }
+
+    /**
+     * Выполнить подписки по инструментам параллельно, не более {@link #maxRequestsInFlight} запросов одновременно,
+     * и дождаться результатов по всем инструментам.
+     *
+     * @throws RuntimeException если подписка хотя бы по одному инструменту не выполнена
+     */
+    private <T> void subscribeConcurrently(final Map<ClassSecCode, T> map,
+                                           final SecuritySubscription<T> subscription) throws InterruptedException {
+        if (map.isEmpty()) {
+            return;
+        }
+        final List<Map.Entry<ClassSecCode, T>> entries = new ArrayList<>(map.entrySet());
+        final List<Future<String>> futures = new ArrayList<>(entries.size());
+        final ExecutorService executor = getRequestExecutor();
+        String errorMessage = null;
+        try {
+            for (final Map.Entry<ClassSecCode, T> entry : entries) {
+                futures.add(executor.submit(() -> subscription.subscribe(entry.getKey(), entry.getValue())));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                String message;
+                try {
+                    message = futures.get(i).get();
+                } catch (final ExecutionException e) {
+                    isSubscriptionRequestFailed = true;
+                    message = "Cannot subscribe to " + entries.get(i).getKey() + ": " + e.getCause();
+                    if (logger != null) {
+                        logger.error(logPrefix + message);
+                    }
+                }
+                if (message != null) {
+                    errorMessage = message;
+                }
+            }
+        } finally {
+            for (final Future<String> future : futures) {
+                future.cancel(true);
+            }
+        }
+        if (errorMessage != null) {
+            throw new RuntimeException(errorMessage);
         }
     }
 
     private void subscribeToLevel2Quotes() throws ExecutionException, InterruptedException {
-        if (level2QuotesSet.isEmpty()) {
+        final Set<ClassSecCode> missing = new LinkedHashSet<>();
+        for (final ClassSecCode classSecCode : level2QuotesSet) {
+            if (!subscribedLevel2QuotesSet.contains(classSecCode)) {
+                missing.add(classSecCode);
+            }
+        }
+        if (missing.isEmpty()) {
             return;
         }
-        final JSONObject response = quikConnect.executeMN(
-                new BulkQuoteLevel2SubscriptionRequest(level2QuotesSet).getRequest(),
-                requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        final JSONObject response = executeMN(
+                new BulkQuoteLevel2SubscriptionRequest(missing),
+                requestTimeout.toMillis());
         final JSONArray result = (JSONArray) response.get("result");
         String errorMessage = null;
         for (final Object o : result) {
             final JSONObject json = (JSONObject) o;
             if (Boolean.TRUE.equals(json.get("subscribed"))) {
+                subscribedLevel2QuotesSet.add(new ClassSecCode((String) json.get("classCode"), (String) json.get("secCode")));
                 if (logger != null) {
                     logger.debug(() -> logPrefix + "Subscribed to Level2 quotes for " + json.get("classCode") + ":" + json.get("secCode") + ".");
                 }
@@ -211,64 +800,117 @@ public class MarketDataQuikListener extends SimpleQuikListener {
         }
     }
 
-    private void subscribeToSecurityParameters(final ClassSecCode classSecCode,
-                                               final Collection<String> parameters) throws ExecutionException, InterruptedException {
-        final JSONObject response = quikConnect.executeMN(
-                new ParamSubscriptionRequest(classSecCode, parameters).getRequest(),
-                requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    private String subscribeToSecurityParameters(final ClassSecCode classSecCode,
+                                                 final Collection<String> parameters) throws ExecutionException, InterruptedException {
+        final JSONObject response = executeMN(
+                new ParamSubscriptionRequest(classSecCode, parameters),
+                requestTimeout.toMillis());
         if (Boolean.TRUE.equals(response.get("result"))) {
+            subscribedParametersMap.computeIfAbsent(classSecCode, k -> ConcurrentHashMap.newKeySet()).addAll(parameters);
             if (logger != null) {
                 logger.debug(() -> logPrefix + "Subscribed to " + classSecCode + " " + parameters + ".");
             }
-            return;
+            return null;
         }
         final String message = "Cannot subscribe to " + classSecCode + " parameters " + parameters + ".";
         if (logger != null) {
             logger.error(logPrefix + message);
-            throw new RuntimeException(message);
         }
+        return message;
     }
 
-    private void subscribeToSecurityCandles(final ClassSecCode classSecCode,
-                                            final Collection<Integer> intervals) throws ExecutionException, InterruptedException {
-        final JSONObject response = quikConnect.executeMN(
-                new CandlesSubscriptionRequest(classSecCode, intervals).getRequest(),
-                requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    private String subscribeToSecurityCandles(final ClassSecCode classSecCode,
+                                              final Collection<Integer> intervals) throws ExecutionException, InterruptedException {
+        final JSONObject response = executeMN(
+                new CandlesSubscriptionRequest(classSecCode, intervals),
+                requestTimeout.toMillis());
         try {
             final JSONObject result = (JSONObject) response.get("result");
-            RuntimeException runtimeException = null;
+            String errorMessage = null;
             for (final int interval : intervals) {
                 final String key = String.valueOf(interval);
-                if (!"ok".equals(result.get(key))) {
-                    final String message = "Cannot subscribe to " + classSecCode
+                if ("ok".equals(result.get(key))) {
+                    subscribedCandlesMap.computeIfAbsent(classSecCode, k -> ConcurrentHashMap.newKeySet()).add(interval);
+                } else {
+                    errorMessage = "Cannot subscribe to " + classSecCode
                             + " candles for interval " + interval + ": " + result.get(key);
                     if (logger != null) {
-                        logger.error(logPrefix + message);
-                        runtimeException = new RuntimeException(message);
+                        logger.error(logPrefix + errorMessage);
                     }
                 }
             }
-            if (runtimeException == null) {
-                if (logger != null) {
-                    logger.debug(() -> logPrefix + "Subscribed to " + classSecCode + " candles for intervals " + intervals + ".");
-                }
-            } else {
-                throw runtimeException;
+            if (errorMessage == null && logger != null) {
+                logger.debug(() -> logPrefix + "Subscribed to " + classSecCode + " candles for intervals " + intervals + ".");
             }
+            return errorMessage;
         } catch (final NullPointerException | ClassCastException e) {
             final String message = "Cannot subscribe to " + classSecCode + " candles for intervals " + intervals + ".";
             if (logger != null) {
                 logger.error(logPrefix + message);
-                throw new RuntimeException(message);
             }
+            return message;
         }
     }
 
+    /**
+     * Выполнить запрос к терминалу с записью времени выполнения в {@link #metrics}.
+     */
+    @Override
+    public Object executeMN(final Request request) throws ExecutionException, InterruptedException {
+        return metrics.execute(request.getClass().getSimpleName(), () -> super.executeMN(request));
+    }
+
+    /**
+     * Выполнить запрос к терминалу с заданным тайм-аутом и записью времени выполнения в {@link #metrics}.
+     */
+    protected JSONObject executeMN(final Request request,
+                                   final long timeoutMillis) throws ExecutionException, InterruptedException {
+        return metrics.execute(request.getClass().getSimpleName(),
+                () -> quikConnect.executeMN(request.getRequest(), timeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Выполнить запрос к терминалу с заданным тайм-аутом и записью времени выполнения в {@link #metrics}
+     * и получить результат из ответа, как {@link #executeMN(Request)}.
+     *
+     * @throws ExecutionException если статус ответа -- ошибка или ответ не содержит результата
+     */
+    protected Object executeMNResult(final Request request,
+                                     final long timeoutMillis) throws ExecutionException, InterruptedException {
+        final String requestName = request.getClass().getSimpleName();
+        return metrics.execute(requestName, () -> result(requestName,
+                quikConnect.executeMN(request.getRequest(), timeoutMillis, TimeUnit.MILLISECONDS)));
+    }
+
+    private static Object result(final String requestName, final JSONObject response) throws ExecutionException {
+        if (response == null) {
+            throw new ExecutionException(new IllegalStateException(requestName + ": no response"));
+        }
+        if (!QuikDecoder.status(response)) {
+            throw new ExecutionException(new IllegalStateException(requestName + ": " + QuikDecoder.err(response)));
+        }
+        final Object result = response.get("result");
+        if (result == null) {
+            throw new ExecutionException(new IllegalStateException(requestName + ": no result"));
+        }
+        return result;
+    }
+
+    /**
+     * Выполнить вызов функции терминала с заданным тайм-аутом и записью времени выполнения в {@link #metrics}.
+     */
+    protected JSONObject executeMN(final String function,
+                                   final List<?> arguments,
+                                   final long timeoutMillis) throws ExecutionException, InterruptedException {
+        return metrics.execute(function,
+                () -> quikConnect.executeMN(function, arguments, timeoutMillis, TimeUnit.MILLISECONDS));
+    }
+
     public JSONObject getSecurityInfo(final String classCode,
                                       final String secCode) throws ExecutionException, InterruptedException {
-        return (JSONObject) quikConnect.executeMN(
+        return (JSONObject) executeMN(
                 "getSecurityInfo", List.of(classCode, secCode),
-                requestTimeout.toMillis(), TimeUnit.MILLISECONDS).get("result");
+                requestTimeout.toMillis()).get("result");
     }
 
     public JSONObject getParams(final String classCode,
@@ -286,12 +928,142 @@ public class MarketDataQuikListener extends SimpleQuikListener {
 
     public JSONObject getQuoteLevel2(final String classCode,
                                      final String secCode) throws ExecutionException, InterruptedException {
-        return (JSONObject) quikConnect.executeMN(
+        return (JSONObject) executeMN(
                 "getQuoteLevel2", List.of(classCode, secCode),
-                requestTimeout.toMillis(), TimeUnit.MILLISECONDS).get("result");
+                requestTimeout.toMillis()).get("result");
     }
 
     public JSONArray getQuoteLevel2(final Set<ClassSecCode> classSecCodes) throws ExecutionException, InterruptedException {
         return (JSONArray) executeMN(new BulkQuoteLevel2Request(classSecCodes));
     }
+
+    /**
+     * Запрос к терминалу с заданным тайм-аутом.
+     */
+    @FunctionalInterface
+    protected interface TimedRequest<T> {
+        T execute(long timeoutMillis) throws ExecutionException, InterruptedException;
+    }
+
+    /**
+     * Выполнить запрос к терминалу асинхронно на исполнителе {@link #getRequestExecutor()}:
+     * одновременно выполняется не более {@link #maxRequestsInFlight} запросов, остальные ожидают в очереди.
+     * Тайм-аут отсчитывается с момента вызова и включает время ожидания в очереди;
+     * по его истечении результат завершается исключением {@link TimeoutException}, а запрос отменяется.
+     * <p>
+     * Результат завершается в потоке исполнителя запросов, поэтому синхронные продолжения
+     * ({@code thenApply}, {@code thenAccept}, {@code whenComplete} и т.п.) выполняются в этом потоке и до своего
+     * окончания занимают одно из {@link #maxRequestsInFlight} мест. Долгие продолжения и продолжения,
+     * синхронно ожидающие другие запросы к терминалу, следует выполнять на своём исполнителе
+     * ({@code thenApplyAsync(fn, executor)} и т.п.).
+     *
+     * @param timeout тайм-аут запроса
+     * @param request запрос
+     * @return результат запроса
+     */
+    protected <T> CompletableFuture<T> executeAsync(final Duration timeout, final TimedRequest<T> request) {
+        final long timeoutMillis = timeout.toMillis();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Future<?> task = getRequestExecutor().submit(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0L) {
+                    future.completeExceptionally(new TimeoutException());
+                    return;
+                }
+                future.complete(request.execute(remainingMillis));
+            } catch (final ExecutionException e) {
+                future.completeExceptionally((e.getCause() == null) ? e : e.getCause());
+            } catch (final InterruptedException e) {
+                future.completeExceptionally(e);
+                Thread.currentThread().interrupt();
+            } catch (final RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        // Прерывание нужно только для отменённого или просроченного запроса: при обычном завершении
+        // поток исполнителя может ещё выполнять синхронные продолжения вызывающего кода
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                task.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    public CompletableFuture<JSONObject> getSecurityInfoAsync(final String classCode,
+                                                              final String secCode) {
+        return getSecurityInfoAsync(classCode, secCode, requestTimeout);
+    }
+
+    public CompletableFuture<JSONObject> getSecurityInfoAsync(final String classCode,
+                                                              final String secCode,
+                                                              final Duration timeout) {
+        return executeAsync(timeout, timeoutMillis -> (JSONObject) executeMN(
+                "getSecurityInfo", List.of(classCode, secCode),
+                timeoutMillis).get("result"));
+    }
+
+    public CompletableFuture<JSONObject> getParamsAsync(final String classCode,
+                                                        final String secCode,
+                                                        final Collection<String> parameters) {
+        return getParamsAsync(classCode, secCode, parameters, requestTimeout);
+    }
+
+    public CompletableFuture<JSONObject> getParamsAsync(final String classCode,
+                                                        final String secCode,
+                                                        final Collection<String> parameters,
+                                                        final Duration timeout) {
+        final List<String> parametersCopy = List.copyOf(parameters);
+        return executeAsync(timeout, timeoutMillis -> (JSONObject) executeMNResult(
+                new GetParamExRequest(classCode, secCode, parametersCopy),
+                timeoutMillis));
+    }
+
+    public CompletableFuture<JSONObject> getCandlesAsync(final String classCode,
+                                                         final String secCode,
+                                                         final int interval,
+                                                         final int maxSize) {
+        return getCandlesAsync(classCode, secCode, interval, maxSize, requestTimeout);
+    }
+
+    public CompletableFuture<JSONObject> getCandlesAsync(final String classCode,
+                                                         final String secCode,
+                                                         final int interval,
+                                                         final int maxSize,
+                                                         final Duration timeout) {
+        return executeAsync(timeout, timeoutMillis -> (JSONObject) executeMNResult(
+                new CandlesRequest(classCode, secCode, interval, maxSize),
+                timeoutMillis));
+    }
+
+    public CompletableFuture<JSONObject> getQuoteLevel2Async(final String classCode,
+                                                             final String secCode) {
+        return getQuoteLevel2Async(classCode, secCode, requestTimeout);
+    }
+
+    public CompletableFuture<JSONObject> getQuoteLevel2Async(final String classCode,
+                                                             final String secCode,
+                                                             final Duration timeout) {
+        return executeAsync(timeout, timeoutMillis -> (JSONObject) executeMN(
+                "getQuoteLevel2", List.of(classCode, secCode),
+                timeoutMillis).get("result"));
+    }
+
+    public CompletableFuture<JSONArray> getQuoteLevel2Async(final Set<ClassSecCode> classSecCodes) {
+        return getQuoteLevel2Async(classSecCodes, requestTimeout);
+    }
+
+    public CompletableFuture<JSONArray> getQuoteLevel2Async(final Set<ClassSecCode> classSecCodes,
+                                                            final Duration timeout) {
+        final Set<ClassSecCode> classSecCodesCopy = new LinkedHashSet<>(classSecCodes);
+        return executeAsync(timeout, timeoutMillis -> (JSONArray) executeMNResult(
+                new BulkQuoteLevel2Request(classSecCodesCopy),
+                timeoutMillis));
+    }
 }
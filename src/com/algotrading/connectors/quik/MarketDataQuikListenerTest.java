@@ -70,6 +70,7 @@ public class MarketDataQuikListenerTest {
             marketDataQuikListener.ensureSubscription();
             if (ZonedDateTime.now().getSecond() == 0) {
                 logger.debug("Force subscription");
+                marketDataQuikListener.resetSubscriptions();
                 marketDataQuikListener.subscribe();
                 try {
                     //noinspection BusyWait
@@ -11,6 +11,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.LongPredicate;
 import java.util.function.LongUnaryOperator;
 
+import static com.algotrading.connectors.quik.ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY;
+
 /**
  * Свечные данные, получаемые из терминала QUIK.
  */
@@ -20,6 +22,10 @@ public class MarketDataSeries {
     public final String clientId;
     public final String classCode;
     public final String secCode;
+    /**
+     * Идентификатор инструмента в {@link ClassSecCodeRegistry}.
+     */
+    public final int securityId;
     public final int interval;
     public final int[] updateSizes;
     private final LongUnaryOperator timeShift;
@@ -27,6 +33,12 @@ public class MarketDataSeries {
     public final int timeframe;
     public final TimeUnit unit;
     public final UpdatableCandles updatableCandles;
+    /**
+     * Режим инкрементального обновления: декодируются и сжимаются только свечи начиная с последней
+     * зафиксированной, а последняя (незакрытая) свеча заменяется при слиянии в {@link #updatableCandles}.
+     */
+    public final boolean incremental;
+    private long lastTimeCode = Long.MIN_VALUE;
 
     public MarketDataSeries(final JSONObject config) {
         seriesId = JSONConfig.getString(config, "seriesId");
@@ -36,9 +48,10 @@ public class MarketDataSeries {
         if (parts.length != 3) {
             throw new IllegalArgumentException("Illegal candlesId=" + candlesId);
         }
-        classCode = parts[0];
-        secCode = parts[1];
-        interval = Integer.parseInt(parts[2]);
+        securityId = CLASS_SEC_CODE_REGISTRY.register(parts[0], parts[1]);
+        classCode = CLASS_SEC_CODE_REGISTRY.classCode(securityId);
+        secCode = CLASS_SEC_CODE_REGISTRY.secCode(securityId);
+        interval = checkInterval(Integer.parseInt(parts[2]));
 
         if (config.get("timeShift") instanceof String timeShiftString) {
             timeShift = getTimeShiftFromString(timeShiftString);
@@ -93,6 +106,18 @@ public class MarketDataSeries {
         final int truncationSize = JSONConfig.getInt(config, "truncationSize");
         final int targetSize = JSONConfig.getInt(config, "targetSize");
         updatableCandles = new UpdatableCandles(truncationSize, targetSize);
+        incremental = Boolean.TRUE.equals(config.get("incremental"));
+    }
+
+    /**
+     * @param interval интервал свечей QUIK в минутах (0 -- тиковый)
+     * @return тот же интервал, если это один из интервалов свечей QUIK
+     */
+    private static int checkInterval(final int interval) {
+        return switch (interval) {
+            case 0, 1, 2, 3, 4, 5, 6, 10, 15, 20, 30, 60, 120, 240, 1440, 10080, 23200 -> interval;
+            default -> throw new IllegalArgumentException("Illegal interval: " + interval);
+        };
     }
 
     private static LongUnaryOperator getTimeShiftFromString(final String s) {
@@ -121,16 +146,54 @@ public class MarketDataSeries {
         };
     }
 
+    /**
+     * Обновить свечи по json-представлению, полученному из QUIK.
+     * <p>
+     * В инкрементальном режиме из окна свечей декодируются только свечи, время которых не меньше
+     * времени последней зафиксированной (сжатой) свечи, поэтому затраты на опрос пропорциональны
+     * количеству новых свечей, а не размеру окна.
+     *
+     * @param candles json-объект, полученный из QUIK
+     * @return результат {@link UpdatableCandles#update(FinSeries)}
+     */
     public int update(final JSONObject candles) {
-        final FinSeries newSeries = QuikDecoder.candles(candles, timeShift, timeFilter);
-        return update(newSeries, null, null);
+        return commit(decode(candles));
     }
 
     public int update(final FinSeries newSeries) {
-        return update(newSeries, timeShift, timeFilter);
+        return commit(prepare(newSeries, timeShift, timeFilter));
+    }
+
+    /**
+     * Преобразовать json-представление свечей, полученное из QUIK, в свечи этого ряда
+     * (со сдвигом по времени, фильтрацией и сжатием) без слияния с {@link #updatableCandles}.
+     * В инкрементальном режиме декодируется только хвост окна, как в {@link #update(JSONObject)}.
+     *
+     * @param candles json-объект, полученный из QUIK
+     * @return свечи, готовые для {@link #commit(FinSeries)}
+     */
+    public FinSeries decode(final JSONObject candles) {
+        final long fromTimeCode = incremental ? lastTimeCode : Long.MIN_VALUE;
+        final FinSeries newSeries = QuikDecoder.candles(candles, timeShift, timeFilter, fromTimeCode);
+        return prepare(newSeries, null, null);
     }
 
-    private int update(FinSeries newSeries, final LongUnaryOperator timeShift, final LongPredicate timeFilter) {
+    /**
+     * Слить подготовленные свечи этого ряда с {@link #updatableCandles}.
+     *
+     * @param newSeries свечи, уже сдвинутые по времени, отфильтрованные и сжатые
+     * @return результат {@link UpdatableCandles#update(FinSeries)}
+     */
+    public int commit(final FinSeries newSeries) {
+        final LongColumn timeCode = newSeries.timeCode();
+        final int result = updatableCandles.update(newSeries);
+        if (timeCode.length() > 0) {
+            lastTimeCode = timeCode.get(timeCode.length() - 1);
+        }
+        return result;
+    }
+
+    private FinSeries prepare(FinSeries newSeries, final LongUnaryOperator timeShift, final LongPredicate timeFilter) {
         if (timeShift != null) {
             final LongColumn timeCode = newSeries.timeCode();
             for (int i = 0; i < timeCode.length(); i++) {
@@ -143,6 +206,48 @@ public class MarketDataSeries {
                     (t -> TimeCodes.getTimeFrameStart(t, timeframe, unit));
             newSeries = newSeries.compressedCandles(FinSeries.NO_TIME_SHIFT, timeFilter, timeFrameStartFunction, 0);
         }
-        return updatableCandles.update(newSeries);
+        return newSeries;
+    }
+
+    /**
+     * @return {@code true}, если свечи ряда можно строить по сделкам ({@link #getTradeTimeFrameStart(long)}):
+     * интервал свечей QUIK внутридневной, а для тиковых свечей задано сжатие
+     */
+    public boolean hasTimeFrame() {
+        return interval < 1440 && (interval > 0 || timeframe != -1);
+    }
+
+    /**
+     * Получить начало свечи этого ряда, которой принадлежит сделка, так же, как свечи QUIK преобразуются
+     * в {@link #decode(JSONObject)}: начало свечи QUIK, содержащей сделку, сдвигается по времени,
+     * проверяется фильтром и сжимается. Вызывается только для рядов, для которых {@link #hasTimeFrame()}.
+     *
+     * @param t исходное время сделки
+     * @return начало свечи или {@link Long#MIN_VALUE}, если свеча QUIK, содержащая сделку, не проходит фильтр
+     */
+    public long getTradeTimeFrameStart(final long t) {
+        long sourceStart = (interval > 0) ? TimeCodes.getTimeFrameStart(t, interval, TimeUnit.MINUTES) : t;
+        if (timeShift != null) {
+            sourceStart = timeShift.applyAsLong(sourceStart);
+        }
+        if (timeFilter != null && !timeFilter.test(sourceStart)) {
+            return Long.MIN_VALUE;
+        }
+        return (timeframe != -1) ? TimeCodes.getTimeFrameStart(sourceStart, timeframe, unit) : sourceStart;
+    }
+
+    /**
+     * @return время последней зафиксированной свечи или {@link Long#MIN_VALUE}, если свечей ещё не было
+     */
+    public long getLastTimeCode() {
+        return lastTimeCode;
+    }
+
+    /**
+     * Сбросить время последней зафиксированной свечи, чтобы следующее обновление в инкрементальном режиме
+     * было полным (например, после обнаружения разрыва в данных).
+     */
+    public void resetLastTimeCode() {
+        lastTimeCode = Long.MIN_VALUE;
     }
 }
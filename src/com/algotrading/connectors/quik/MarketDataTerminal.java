@@ -7,22 +7,39 @@ import com.simpleutils.quik.QuikConnect;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
-public class MarketDataTerminal {
+public class MarketDataTerminal implements RunnableTerminal {
 
     private final MarketDataQuikListener marketDataQuikListener;
     private final QuikConnect quikConnect;
     private final String terminalId;
+    private final RunnableQueueDrainer runnableQueueDrainer = new RunnableQueueDrainer();
+    private long drainBudgetNanos = Long.MAX_VALUE;
+    private int maxRunnablesPerDrain = Integer.MAX_VALUE;
+    private long metricsLogPeriodNanos = 0L;
+    private long nextMetricsLogTime;
 
     public static MarketDataTerminal newInstance(final AbstractLogger logger, final JSONObject config) {
         final MarketDataQuikListener marketDataQuikListener = new MarketDataQuikListener();
         marketDataQuikListener.configurate(logger, config);
         final QuikConnect quikConnect = QuikConnect.newInstance(config, marketDataQuikListener);
-        return new MarketDataTerminal(marketDataQuikListener, quikConnect,
+        final MarketDataTerminal terminal = new MarketDataTerminal(marketDataQuikListener, quikConnect,
                 JSONConfig.getString(config, "clientId"));
+        if (config.containsKey("drainBudgetMicros")) {
+            terminal.setDrainBudget(Duration.ofNanos(JSONConfig.getLong(config, "drainBudgetMicros") * 1000L));
+        }
+        if (config.containsKey("maxRunnablesPerDrain")) {
+            terminal.setMaxRunnablesPerDrain((int) JSONConfig.getLong(config, "maxRunnablesPerDrain"));
+        }
+        if (config.containsKey("metricsLogPeriod")) {
+            terminal.setMetricsLogPeriod(Duration.ofMillis(JSONConfig.getLong(config, "metricsLogPeriod")));
+        }
+        return terminal;
     }
 
     public MarketDataTerminal(final MarketDataQuikListener marketDataQuikListener,
@@ -38,26 +55,110 @@ public class MarketDataTerminal {
         return terminalId;
     }
 
+    public MarketDataQuikListener getMarketDataQuikListener() {
+        return marketDataQuikListener;
+    }
+
     public void start() {
         quikConnect.start();
     }
 
     public void step() {
-        processRunnables();
+        drain();
+        maintain();
+    }
+
+    /**
+     * Выполнить задачи из очереди слушателя в пределах ограничений {@link #setDrainBudget(Duration)}
+     * и {@link #setMaxRunnablesPerDrain(int)} и применить отложенные в режиме объединения обновления.
+     */
+    @Override
+    public int drain() {
+        final int count = runnableQueueDrainer.drain(marketDataQuikListener, drainBudgetNanos, maxRunnablesPerDrain);
+        marketDataQuikListener.flushConflatedUpdates();
+        return count;
+    }
+
+    @Override
+    public void maintain() {
         marketDataQuikListener.ensureConnection();
         marketDataQuikListener.ensureSubscription();
+        if (metricsLogPeriodNanos > 0L && System.nanoTime() - nextMetricsLogTime >= 0L) {
+            nextMetricsLogTime = System.nanoTime() + metricsLogPeriodNanos;
+            marketDataQuikListener.logMetrics();
+        }
     }
 
+    /**
+     * Выполнить все задачи из очереди слушателя.
+     */
     public void processRunnables() {
-        Runnable runnable;
-        while ((runnable = marketDataQuikListener.poll()) != null) {
-            try {
-                runnable.run();
-            } catch (final Exception e) {
-                marketDataQuikListener.logError("Cannot execute a runnable submitted by "
-                        + marketDataQuikListener.getClass().getSimpleName(), e);
-            }
+        runnableQueueDrainer.drain(marketDataQuikListener, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Выполнить задачи из очереди слушателя в пределах ограничений; оставшиеся задачи выполняются
+     * при следующем вызове. Отложенные в режиме объединения обновления применяются в конце вызова.
+     *
+     * @param budget       ограничение по времени (выполняемая задача не прерывается)
+     * @param maxRunnables ограничение по количеству задач
+     * @return количество выполненных задач
+     */
+    public int processRunnables(final Duration budget, final int maxRunnables) {
+        final int count = runnableQueueDrainer.drain(marketDataQuikListener, budget.toNanos(), maxRunnables);
+        marketDataQuikListener.flushConflatedUpdates();
+        return count;
+    }
+
+    /**
+     * @return метрики выполнения задач из очереди слушателя
+     */
+    public RunnableQueueDrainer getRunnableQueueDrainer() {
+        return runnableQueueDrainer;
+    }
+
+    /**
+     * @return метрики запросов к терминалу, колбэков и подписок
+     */
+    public QuikListenerMetrics getMetrics() {
+        return marketDataQuikListener.getMetrics();
+    }
+
+    /**
+     * Задать период записи метрик в журнал в {@link #step()}.
+     *
+     * @param period период или {@link Duration#ZERO}, если метрики не записываются
+     */
+    public void setMetricsLogPeriod(final Duration period) {
+        if (period.isNegative()) {
+            throw new IllegalArgumentException("Illegal metricsLogPeriod: " + period);
         }
+        metricsLogPeriodNanos = period.toNanos();
+        nextMetricsLogTime = System.nanoTime() + metricsLogPeriodNanos;
+    }
+
+    /**
+     * Задать ограничение по времени на выполнение задач в {@link #step()}.
+     *
+     * @param budget ограничение по времени
+     */
+    public void setDrainBudget(final Duration budget) {
+        if (budget.isNegative() || budget.isZero()) {
+            throw new IllegalArgumentException("Illegal drainBudget: " + budget);
+        }
+        drainBudgetNanos = budget.toNanos();
+    }
+
+    /**
+     * Задать ограничение по количеству задач, выполняемых в {@link #step()}.
+     *
+     * @param maxRunnablesPerDrain ограничение по количеству задач
+     */
+    public void setMaxRunnablesPerDrain(final int maxRunnablesPerDrain) {
+        if (maxRunnablesPerDrain <= 0) {
+            throw new IllegalArgumentException("Illegal maxRunnablesPerDrain: " + maxRunnablesPerDrain);
+        }
+        this.maxRunnablesPerDrain = maxRunnablesPerDrain;
     }
 
     public void shutdown() {
@@ -107,4 +208,63 @@ public class MarketDataTerminal {
     public JSONArray getQuoteLevel2(final Set<ClassSecCode> classSecCodes) throws ExecutionException, InterruptedException {
         return marketDataQuikListener.getQuoteLevel2(classSecCodes);
     }
+
+    public CompletableFuture<JSONObject> getSecurityInfoAsync(final String classCode,
+                                                              final String secCode) {
+        return marketDataQuikListener.getSecurityInfoAsync(classCode, secCode);
+    }
+
+    public CompletableFuture<JSONObject> getSecurityInfoAsync(final String classCode,
+                                                              final String secCode,
+                                                              final Duration timeout) {
+        return marketDataQuikListener.getSecurityInfoAsync(classCode, secCode, timeout);
+    }
+
+    public CompletableFuture<JSONObject> getParamsAsync(final String classCode,
+                                                        final String secCode,
+                                                        final Collection<String> parameters) {
+        return marketDataQuikListener.getParamsAsync(classCode, secCode, parameters);
+    }
+
+    public CompletableFuture<JSONObject> getParamsAsync(final String classCode,
+                                                        final String secCode,
+                                                        final Collection<String> parameters,
+                                                        final Duration timeout) {
+        return marketDataQuikListener.getParamsAsync(classCode, secCode, parameters, timeout);
+    }
+
+    public CompletableFuture<JSONObject> getCandlesAsync(final String classCode,
+                                                         final String secCode,
+                                                         final int interval,
+                                                         final int maxSize) {
+        return marketDataQuikListener.getCandlesAsync(classCode, secCode, interval, maxSize);
+    }
+
+    public CompletableFuture<JSONObject> getCandlesAsync(final String classCode,
+                                                         final String secCode,
+                                                         final int interval,
+                                                         final int maxSize,
+                                                         final Duration timeout) {
+        return marketDataQuikListener.getCandlesAsync(classCode, secCode, interval, maxSize, timeout);
+    }
+
+    public CompletableFuture<JSONObject> getQuoteLevel2Async(final String classCode,
+                                                             final String secCode) {
+        return marketDataQuikListener.getQuoteLevel2Async(classCode, secCode);
+    }
+
+    public CompletableFuture<JSONObject> getQuoteLevel2Async(final String classCode,
+                                                             final String secCode,
+                                                             final Duration timeout) {
+        return marketDataQuikListener.getQuoteLevel2Async(classCode, secCode, timeout);
+    }
+
+    public CompletableFuture<JSONArray> getQuoteLevel2Async(final Set<ClassSecCode> classSecCodes) {
+        return marketDataQuikListener.getQuoteLevel2Async(classSecCodes);
+    }
+
+    public CompletableFuture<JSONArray> getQuoteLevel2Async(final Set<ClassSecCode> classSecCodes,
+                                                            final Duration timeout) {
+        return marketDataQuikListener.getQuoteLevel2Async(classSecCodes, timeout);
+    }
 }
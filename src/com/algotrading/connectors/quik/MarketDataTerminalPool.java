@@ -0,0 +1,510 @@
+package com.algotrading.connectors.quik;
+
+import com.simpleutils.json.JSONConfig;
+import com.simpleutils.logs.AbstractLogger;
+import com.simpleutils.quik.ClassSecCode;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static com.algotrading.connectors.quik.ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY;
+
+/**
+ * Пул терминалов рыночных данных: инструменты распределяются между несколькими терминалами QUIK,
+ * а запросы по инструменту направляются в терминал, за которым он закреплён.
+ * <p>
+ * Распределение выполняется по коду класса (все инструменты класса -- в одном терминале)
+ * или по нагрузке (инструмент -- в терминал с наименьшим количеством инструментов).
+ * Если терминал находится не в сети дольше заданной задержки, его инструменты вместе с подписками,
+ * подписчиками на изменения стаканов и лентами обезличенных сделок переносятся в терминалы, находящиеся в сети.
+ * Лента переносится тем же экземпляром с отметкой разрыва ({@link TradeTape#markGap()}), поэтому её читатели
+ * продолжают работу и синхронизируются заново.
+ * <p>
+ * Все методы вызываются из одного потока -- того же, который обрабатывает колбэки терминалов
+ * ({@link #step()} и {@link #processRunnables()}): при переносе инструментов параметры добавляются
+ * в слушатели терминалов этим потоком, как того требует {@link SecurityParametersTable}.
+ */
+public class MarketDataTerminalPool implements RunnableTerminal {
+
+    /**
+     * Способ распределения инструментов между терминалами.
+     */
+    public enum Sharding {
+        /**
+         * Инструменты одного класса закрепляются за одним терминалом.
+         */
+        CLASS_CODE,
+        /**
+         * Каждый инструмент закрепляется за терминалом с наименьшим количеством инструментов.
+         */
+        LEAST_LOADED
+    }
+
+    private static class Security {
+        final ClassSecCode classSecCode;
+        final Set<String> parameters = new LinkedHashSet<>();
+        final Set<Integer> intervals = new LinkedHashSet<>();
+        boolean level2Quotes;
+        int terminalIndex = -1;
+
+        Security(final ClassSecCode classSecCode) {
+            this.classSecCode = classSecCode;
+        }
+    }
+
+    private final MarketDataTerminal[] terminals;
+    private final Sharding sharding;
+    private final long rebalanceDelayMillis;
+    /**
+     * Количество инструментов, закреплённых за терминалами.
+     */
+    private final int[] loads;
+    /**
+     * Момент перехода терминалов в состояние "не в сети" (System.currentTimeMillis()) или 0, если терминал в сети.
+     */
+    private final long[] offlineSince;
+    /**
+     * Инструменты по идентификаторам в {@link ClassSecCodeRegistry}.
+     */
+    private Security[] securities = new Security[0];
+    private final List<Security> securityList = new ArrayList<>();
+    private final Map<String, Integer> classCodeTerminals = new HashMap<>();
+
+    /**
+     * Создать пул по настройкам: {@code terminals} -- массив настроек терминалов в формате
+     * {@link MarketDataTerminal#newInstance(AbstractLogger, JSONObject)}, {@code sharding} -- "classCode"
+     * или "leastLoaded" (по умолчанию "classCode"), {@code rebalanceDelay} -- задержка перед переносом
+     * инструментов из терминала не в сети в миллисекундах (по умолчанию 60000).
+     *
+     * @param logger логгер
+     * @param config json-объект с настройками
+     * @return пул терминалов
+     */
+    public static MarketDataTerminalPool newInstance(final AbstractLogger logger, final JSONObject config) {
+        final JSONArray array = JSONConfig.getJSONArray(config, "terminals");
+        final List<MarketDataTerminal> terminals = new ArrayList<>(array.size());
+        for (final Object o : array) {
+            terminals.add(MarketDataTerminal.newInstance(logger, (JSONObject) o));
+        }
+        final Sharding sharding;
+        if (config.get("sharding") instanceof String shardingString) {
+            sharding = switch (shardingString) {
+                case "classCode" -> Sharding.CLASS_CODE;
+                case "leastLoaded" -> Sharding.LEAST_LOADED;
+                default -> throw new IllegalArgumentException("Illegal sharding: " + shardingString);
+            };
+        } else {
+            sharding = Sharding.CLASS_CODE;
+        }
+        final long rebalanceDelayMillis = config.containsKey("rebalanceDelay")
+                ? JSONConfig.getLong(config, "rebalanceDelay") : 60_000L;
+        return new MarketDataTerminalPool(terminals, sharding, rebalanceDelayMillis);
+    }
+
+    /**
+     * Конструктор.
+     *
+     * @param terminals            терминалы
+     * @param sharding             способ распределения инструментов
+     * @param rebalanceDelayMillis задержка перед переносом инструментов из терминала не в сети в миллисекундах
+     */
+    public MarketDataTerminalPool(final List<MarketDataTerminal> terminals,
+                                  final Sharding sharding,
+                                  final long rebalanceDelayMillis) {
+        if (terminals.isEmpty()) {
+            throw new IllegalArgumentException("Illegal terminals: empty");
+        }
+        if (rebalanceDelayMillis < 0L) {
+            throw new IllegalArgumentException("Illegal rebalanceDelay: " + rebalanceDelayMillis);
+        }
+        this.terminals = terminals.toArray(new MarketDataTerminal[0]);
+        this.sharding = Objects.requireNonNull(sharding);
+        this.rebalanceDelayMillis = rebalanceDelayMillis;
+        loads = new int[this.terminals.length];
+        offlineSince = new long[this.terminals.length];
+    }
+
+    public List<MarketDataTerminal> getTerminals() {
+        return List.of(terminals);
+    }
+
+    /**
+     * @param classCode код класса
+     * @param secCode   код инструмента
+     * @return терминал, за которым закреплён инструмент, или {@code null}, если инструмент не закреплён
+     * (на него не оформлялась подписка)
+     */
+    public MarketDataTerminal getTerminal(final String classCode, final String secCode) {
+        final int securityId = CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode);
+        final Security security = (securityId >= 0 && securityId < securities.length) ? securities[securityId] : null;
+        return (security == null) ? null : terminals[security.terminalIndex];
+    }
+
+    /**
+     * @return терминал для запроса по инструменту: терминал, за которым закреплён инструмент, а если
+     * инструмент не закреплён -- терминал его класса или наименее загруженный терминал (инструмент при этом
+     * не закрепляется)
+     */
+    private MarketDataTerminal route(final String classCode, final String secCode) {
+        final MarketDataTerminal terminal = getTerminal(classCode, secCode);
+        if (terminal != null) {
+            return terminal;
+        }
+        final Integer classCodeTerminal = (sharding == Sharding.CLASS_CODE) ? classCodeTerminals.get(classCode) : null;
+        return terminals[(classCodeTerminal != null) ? classCodeTerminal : leastLoaded(System.currentTimeMillis())];
+    }
+
+    /**
+     * @param terminalIndex индекс терминала
+     * @return количество инструментов, закреплённых за терминалом
+     */
+    public int getLoad(final int terminalIndex) {
+        return loads[terminalIndex];
+    }
+
+    public void addSecurityParameters(final ClassSecCode classSecCode, final Collection<String> parameters) {
+        final Security security = getSecurity(CLASS_SEC_CODE_REGISTRY.register(classSecCode));
+        security.parameters.addAll(parameters);
+        terminals[security.terminalIndex].getMarketDataQuikListener().addSecurityParameters(classSecCode, parameters);
+    }
+
+    public void addSecurityCandles(final ClassSecCode classSecCode, final Collection<Integer> intervals) {
+        final Security security = getSecurity(CLASS_SEC_CODE_REGISTRY.register(classSecCode));
+        security.intervals.addAll(intervals);
+        terminals[security.terminalIndex].getMarketDataQuikListener().addSecurityCandles(classSecCode, intervals);
+    }
+
+    public void addLevel2Quotes(final ClassSecCode classSecCode) {
+        final Security security = getSecurity(CLASS_SEC_CODE_REGISTRY.register(classSecCode));
+        security.level2Quotes = true;
+        terminals[security.terminalIndex].getMarketDataQuikListener().addLevel2Quotes(classSecCode);
+    }
+
+    /**
+     * Добавить подписчика на изменения стакана котировок инструмента в терминал, за которым закреплён
+     * инструмент. При переносе инструмента подписчик переносится вместе с ним.
+     *
+     * @param classSecCode инструмент
+     * @param subscriber   подписчик
+     */
+    public void addQuoteLevel2Subscriber(final ClassSecCode classSecCode, final QuoteLevel2Books.Subscriber subscriber) {
+        final Security security = getSecurity(CLASS_SEC_CODE_REGISTRY.register(classSecCode));
+        security.level2Quotes = true;
+        terminals[security.terminalIndex].getMarketDataQuikListener().addQuoteLevel2Subscriber(classSecCode, subscriber);
+    }
+
+    /**
+     * Добавить ленту обезличенных сделок инструмента в терминал, за которым закреплён инструмент.
+     * При переносе инструмента лента переносится вместе с ним.
+     *
+     * @param classSecCode инструмент
+     * @param capacity     ёмкость ленты
+     * @return лента сделок
+     */
+    public TradeTape addTradeTape(final ClassSecCode classSecCode, final int capacity) {
+        final Security security = getSecurity(CLASS_SEC_CODE_REGISTRY.register(classSecCode));
+        return terminals[security.terminalIndex].getMarketDataQuikListener().addTradeTape(classSecCode, capacity);
+    }
+
+    public void start() {
+        for (final MarketDataTerminal terminal : terminals) {
+            terminal.start();
+        }
+    }
+
+    public void step() {
+        drain();
+        maintain();
+    }
+
+    @Override
+    public int drain() {
+        int count = 0;
+        for (final MarketDataTerminal terminal : terminals) {
+            count += terminal.drain();
+        }
+        return count;
+    }
+
+    /**
+     * Обслужить терминалы и перенести инструменты из терминалов, находящихся не в сети.
+     */
+    @Override
+    public void maintain() {
+        for (final MarketDataTerminal terminal : terminals) {
+            terminal.maintain();
+        }
+        rebalance();
+    }
+
+    public void processRunnables() {
+        for (final MarketDataTerminal terminal : terminals) {
+            terminal.processRunnables();
+        }
+    }
+
+    public void shutdown() {
+        for (final MarketDataTerminal terminal : terminals) {
+            terminal.shutdown();
+        }
+    }
+
+    /**
+     * @return {@code true}, если все терминалы в сети
+     */
+    public boolean isOnline() {
+        for (final MarketDataTerminal terminal : terminals) {
+            if (!terminal.isOnline()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true}, если подписки всех терминалов оформлены
+     */
+    public boolean isSubscribed() {
+        for (final MarketDataTerminal terminal : terminals) {
+            if (!terminal.isSubscribed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true}, если все терминалы синхронизированы
+     */
+    public boolean isSynchronized() throws ExecutionException, InterruptedException {
+        for (final MarketDataTerminal terminal : terminals) {
+            if (!terminal.isSynchronized()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true}, если состояние синхронизации изменилось хотя бы у одного терминала
+     */
+    public boolean isSynchronizedChanged() {
+        boolean isChanged = false;
+        for (final MarketDataTerminal terminal : terminals) {
+            isChanged |= terminal.isSynchronizedChanged();
+        }
+        return isChanged;
+    }
+
+    /**
+     * Перенести инструменты из терминалов, находящихся не в сети дольше {@code rebalanceDelay},
+     * в терминалы, находящиеся в сети, вместе с подписчиками на изменения стаканов и лентами сделок
+     * и оформить для них подписки. Вызывается из {@link #maintain()}.
+     */
+    public void rebalance() {
+        final long now = System.currentTimeMillis();
+        boolean hasOnline = false;
+        boolean hasFailed = false;
+        for (int i = 0; i < terminals.length; i++) {
+            if (terminals[i].isOnline()) {
+                offlineSince[i] = 0L;
+                hasOnline = true;
+            } else {
+                if (offlineSince[i] == 0L) {
+                    offlineSince[i] = now;
+                }
+                hasFailed |= isFailed(i, now) && loads[i] > 0;
+            }
+        }
+        if (!hasOnline || !hasFailed) {
+            return;
+        }
+        final boolean[] isChanged = new boolean[terminals.length];
+        for (final Security security : securityList) {
+            final int from = security.terminalIndex;
+            if (!isFailed(from, now)) {
+                continue;
+            }
+            final MarketDataQuikListener fromListener = terminals[from].getMarketDataQuikListener();
+            final List<QuoteLevel2Books.Subscriber> subscribers =
+                    fromListener.getQuoteLevel2Subscribers(security.classSecCode);
+            final TradeTape tradeTape = fromListener.getTradeTape(
+                    security.classSecCode.classCode(), security.classSecCode.secCode());
+            fromListener.removeSecurity(security.classSecCode);
+            // Подписчики могли быть добавлены непосредственно в слушатель терминала
+            security.level2Quotes |= !subscribers.isEmpty();
+            loads[from]--;
+            final int to;
+            if (sharding == Sharding.CLASS_CODE) {
+                final String classCode = security.classSecCode.classCode();
+                final int classCodeTerminal = classCodeTerminals.get(classCode);
+                to = isFailed(classCodeTerminal, now) ? leastLoaded(now) : classCodeTerminal;
+                classCodeTerminals.put(classCode, to);
+            } else {
+                to = leastLoaded(now);
+            }
+            attach(security, to);
+            final MarketDataQuikListener toListener = terminals[to].getMarketDataQuikListener();
+            for (final QuoteLevel2Books.Subscriber subscriber : subscribers) {
+                toListener.addQuoteLevel2Subscriber(security.classSecCode, subscriber);
+            }
+            if (tradeTape != null) {
+                // Сделки за время недоступности терминала не получены
+                tradeTape.markGap();
+                toListener.addTradeTape(security.classSecCode, tradeTape);
+            }
+            isChanged[to] = true;
+        }
+        for (int i = 0; i < terminals.length; i++) {
+            if (isChanged[i]) {
+                terminals[i].getMarketDataQuikListener().subscribe();
+            }
+        }
+    }
+
+    private boolean isFailed(final int terminalIndex, final long now) {
+        return offlineSince[terminalIndex] != 0L && now - offlineSince[terminalIndex] >= rebalanceDelayMillis;
+    }
+
+    /**
+     * @return индекс наименее загруженного терминала среди терминалов в сети,
+     * а если таких нет -- среди терминалов, не признанных недоступными
+     */
+    private int leastLoaded(final long now) {
+        int best = -1;
+        for (int pass = 0; pass < 2 && best < 0; pass++) {
+            for (int i = 0; i < terminals.length; i++) {
+                final boolean isCandidate = (pass == 0) ? offlineSince[i] == 0L : !isFailed(i, now);
+                if (isCandidate && (best < 0 || loads[i] < loads[best])) {
+                    best = i;
+                }
+            }
+        }
+        if (best < 0) {
+            for (int i = 0; i < terminals.length; i++) {
+                if (best < 0 || loads[i] < loads[best]) {
+                    best = i;
+                }
+            }
+        }
+        return best;
+    }
+
+    private Security getSecurity(final int securityId) {
+        if (securityId >= securities.length) {
+            securities = Arrays.copyOf(securities, Math.max(Math.max(16, securityId + 1), securities.length * 2));
+        }
+        Security security = securities[securityId];
+        if (security == null) {
+            security = new Security(CLASS_SEC_CODE_REGISTRY.get(securityId));
+            securities[securityId] = security;
+            securityList.add(security);
+            final long now = System.currentTimeMillis();
+            final int terminalIndex;
+            if (sharding == Sharding.CLASS_CODE) {
+                terminalIndex = classCodeTerminals.computeIfAbsent(security.classSecCode.classCode(), k -> leastLoaded(now));
+            } else {
+                terminalIndex = leastLoaded(now);
+            }
+            attach(security, terminalIndex);
+        }
+        return security;
+    }
+
+    private void attach(final Security security, final int terminalIndex) {
+        security.terminalIndex = terminalIndex;
+        loads[terminalIndex]++;
+        final MarketDataQuikListener listener = terminals[terminalIndex].getMarketDataQuikListener();
+        if (!security.parameters.isEmpty()) {
+            listener.addSecurityParameters(security.classSecCode, security.parameters);
+        }
+        if (!security.intervals.isEmpty()) {
+            listener.addSecurityCandles(security.classSecCode, security.intervals);
+        }
+        if (security.level2Quotes) {
+            listener.addLevel2Quotes(security.classSecCode);
+        }
+    }
+
+    public JSONObject getSecurityInfo(final String classCode,
+                                      final String secCode) throws ExecutionException, InterruptedException {
+        return route(classCode, secCode).getSecurityInfo(classCode, secCode);
+    }
+
+    public JSONObject getParams(final String classCode,
+                                final String secCode,
+                                final Collection<String> parameters) throws ExecutionException, InterruptedException {
+        return route(classCode, secCode).getParams(classCode, secCode, parameters);
+    }
+
+    public JSONObject getCandles(final String classCode,
+                                 final String secCode,
+                                 final int interval,
+                                 final int maxSize) throws ExecutionException, InterruptedException {
+        return route(classCode, secCode).getCandles(classCode, secCode, interval, maxSize);
+    }
+
+    public JSONObject getQuoteLevel2(final String classCode,
+                                     final String secCode) throws ExecutionException, InterruptedException {
+        return route(classCode, secCode).getQuoteLevel2(classCode, secCode);
+    }
+
+    /**
+     * Запросы направляются в терминалы, за которыми закреплены инструменты; результаты объединяются.
+     */
+    @SuppressWarnings("unchecked")
+    public JSONArray getQuoteLevel2(final Set<ClassSecCode> classSecCodes) throws ExecutionException, InterruptedException {
+        final JSONArray result = new JSONArray();
+        for (final Map.Entry<MarketDataTerminal, Set<ClassSecCode>> entry : groupByTerminal(classSecCodes).entrySet()) {
+            result.addAll(entry.getKey().getQuoteLevel2(entry.getValue()));
+        }
+        return result;
+    }
+
+    public CompletableFuture<JSONObject> getSecurityInfoAsync(final String classCode,
+                                                              final String secCode) {
+        return route(classCode, secCode).getSecurityInfoAsync(classCode, secCode);
+    }
+
+    public CompletableFuture<JSONObject> getParamsAsync(final String classCode,
+                                                        final String secCode,
+                                                        final Collection<String> parameters) {
+        return route(classCode, secCode).getParamsAsync(classCode, secCode, parameters);
+    }
+
+    public CompletableFuture<JSONObject> getCandlesAsync(final String classCode,
+                                                         final String secCode,
+                                                         final int interval,
+                                                         final int maxSize) {
+        return route(classCode, secCode).getCandlesAsync(classCode, secCode, interval, maxSize);
+    }
+
+    public CompletableFuture<JSONObject> getQuoteLevel2Async(final String classCode,
+                                                             final String secCode) {
+        return route(classCode, secCode).getQuoteLevel2Async(classCode, secCode);
+    }
+
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<JSONArray> getQuoteLevel2Async(final Set<ClassSecCode> classSecCodes) {
+        CompletableFuture<JSONArray> result = CompletableFuture.completedFuture(new JSONArray());
+        for (final Map.Entry<MarketDataTerminal, Set<ClassSecCode>> entry : groupByTerminal(classSecCodes).entrySet()) {
+            result = result.thenCombine(entry.getKey().getQuoteLevel2Async(entry.getValue()), (a, b) -> {
+                a.addAll(b);
+                return a;
+            });
+        }
+        return result;
+    }
+
+    private Map<MarketDataTerminal, Set<ClassSecCode>> groupByTerminal(final Set<ClassSecCode> classSecCodes) {
+        final Map<MarketDataTerminal, Set<ClassSecCode>> map = new LinkedHashMap<>();
+        for (final ClassSecCode classSecCode : classSecCodes) {
+            map.computeIfAbsent(route(classSecCode.classCode(), classSecCode.secCode()),
+                    k -> new LinkedHashSet<>()).add(classSecCode);
+        }
+        return map;
+    }
+}
@@ -0,0 +1,40 @@
+package com.algotrading.connectors.quik;
+
+/**
+ * Обезличенная сделка (колбэк OnAllTrade). Объект переиспользуется слушателем для всех событий
+ * и действителен только во время вызова обработчика.
+ */
+public class QuikAllTradeEvent {
+    /**
+     * Номер сделки на бирже.
+     */
+    public long tradeNum;
+    /**
+     * Код класса.
+     */
+    public String classCode;
+    /**
+     * Код инструмента.
+     */
+    public String secCode;
+    /**
+     * Идентификатор инструмента в {@link ClassSecCodeRegistry} или -1, если инструмент не зарегистрирован.
+     */
+    public int securityId;
+    /**
+     * Цена.
+     */
+    public double price;
+    /**
+     * Количество.
+     */
+    public long quantity;
+    /**
+     * Направление: {@link TradeTape#SIDE_BUY}, {@link TradeTape#SIDE_SELL} или {@link TradeTape#SIDE_UNKNOWN}.
+     */
+    public int side;
+    /**
+     * Время сделки.
+     */
+    public long timeCode;
+}
@@ -5,6 +5,8 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 
@@ -60,6 +62,40 @@ public class QuikCalendar {
         }
     }
 
+    /**
+     * Получить торговую дату, к которой относится момент времени. Если работа терминала начинается в одни
+     * сутки и заканчивается в следующие, то время до hhmmssTill относится к предыдущей дате.
+     *
+     * @param epochMillis момент времени (System.currentTimeMillis())
+     * @return торговая дата в формате yyyymmdd
+     */
+    public int getTradingDate(final long epochMillis) {
+        ZonedDateTime dt = Instant.ofEpochMilli(epochMillis).atZone(zoneId);
+        final int hhmmss = dt.getHour() * 10000 + dt.getMinute() * 100 + dt.getSecond();
+        if (hhmmssFrom > hhmmssTill && hhmmss < hhmmssTill) {
+            dt = dt.minusDays(1);
+        }
+        return dt.getYear() * 10000 + dt.getMonthValue() * 100 + dt.getDayOfMonth();
+    }
+
+    /**
+     * Получить момент окончания торговой даты, к которой относится заданный момент времени:
+     * полночь, если работа терминала происходит внутри одних суток, или hhmmssTill в противном случае.
+     *
+     * @param epochMillis момент времени (System.currentTimeMillis())
+     * @return момент начала следующей торговой даты (System.currentTimeMillis())
+     */
+    public long getTradingDateEnd(final long epochMillis) {
+        final ZonedDateTime dt = Instant.ofEpochMilli(epochMillis).atZone(zoneId);
+        final LocalTime boundary = (hhmmssFrom <= hhmmssTill) ? LocalTime.MIDNIGHT
+                : LocalTime.of((int) (hhmmssTill / 10000), (int) (hhmmssTill / 100 % 100), (int) (hhmmssTill % 100));
+        ZonedDateTime end = dt.with(boundary);
+        if (!end.isAfter(dt)) {
+            end = dt.plusDays(1).with(boundary);
+        }
+        return end.toInstant().toEpochMilli();
+    }
+
     private void updateDateTime() {
         final ZonedDateTime now = ZonedDateTime.now(zoneId);
         if (now.isAfter(dt)) {
@@ -0,0 +1,52 @@
+package com.algotrading.connectors.quik;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Колбэки терминала QUIK, обрабатываемые слушателями. Имя колбэка преобразуется в элемент перечисления
+ * один раз на событие, и этот элемент используется и для диспетчеризации, и для объединения обновлений.
+ * Преобразование -- поиск в хеш-таблице (вычисление хеш-кода имени и одно сравнение строк), то есть
+ * стоит столько же, сколько {@code switch} по строке.
+ */
+public enum QuikCallback {
+    ON_TRANS_REPLY("OnTransReply"),
+    ON_ORDER("OnOrder"),
+    ON_STOP_ORDER("OnStopOrder"),
+    ON_TRADE("OnTrade"),
+    ON_ALL_TRADE("OnAllTrade"),
+    ON_QUOTE("OnQuote"),
+    ON_PARAM("OnParam"),
+    /**
+     * Прочие колбэки, обрабатываемые базовым слушателем.
+     */
+    OTHER(null);
+
+    private static final Map<String, QuikCallback> CALLBACKS = new HashMap<>();
+
+    static {
+        for (final QuikCallback quikCallback : values()) {
+            if (quikCallback.callbackName != null) {
+                CALLBACKS.put(quikCallback.callbackName, quikCallback);
+            }
+        }
+    }
+
+    /**
+     * Имя колбэка в терминале QUIK.
+     */
+    public final String callbackName;
+
+    QuikCallback(final String callbackName) {
+        this.callbackName = callbackName;
+    }
+
+    /**
+     * @param callbackName имя колбэка в терминале QUIK
+     * @return элемент перечисления или {@link #OTHER}, если колбэк не обрабатывается слушателями
+     */
+    public static QuikCallback of(final String callbackName) {
+        final QuikCallback quikCallback = CALLBACKS.get(callbackName);
+        return (quikCallback == null) ? OTHER : quikCallback;
+    }
+}
@@ -0,0 +1,450 @@
+package com.algotrading.connectors.quik;
+
+import com.algotrading.base.core.columns.DoubleColumn;
+import com.algotrading.base.core.columns.LongColumn;
+import com.algotrading.base.core.series.FinSeries;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Потоковый разбор json-представления свечей, полученного из QUIK, без построения дерева json-объектов.
+ * <p>
+ * Текст вида {@code {"size":N,"T":[...],"O":[...],"H":[...],"L":[...],"C":[...],"V":[...]}}
+ * (или ответ терминала, содержащий такой объект в поле {@code result}) разбирается за один проход
+ * в переиспользуемые массивы примитивов, которые затем записываются в колонки {@link FinSeries}.
+ * <p>
+ * Экземпляр класса не является потокобезопасным, но может многократно использоваться одним потоком.
+ */
+public class QuikCandlesParser {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private CharSequence s;
+    private int pos;
+    private int end;
+
+    private int size;
+    private long[] arrayT = new long[0];
+    private int[] offsetsT = new int[0];
+    private int[] lengthsT = new int[0];
+    private double[] arrayO = new double[0];
+    private double[] arrayH = new double[0];
+    private double[] arrayL = new double[0];
+    private double[] arrayC = new double[0];
+    private double[] arrayV = new double[0];
+    private int lengthT;
+    private int lengthO;
+    private int lengthH;
+    private int lengthL;
+    private int lengthC;
+    private int lengthV;
+    private int count;
+
+    /**
+     * Преобразовать текстовое json-представление свечей в объект типа {@link FinSeries}
+     * со сдвигом по времени и фильтрацией.
+     *
+     * @param json       текст json-объекта, полученного из QUIK
+     * @param timeShift  временной сдвиг; если {@code null}, то не применяется
+     * @param timeFilter фильтр по времени свечи; если {@code null}, то не применяется
+     * @return временной ряд
+     * @throws IllegalArgumentException если текст не является корректным json-представлением свечей
+     */
+    public FinSeries parse(final CharSequence json,
+                           final LongUnaryOperator timeShift,
+                           final LongPredicate timeFilter) {
+        s = json;
+        pos = 0;
+        end = json.length();
+        size = -1;
+        lengthT = lengthO = lengthH = lengthL = lengthC = lengthV = 0;
+        try {
+            skipWhitespace();
+            parseObject();
+            skipWhitespace();
+            if (pos != end) {
+                throw illegal("Unexpected trailing characters");
+            }
+        } finally {
+            s = null;
+        }
+        if (size < 0 || lengthT < size || lengthO < size || lengthH < size
+            || lengthL < size || lengthC < size || lengthV < size) {
+            throw new IllegalArgumentException("Illegal candles: size=" + size);
+        }
+        final FinSeries series = FinSeries.newCandles();
+        final LongColumn timeCode = series.timeCode();
+        final DoubleColumn open = series.open();
+        final DoubleColumn high = series.high();
+        final DoubleColumn low = series.low();
+        final DoubleColumn close = series.close();
+        final LongColumn volume = series.volume();
+        for (int i = 0; i < size; i++) {
+            long t = arrayT[i];
+            if (timeShift != null) {
+                t = timeShift.applyAsLong(t);
+            }
+            if (timeFilter == null || timeFilter.test(t)) {
+                timeCode.append(t);
+                open.append(arrayO[i]);
+                high.append(arrayH[i]);
+                low.append(arrayL[i]);
+                close.append(arrayC[i]);
+                volume.append((long) arrayV[i]);
+            }
+        }
+        return series;
+    }
+
+    private void parseObject() {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            final int keyFrom = pos;
+            skipStringBody();
+            final int keyTo = pos - 1;
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            parseValue(keyFrom, keyTo - keyFrom);
+            skipWhitespace();
+            final char c = next();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                throw illegal("Expected ',' or '}'");
+            }
+        }
+    }
+
+    private void parseValue(final int keyFrom, final int keyLength) {
+        if (keyLength == 1) {
+            switch (s.charAt(keyFrom)) {
+                case 'T' -> {
+                    parseTimestamps();
+                    return;
+                }
+                case 'O' -> {
+                    arrayO = parseNumbers(arrayO);
+                    lengthO = count;
+                    return;
+                }
+                case 'H' -> {
+                    arrayH = parseNumbers(arrayH);
+                    lengthH = count;
+                    return;
+                }
+                case 'L' -> {
+                    arrayL = parseNumbers(arrayL);
+                    lengthL = count;
+                    return;
+                }
+                case 'C' -> {
+                    arrayC = parseNumbers(arrayC);
+                    lengthC = count;
+                    return;
+                }
+                case 'V' -> {
+                    arrayV = parseNumbers(arrayV);
+                    lengthV = count;
+                    return;
+                }
+                default -> {
+                }
+            }
+        } else if (regionEquals(keyFrom, keyLength, "size")) {
+            final double d = parseNumber();
+            if (d != (int) d) {
+                throw illegal("Illegal size");
+            }
+            size = (int) d;
+            return;
+        } else if (regionEquals(keyFrom, keyLength, "result") && peek() == '{') {
+            parseObject();
+            return;
+        }
+        skipValue();
+    }
+
+    private void parseTimestamps() {
+        expect('[');
+        count = 0;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            lengthT = 0;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            final int from = pos;
+            skipStringBody();
+            if (count == arrayT.length) {
+                arrayT = Arrays.copyOf(arrayT, Math.max(16, count * 2));
+            }
+            if (s instanceof AsciiCharSequence ascii) {
+                // Метки времени в массиве байтов разбираются одним пакетом после прохода по массиву
+                if (count == offsetsT.length) {
+                    offsetsT = Arrays.copyOf(offsetsT, arrayT.length);
+                    lengthsT = Arrays.copyOf(lengthsT, arrayT.length);
+                }
+                offsetsT[count] = ascii.offset + from;
+                lengthsT[count++] = pos - 1 - from;
+            } else {
+                arrayT[count++] = QuikDecoder.parseTimestamp(s, from, pos - 1 - from);
+            }
+            if (endOfArray()) {
+                if (s instanceof AsciiCharSequence ascii) {
+                    QuikDecoder.parseTimestamps(ascii.bytes, offsetsT, lengthsT, count, arrayT);
+                }
+                lengthT = count;
+                return;
+            }
+        }
+    }
+
+    private double[] parseNumbers(double[] array) {
+        expect('[');
+        count = 0;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return array;
+        }
+        while (true) {
+            skipWhitespace();
+            if (count == array.length) {
+                array = Arrays.copyOf(array, Math.max(16, count * 2));
+            }
+            array[count++] = parseNumber();
+            if (endOfArray()) {
+                return array;
+            }
+        }
+    }
+
+    private boolean endOfArray() {
+        skipWhitespace();
+        final char c = next();
+        if (c == ']') {
+            return true;
+        }
+        if (c != ',') {
+            throw illegal("Expected ',' or ']'");
+        }
+        return false;
+    }
+
+    /**
+     * Разобрать число (возможно, записанное в виде строки). Для чисел, которые представимы точно
+     * (не более 15-16 значащих цифр, не более 22 знаков после точки, без экспоненты), значение вычисляется
+     * без создания промежуточных объектов и совпадает с результатом {@link Double#parseDouble(String)};
+     * в остальных случаях используется {@link Double#parseDouble(String)}.
+     */
+    private double parseNumber() {
+        final boolean quoted = peek() == '"';
+        if (quoted) {
+            pos++;
+        }
+        final int from = pos;
+        boolean negative = false;
+        if (pos < end && s.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0L;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        boolean exact = true;
+        while (pos < end) {
+            final char c = s.charAt(pos);
+            if ('0' <= c && c <= '9') {
+                if (mantissa <= MAX_EXACT_MANTISSA) {
+                    mantissa = mantissa * 10L + (c - '0');
+                } else {
+                    exact = false;
+                }
+                digits++;
+                if (fraction) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else if (c == 'e' || c == 'E' || c == '+' || c == '-') {
+                exact = false;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        final int to = pos;
+        if (quoted) {
+            expect('"');
+        }
+        if (digits == 0) {
+            throw illegal("Illegal number");
+        }
+        if (exact && mantissa <= MAX_EXACT_MANTISSA && fractionDigits < POWERS_OF_TEN.length) {
+            final double d = (fractionDigits == 0) ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -d : d;
+        }
+        try {
+            return Double.parseDouble(s.subSequence(from, to).toString());
+        } catch (final NumberFormatException e) {
+            throw illegal("Illegal number");
+        }
+    }
+
+    private void skipValue() {
+        final char c = peek();
+        switch (c) {
+            case '"' -> {
+                pos++;
+                skipStringBody();
+            }
+            case '{', '[' -> {
+                int depth = 0;
+                do {
+                    final char d = next();
+                    if (d == '"') {
+                        skipStringBody();
+                    } else if (d == '{' || d == '[') {
+                        depth++;
+                    } else if (d == '}' || d == ']') {
+                        depth--;
+                    }
+                } while (depth > 0);
+            }
+            default -> {
+                final int from = pos;
+                while (pos < end) {
+                    final char d = s.charAt(pos);
+                    if (d == ',' || d == '}' || d == ']' || Character.isWhitespace(d)) {
+                        break;
+                    }
+                    pos++;
+                }
+                if (pos == from) {
+                    throw illegal("Expected value");
+                }
+            }
+        }
+    }
+
+    /**
+     * Пропустить содержимое строки; позиция должна находиться сразу после открывающей кавычки
+     * и после вызова указывает на символ, следующий за закрывающей кавычкой.
+     */
+    private void skipStringBody() {
+        while (true) {
+            final char c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private boolean regionEquals(final int from, final int length, final String key) {
+        if (length != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(from + i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            final char c = s.charAt(pos);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private char peek() {
+        if (pos >= end) {
+            throw illegal("Unexpected end of input");
+        }
+        return s.charAt(pos);
+    }
+
+    private char next() {
+        final char c = peek();
+        pos++;
+        return c;
+    }
+
+    private void expect(final char c) {
+        if (next() != c) {
+            pos--;
+            throw illegal("Expected '" + c + "'");
+        }
+    }
+
+    private IllegalArgumentException illegal(final String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+
+    /**
+     * Представление массива байтов в кодировке ASCII (или UTF-8) в виде последовательности символов
+     * без копирования и декодирования.
+     */
+    static final class AsciiCharSequence implements CharSequence {
+        final byte[] bytes;
+        final int offset;
+        private final int length;
+
+        AsciiCharSequence(final byte[] bytes, final int offset, final int length) {
+            if (offset < 0 || length < 0 || offset + length > bytes.length) {
+                throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length);
+            }
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) (bytes[offset + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return new AsciiCharSequence(bytes, offset + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
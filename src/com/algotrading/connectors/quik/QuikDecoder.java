@@ -4,9 +4,13 @@ import com.algotrading.base.core.columns.DoubleColumn;
 import com.algotrading.base.core.columns.LongColumn;
 import com.algotrading.base.core.series.FinSeries;
 import com.algotrading.base.helpers.ParseHelper;
+import com.algotrading.connectors.common.QuoteLevel2;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.function.LongPredicate;
 import java.util.function.LongUnaryOperator;
 
@@ -15,6 +19,12 @@ import java.util.function.LongUnaryOperator;
  */
 public class QuikDecoder {
 
+    /**
+     * Разборщик свечей потока: его массивы переиспользуются всеми вызовами
+     * {@link #candles(CharSequence, LongUnaryOperator, LongPredicate)} в этом потоке.
+     */
+    private static final ThreadLocal<QuikCandlesParser> CANDLES_PARSER = ThreadLocal.withInitial(QuikCandlesParser::new);
+
     private QuikDecoder() {
         throw new UnsupportedOperationException();
     }
@@ -66,9 +76,39 @@ public class QuikDecoder {
     public static FinSeries candles(final JSONObject jsonCandles,
                                     final LongUnaryOperator timeShift,
                                     final LongPredicate timeFilter) {
+        return candles(jsonCandles, timeShift, timeFilter, Long.MIN_VALUE);
+    }
+
+    /**
+     * Преобразовать в объект типа {@link FinSeries} только хвост json-представления свечей:
+     * свечи, время которых (после сдвига) не меньше заданного. Свечи в json-объекте должны быть упорядочены
+     * по времени; граница хвоста ищется с конца, поэтому затраты пропорциональны длине хвоста,
+     * а не размеру всего окна.
+     *
+     * @param jsonCandles  json-объект, полученный из QUIK
+     * @param timeShift    временной сдвиг; если {@code null}, то не применяется
+     * @param timeFilter   фильтр по времени свечи; если {@code null}, то не применяется
+     * @param fromTimeCode минимальное время свечи после сдвига; {@link Long#MIN_VALUE} -- все свечи
+     * @return временной ряд
+     */
+    public static FinSeries candles(final JSONObject jsonCandles,
+                                    final LongUnaryOperator timeShift,
+                                    final LongPredicate timeFilter,
+                                    final long fromTimeCode) {
         try {
             final int size = (int) ParseHelper.asLong(jsonCandles.get("size"));
             final JSONArray arrayT = (JSONArray) jsonCandles.get("T");
+            int from = (fromTimeCode == Long.MIN_VALUE) ? 0 : size;
+            while (from > 0) {
+                long t = parseTimestamp((String) arrayT.get(from - 1));
+                if (timeShift != null) {
+                    t = timeShift.applyAsLong(t);
+                }
+                if (t < fromTimeCode) {
+                    break;
+                }
+                from--;
+            }
             final JSONArray arrayO = (JSONArray) jsonCandles.get("O");
             final JSONArray arrayH = (JSONArray) jsonCandles.get("H");
             final JSONArray arrayL = (JSONArray) jsonCandles.get("L");
@@ -81,7 +121,7 @@ public class QuikDecoder {
             final DoubleColumn low = series.low();
             final DoubleColumn close = series.close();
             final LongColumn volume = series.volume();
-            for (int i = 0; i < size; i++) {
+            for (int i = from; i < size; i++) {
                 final String timestamp = (String) arrayT.get(i);
                 long t = parseTimestamp(timestamp);
                 if (timeShift != null) {
@@ -112,7 +152,232 @@ public class QuikDecoder {
         return candles(jsonCandles, null, null);
     }
 
+    /**
+     * Преобразовать текстовое json-представление свечей в объект типа {@link FinSeries}
+     * со сдвигом по времени и фильтрацией за один проход, без построения промежуточных json-объектов.
+     * Результат совпадает с результатом метода {@link #candles(JSONObject, LongUnaryOperator, LongPredicate)}.
+     * Разбор выполняется в массивы, переиспользуемые в пределах потока, поэтому {@code timeShift}
+     * и {@code timeFilter} не должны сами разбирать свечи.
+     *
+     * @param json       текст json-объекта свечей или ответа терминала, содержащего его в поле {@code result}
+     * @param timeShift  временной сдвиг; если {@code null}, то не применяется
+     * @param timeFilter фильтр по времени свечи; если {@code null}, то не применяется
+     * @return временной ряд
+     * @see QuikCandlesParser
+     */
+    public static FinSeries candles(final CharSequence json,
+                                    final LongUnaryOperator timeShift,
+                                    final LongPredicate timeFilter) {
+        try {
+            return CANDLES_PARSER.get().parse(json, timeShift, timeFilter);
+        } catch (final Exception e) {
+            throw new IllegalArgumentException("Illegal JSON", e);
+        }
+    }
+
+    /**
+     * Преобразовать json-представление свечей в кодировке UTF-8 в объект типа {@link FinSeries}
+     * со сдвигом по времени и фильтрацией за один проход, без декодирования в строку.
+     *
+     * @param bytes      массив байтов
+     * @param offset     начало json-текста в массиве
+     * @param length     длина json-текста
+     * @param timeShift  временной сдвиг; если {@code null}, то не применяется
+     * @param timeFilter фильтр по времени свечи; если {@code null}, то не применяется
+     * @return временной ряд
+     */
+    public static FinSeries candles(final byte[] bytes,
+                                    final int offset,
+                                    final int length,
+                                    final LongUnaryOperator timeShift,
+                                    final LongPredicate timeFilter) {
+        return candles(new QuikCandlesParser.AsciiCharSequence(bytes, offset, length), timeShift, timeFilter);
+    }
+
+    /**
+     * Заполнить стакан котировок по json-представлению, полученному из QUIK
+     * (результат функции getQuoteLevel2 или аргумент OnQuote).
+     * Котировки в QUIK упорядочены по возрастанию цены, поэтому котировки на покупку перебираются с конца,
+     * и заполнение выполняется от лучшей цены к худшей без сдвигов в массивах.
+     *
+     * @param jsonQuotes  json-объект, полученный из QUIK
+     * @param quoteLevel2 переиспользуемый стакан, который будет очищен и заполнен
+     * @return тот же стакан
+     */
+    public static QuoteLevel2 quoteLevel2(final JSONObject jsonQuotes, final QuoteLevel2 quoteLevel2) {
+        try {
+            quoteLevel2.clear();
+            if (jsonQuotes.get("bid") instanceof JSONArray bids) {
+                for (int i = bids.size() - 1; i >= 0; i--) {
+                    final JSONObject json = (JSONObject) bids.get(i);
+                    quoteLevel2.putBid(ParseHelper.asDouble(json.get("price")),
+                            (int) ParseHelper.asDouble(json.get("quantity")));
+                }
+            }
+            if (jsonQuotes.get("offer") instanceof JSONArray offers) {
+                for (final Object o : offers) {
+                    final JSONObject json = (JSONObject) o;
+                    quoteLevel2.putOffer(ParseHelper.asDouble(json.get("price")),
+                            (int) ParseHelper.asDouble(json.get("quantity")));
+                }
+            }
+            return quoteLevel2;
+        } catch (final Exception e) {
+            throw new IllegalArgumentException("Illegal JSON", e);
+        }
+    }
+
+    /**
+     * Получить метку времени из таблицы даты-времени QUIK вида
+     * {"year":2020,"month":11,"day":25,"hour":5,"min":15,"sec":0,"ms":0}.
+     *
+     * @param datetime json-объект даты-времени
+     * @return метка времени в формате long
+     */
+    public static long timeCode(final JSONObject datetime) {
+        final long yyyymmdd = ParseHelper.asLong(datetime.get("year")) * 10000L
+                              + ParseHelper.asLong(datetime.get("month")) * 100L
+                              + ParseHelper.asLong(datetime.get("day"));
+        final long hhmmss = ParseHelper.asLong(datetime.get("hour")) * 10000L
+                            + ParseHelper.asLong(datetime.get("min")) * 100L
+                            + ParseHelper.asLong(datetime.get("sec"));
+        final Object ms = datetime.get("ms");
+        return (yyyymmdd * 1000000L + hhmmss) * 1000L + ((ms == null) ? 0L : ParseHelper.asLong(ms));
+    }
+
+    /**
+     * Заполнить событие ответа на транзакцию по таблице trans_reply колбэка OnTransReply.
+     *
+     * @param json  json-объект, полученный из QUIK
+     * @param event переиспользуемое событие
+     * @return то же событие
+     */
+    public static QuikTransReplyEvent transReply(final JSONObject json, final QuikTransReplyEvent event) {
+        event.transId = getLong(json, "trans_id");
+        event.status = (int) getLong(json, "status");
+        event.resultMsg = getString(json, "result_msg");
+        event.orderNum = getLong(json, "order_num");
+        event.uid = getLong(json, "uid");
+        event.flags = getLong(json, "flags");
+        event.classCode = getString(json, "class_code");
+        event.secCode = getString(json, "sec_code");
+        event.securityId = securityId(event.classCode, event.secCode);
+        event.price = getDouble(json, "price");
+        event.quantity = (long) getDouble(json, "quantity");
+        event.balance = (long) getDouble(json, "balance");
+        event.brokerRef = getString(json, "brokerref");
+        event.errorCode = getLong(json, "error_code");
+        event.errorSource = (int) getLong(json, "error_source");
+        event.timeCode = getTimeCode(json, "date_time");
+        return event;
+    }
+
+    /**
+     * Заполнить событие изменения заявки по таблице заявок колбэка OnOrder.
+     *
+     * @param json  json-объект, полученный из QUIK
+     * @param event переиспользуемое событие
+     * @return то же событие
+     */
+    public static QuikOrderEvent order(final JSONObject json, final QuikOrderEvent event) {
+        event.orderNum = getLong(json, "order_num");
+        event.transId = getLong(json, "trans_id");
+        event.uid = getLong(json, "uid");
+        event.flags = getLong(json, "flags");
+        event.classCode = getString(json, "class_code");
+        event.secCode = getString(json, "sec_code");
+        event.securityId = securityId(event.classCode, event.secCode);
+        event.price = getDouble(json, "price");
+        event.quantity = (long) getDouble(json, "qty");
+        event.balance = (long) getDouble(json, "balance");
+        event.brokerRef = getString(json, "brokerref");
+        event.timeCode = getTimeCode(json, "datetime");
+        event.withdrawTimeCode = getTimeCode(json, "withdraw_datetime");
+        return event;
+    }
+
+    /**
+     * Заполнить событие собственной сделки по таблице сделок колбэка OnTrade.
+     *
+     * @param json  json-объект, полученный из QUIK
+     * @param event переиспользуемое событие
+     * @return то же событие
+     */
+    public static QuikTradeEvent trade(final JSONObject json, final QuikTradeEvent event) {
+        event.tradeNum = getLong(json, "trade_num");
+        event.orderNum = getLong(json, "order_num");
+        event.transId = getLong(json, "trans_id");
+        event.uid = getLong(json, "uid");
+        event.flags = getLong(json, "flags");
+        event.classCode = getString(json, "class_code");
+        event.secCode = getString(json, "sec_code");
+        event.securityId = securityId(event.classCode, event.secCode);
+        event.price = getDouble(json, "price");
+        event.quantity = (long) getDouble(json, "qty");
+        event.commission = getDouble(json, "exchange_comission") + getDouble(json, "clearing_comission")
+                           + getDouble(json, "tech_center_comission") + getDouble(json, "broker_comission");
+        event.brokerRef = getString(json, "brokerref");
+        event.timeCode = getTimeCode(json, "datetime");
+        event.settleDate = (int) getLong(json, "settle_date");
+        return event;
+    }
+
+    /**
+     * Заполнить событие обезличенной сделки по таблице колбэка OnAllTrade.
+     *
+     * @param json  json-объект, полученный из QUIK
+     * @param event переиспользуемое событие
+     * @return то же событие
+     */
+    public static QuikAllTradeEvent allTrade(final JSONObject json, final QuikAllTradeEvent event) {
+        event.tradeNum = getLong(json, "trade_num");
+        event.classCode = getString(json, "class_code");
+        event.secCode = getString(json, "sec_code");
+        event.securityId = securityId(event.classCode, event.secCode);
+        event.price = getDouble(json, "price");
+        event.quantity = (long) getDouble(json, "qty");
+        final long flags = getLong(json, "flags");
+        event.side = ((flags & 0x1L) != 0L) ? TradeTape.SIDE_SELL
+                : ((flags & 0x2L) != 0L) ? TradeTape.SIDE_BUY : TradeTape.SIDE_UNKNOWN;
+        event.timeCode = getTimeCode(json, "datetime");
+        return event;
+    }
+
+    private static long getLong(final JSONObject json, final String key) {
+        final Object o = json.get(key);
+        return (o == null) ? 0L : ParseHelper.asLong(o);
+    }
+
+    private static double getDouble(final JSONObject json, final String key) {
+        final Object o = json.get(key);
+        return (o == null) ? 0.0 : ParseHelper.asDouble(o);
+    }
+
+    private static String getString(final JSONObject json, final String key) {
+        return (json.get(key) instanceof String s) ? s : null;
+    }
+
+    private static long getTimeCode(final JSONObject json, final String key) {
+        return (json.get(key) instanceof JSONObject datetime && datetime.get("year") != null
+                && ParseHelper.asLong(datetime.get("year")) != 0L) ? timeCode(datetime) : 0L;
+    }
+
+    private static int securityId(final String classCode, final String secCode) {
+        return (classCode == null || secCode == null) ? -1
+                : ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode);
+    }
+
     private static final int TIMESTAMP_MASK = 0b11110110110110110110111;
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    // Маски цифр в 8-байтовых словах timestamp-строки (младший байт -- первый символ слова):
+    // "2020-11-" с позиции 0, "25T05:15" с позиции 8 и "05:15:00" с позиции 11, "5:00.000" с позиции 15
+    private static final long SWAR_MASK_DATE = 0x00FFFF00FFFFFFFFL;
+    private static final long SWAR_MASK_TIME = 0xFFFF00FFFF00FFFFL;
+    private static final long SWAR_MASK_MILLIS = 0xFFFFFF00FFFF00FFL;
+    private static final long SWAR_ZEROS = 0x3030303030303030L;
+    private static final long SWAR_HIGH_NIBBLES = 0xF0F0F0F0F0F0F0F0L;
+    private static final long SWAR_SIXES = 0x0606060606060606L;
+    private static final long SWAR_THREES = 0x3333333333333333L;
 
     /**
      * Получить метку времени из timestamp-строки вида
@@ -122,18 +387,30 @@ public class QuikDecoder {
      * @return метка времени в формате long
      */
     public static long parseTimestamp(final String timestamp) {
-        final int len = timestamp.length();
+        return parseTimestamp(timestamp, 0, timestamp.length());
+    }
+
+    /**
+     * Получить метку времени из фрагмента последовательности символов вида
+     * 2020-11-25T05:15:00.000 или 2020-11-25T05:15:00 без создания промежуточных строк.
+     *
+     * @param s      последовательность символов
+     * @param offset начало фрагмента
+     * @param len    длина фрагмента
+     * @return метка времени в формате long
+     */
+    public static long parseTimestamp(final CharSequence s, final int offset, final int len) {
         if (len != 19 && len != 23) {
-            throw new IllegalArgumentException("Illegal timestamp: " + timestamp);
+            throw new IllegalArgumentException("Illegal timestamp: " + s.subSequence(offset, offset + len));
         }
         long t = 0L;
         for (int i = 0, m = 0b10000000000000000000000; i < len; i++, m >>= 1) {
             if ((TIMESTAMP_MASK & m) != 0) {
-                final long d = timestamp.charAt(i) - '0';
+                final long d = s.charAt(offset + i) - '0';
                 if (0L <= d && d <= 9L) {
                     t = t * 10L + d;
                 } else {
-                    throw new IllegalArgumentException("Illegal timestamp: " + timestamp);
+                    throw new IllegalArgumentException("Illegal timestamp: " + s.subSequence(offset, offset + len));
                 }
             }
         }
@@ -142,4 +419,93 @@ public class QuikDecoder {
         }
         return t;
     }
+
+    /**
+     * Получить метку времени из фрагмента массива байтов в кодировке ASCII (или UTF-8) вида
+     * 2020-11-25T05:15:00.000 или 2020-11-25T05:15:00 без создания промежуточных строк.
+     * Цифры проверяются и преобразуются по 8 байтов за операцию (SWAR);
+     * результат и правила проверки совпадают с {@link #parseTimestamp(CharSequence, int, int)}.
+     *
+     * @param bytes  массив байтов
+     * @param offset начало фрагмента
+     * @param len    длина фрагмента
+     * @return метка времени в формате long
+     */
+    public static long parseTimestamp(final byte[] bytes, final int offset, final int len) {
+        final long t = (len == 19 || len == 23) ? swarTimestamp(bytes, offset, len) : -1L;
+        return (t >= 0L) ? t : parseTimestamp(new QuikCandlesParser.AsciiCharSequence(bytes, offset, len), 0, len);
+    }
+
+    /**
+     * Получить метки времени для столбца timestamp-строк, расположенных во фрагментах массива байтов
+     * (например, в исходном тексте json-ответа), за один вызов.
+     *
+     * @param bytes      массив байтов
+     * @param offsets    начала фрагментов
+     * @param lengths    длины фрагментов
+     * @param count      количество фрагментов
+     * @param timeCodes  массив для записи меток времени (не короче {@code count})
+     * @see #parseTimestamp(byte[], int, int)
+     */
+    public static void parseTimestamps(final byte[] bytes,
+                                       final int[] offsets,
+                                       final int[] lengths,
+                                       final int count,
+                                       final long[] timeCodes) {
+        if (count < 0 || count > offsets.length || count > lengths.length || count > timeCodes.length) {
+            throw new IllegalArgumentException("Illegal count: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            timeCodes[i] = parseTimestamp(bytes, offsets[i], lengths[i]);
+        }
+    }
+
+    /**
+     * @return метка времени или -1, если какая-либо из позиций цифр содержит не цифру
+     * либо фрагмент выходит за пределы массива
+     */
+    private static long swarTimestamp(final byte[] bytes, final int offset, final int len) {
+        if (offset < 0 || offset + len > bytes.length) {
+            return -1L;
+        }
+        final long date = swarDigits((long) LONG_LE.get(bytes, offset), SWAR_MASK_DATE);
+        final long time = swarDigits((long) LONG_LE.get(bytes, offset + 8), SWAR_MASK_TIME);
+        final long tail = (len == 19)
+                ? swarDigits((long) LONG_LE.get(bytes, offset + 11), SWAR_MASK_TIME)
+                : swarDigits((long) LONG_LE.get(bytes, offset + 15), SWAR_MASK_MILLIS);
+        if ((date | time | tail) < 0L) {
+            return -1L;
+        }
+        final long yyyymmdd = (pair(date, 0) * 100L + pair(date, 2)) * 10000L + pair(date, 5) * 100L + pair(time, 0);
+        final long hhmm = pair(time, 3) * 100L + pair(time, 6);
+        final long ss;
+        final long ms;
+        if (len == 19) {
+            ss = pair(tail, 6);
+            ms = 0L;
+        } else {
+            ss = pair(tail, 2);
+            ms = pair(tail, 5) * 10L + pair(tail, 7) / 10L;
+        }
+        return ((yyyymmdd * 10000L + hhmm) * 100L + ss) * 1000L + ms;
+    }
+
+    /**
+     * Проверить, что байты слова под маской являются цифрами, и получить слово, в каждом байте которого
+     * записано значение двузначного числа, начинающегося в этом байте: d[i] * 10 + d[i + 1].
+     *
+     * @return слово с двузначными числами или -1, если под маской есть не цифра
+     */
+    private static long swarDigits(final long word, final long mask) {
+        final long v = word & mask;
+        if ((((v & SWAR_HIGH_NIBBLES) | (((v + SWAR_SIXES) & SWAR_HIGH_NIBBLES) >>> 4)) & mask) != (SWAR_THREES & mask)) {
+            return -1L;
+        }
+        final long d = v - (SWAR_ZEROS & mask);
+        return d * 10L + (d >>> 8);
+    }
+
+    private static long pair(final long pairs, final int index) {
+        return (pairs >>> (index << 3)) & 0xFFL;
+    }
 }
@@ -0,0 +1,188 @@
+package com.algotrading.connectors.quik;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Метрики слушателя QUIK: время выполнения запросов к терминалу по типам запросов, количество неудачных
+ * запросов, количество и время обработки колбэков по наименованиям колбэков, количество попыток подписки
+ * и неудачных подписок.
+ * <p>
+ * Время запроса -- задержка терминала (включая передачу по сети), время обработки колбэка -- собственное
+ * время обработки. Запись выполняется без блокировок из любых потоков, снимки читаются из любых потоков.
+ */
+public class QuikListenerMetrics {
+
+    /**
+     * Запрос к терминалу.
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws ExecutionException, InterruptedException;
+    }
+
+    /**
+     * Снимок метрик.
+     *
+     * @param intervalNanos     длительность интервала, за который собраны метрики, в наносекундах
+     * @param requests          время выполнения успешных запросов по типам запросов
+     * @param requestFailures   количество неудачных запросов по типам запросов
+     * @param callbacks         время обработки колбэков по наименованиям колбэков
+     * @param subscribeAttempts количество попыток подписки
+     * @param subscribeFailures количество неудачных попыток подписки
+     */
+    public record Snapshot(long intervalNanos,
+                           Map<String, LatencyHistogram.Snapshot> requests,
+                           Map<String, Long> requestFailures,
+                           Map<String, LatencyHistogram.Snapshot> callbacks,
+                           long subscribeAttempts,
+                           long subscribeFailures) {
+
+        /**
+         * @param callback наименование колбэка
+         * @return количество колбэков в секунду за интервал
+         */
+        public double callbackRate(final String callback) {
+            final LatencyHistogram.Snapshot snapshot = callbacks.get(callback);
+            return (snapshot == null || intervalNanos <= 0L) ? 0.0 : snapshot.count() * 1e9 / intervalNanos;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("interval=").append(intervalNanos / 1_000_000L).append("ms");
+            sb.append(" subscribe=").append(subscribeAttempts).append("/failed=").append(subscribeFailures);
+            for (final Map.Entry<String, LatencyHistogram.Snapshot> entry : requests.entrySet()) {
+                sb.append("\n  request ").append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+            for (final Map.Entry<String, Long> entry : requestFailures.entrySet()) {
+                sb.append("\n  request ").append(entry.getKey()).append(": failed=").append(entry.getValue());
+            }
+            for (final Map.Entry<String, LatencyHistogram.Snapshot> entry : callbacks.entrySet()) {
+                sb.append("\n  callback ").append(entry.getKey()).append(": rate=")
+                        .append(Math.round(callbackRate(entry.getKey()))).append("/s ").append(entry.getValue());
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Map<String, LatencyHistogram> requests = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> requestFailures = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> callbacks = new ConcurrentHashMap<>();
+    private final AtomicLong subscribeAttempts = new AtomicLong();
+    private final AtomicLong subscribeFailures = new AtomicLong();
+    private volatile long intervalStart = System.nanoTime();
+
+    /**
+     * Выполнить запрос к терминалу и записать время его выполнения.
+     *
+     * @param requestName тип запроса
+     * @param request     запрос
+     * @return результат запроса
+     */
+    public <T> T execute(final String requestName,
+                         final Call<T> request) throws ExecutionException, InterruptedException {
+        final long start = System.nanoTime();
+        boolean isCompleted = false;
+        try {
+            final T result = request.call();
+            isCompleted = true;
+            return result;
+        } finally {
+            recordRequest(requestName, System.nanoTime() - start, isCompleted);
+        }
+    }
+
+    /**
+     * @param requestName тип запроса
+     * @param nanos       время выполнения запроса в наносекундах
+     * @param isCompleted {@code true}, если запрос выполнен успешно
+     */
+    public void recordRequest(final String requestName, final long nanos, final boolean isCompleted) {
+        if (isCompleted) {
+            LatencyHistogram histogram = requests.get(requestName);
+            if (histogram == null) {
+                histogram = requests.computeIfAbsent(requestName, k -> new LatencyHistogram());
+            }
+            histogram.record(nanos);
+        } else {
+            requestFailures.computeIfAbsent(requestName, k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    /**
+     * @param callback наименование колбэка
+     * @param nanos    время обработки колбэка в наносекундах
+     */
+    public void recordCallback(final String callback, final long nanos) {
+        LatencyHistogram histogram = callbacks.get(callback);
+        if (histogram == null) {
+            histogram = callbacks.computeIfAbsent(callback, k -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * @param isSubscribed {@code true}, если подписка оформлена
+     */
+    public void recordSubscribe(final boolean isSubscribed) {
+        subscribeAttempts.incrementAndGet();
+        if (!isSubscribed) {
+            subscribeFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return снимок метрик с момента создания или последнего вызова {@link #snapshotAndReset()}
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(System.nanoTime() - intervalStart,
+                histograms(requests, false),
+                failures(false),
+                histograms(callbacks, false),
+                subscribeAttempts.get(),
+                subscribeFailures.get());
+    }
+
+    /**
+     * @return снимок метрик с момента создания или последнего вызова; метрики, вошедшие в снимок, сбрасываются
+     * (используется для периодической выгрузки)
+     */
+    public Snapshot snapshotAndReset() {
+        final long now = System.nanoTime();
+        final long start = intervalStart;
+        intervalStart = now;
+        return new Snapshot(now - start,
+                histograms(requests, true),
+                failures(true),
+                histograms(callbacks, true),
+                subscribeAttempts.getAndSet(0L),
+                subscribeFailures.getAndSet(0L));
+    }
+
+    private static Map<String, LatencyHistogram.Snapshot> histograms(final Map<String, LatencyHistogram> map,
+                                                                     final boolean isReset) {
+        final Map<String, LatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+        for (final Map.Entry<String, LatencyHistogram> entry : map.entrySet()) {
+            final LatencyHistogram.Snapshot snapshot = isReset
+                    ? entry.getValue().snapshotAndReset() : entry.getValue().snapshot();
+            if (snapshot.count() > 0L) {
+                snapshots.put(entry.getKey(), snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    private Map<String, Long> failures(final boolean isReset) {
+        final Map<String, Long> snapshots = new TreeMap<>();
+        for (final Map.Entry<String, AtomicLong> entry : requestFailures.entrySet()) {
+            final long count = isReset ? entry.getValue().getAndSet(0L) : entry.getValue().get();
+            if (count > 0L) {
+                snapshots.put(entry.getKey(), count);
+            }
+        }
+        return snapshots;
+    }
+}
@@ -0,0 +1,72 @@
+package com.algotrading.connectors.quik;
+
+/**
+ * Изменение заявки (колбэк OnOrder). Объект переиспользуется слушателем для всех событий
+ * и действителен только во время вызова обработчика.
+ */
+public class QuikOrderEvent {
+    /**
+     * Номер заявки на бирже.
+     */
+    public long orderNum;
+    /**
+     * Номер транзакции или 0, если заявка выставлена не транзакцией.
+     */
+    public long transId;
+    /**
+     * Идентификатор пользователя.
+     */
+    public long uid;
+    /**
+     * Флаги заявки: 0x1 -- активна, 0x2 -- снята, 0x4 -- продажа.
+     */
+    public long flags;
+    /**
+     * Код класса.
+     */
+    public String classCode;
+    /**
+     * Код инструмента.
+     */
+    public String secCode;
+    /**
+     * Идентификатор инструмента в {@link ClassSecCodeRegistry} или -1, если инструмент не зарегистрирован.
+     */
+    public int securityId;
+    /**
+     * Цена.
+     */
+    public double price;
+    /**
+     * Количество в лотах.
+     */
+    public long quantity;
+    /**
+     * Остаток в лотах.
+     */
+    public long balance;
+    /**
+     * Комментарий.
+     */
+    public String brokerRef;
+    /**
+     * Время выставления заявки или 0, если неизвестно.
+     */
+    public long timeCode;
+    /**
+     * Время снятия заявки или 0, если заявка не снята.
+     */
+    public long withdrawTimeCode;
+
+    public boolean isActive() {
+        return (flags & 0x1L) != 0L;
+    }
+
+    public boolean isCancelled() {
+        return (flags & 0x2L) != 0L;
+    }
+
+    public boolean isSell() {
+        return (flags & 0x4L) != 0L;
+    }
+}
@@ -0,0 +1,192 @@
+package com.algotrading.connectors.quik;
+
+import com.algotrading.connectors.quik.execution.QuikKillOrder;
+import com.algotrading.connectors.quik.execution.QuikKillStatus;
+import com.algotrading.connectors.quik.execution.QuikLimitOrder;
+import com.algotrading.connectors.quik.execution.QuikLimitStatus;
+import com.algotrading.connectors.quik.execution.QuikOrderTable;
+import com.algotrading.connectors.quik.execution.QuikPosition;
+import com.algotrading.connectors.quik.execution.RecentTradeNums;
+import com.simpleutils.logs.AbstractLogger;
+import com.simpleutils.logs.SimpleLogger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Сравнение {@link QuikOrderTable} и {@link RecentTradeNums} с эталонными коллекциями на случайной
+ * последовательности операций: добавление, изменение номера заявки на бирже, завершение и удаление заявок.
+ */
+public class QuikOrderTableTest {
+
+    private static final long RETENTION_MILLIS = 100L;
+    private static final int OPERATIONS = 1_000_000;
+    private static final int TRADE_NUMS_CAPACITY = 1 << 10;
+
+    private final AbstractLogger logger = new SimpleLogger();
+    private final Random random = new Random(1L);
+
+    public static void main(final String[] args) {
+        new QuikOrderTableTest().test();
+    }
+
+    private void test() {
+        logger.withLogLevel(AbstractLogger.INFO);
+        testOrderTable();
+        testRecentTradeNums();
+    }
+
+    private void testOrderTable() {
+        final QuikPosition quikPosition = new QuikPosition("test", null, "TQBR:SBER", 10, 0, 0.0, 0.0);
+        final QuikOrderTable quikOrderTable = new QuikOrderTable(RETENTION_MILLIS);
+        final Map<Integer, Object> orders = new HashMap<>();
+        final Map<Long, QuikLimitOrder> limitOrders = new HashMap<>();
+        final List<QuikLimitOrder> activeLimitOrders = new ArrayList<>();
+        final ArrayDeque<long[]> retired = new ArrayDeque<>();
+        int transId = 0;
+        long now = 0L;
+        int evicted = 0;
+        for (int n = 0; n < OPERATIONS; n++) {
+            final int operation = random.nextInt(10);
+            if (operation < 4 || activeLimitOrders.isEmpty()) {
+                final QuikLimitOrder quikLimitOrder = new QuikLimitOrder(
+                        ++transId, quikPosition, "100", 10, 1, now, 0L, "");
+                if (random.nextBoolean()) {
+                    quikLimitOrder.orderNum = randomOrderNum();
+                    limitOrders.put(quikLimitOrder.orderNum, quikLimitOrder);
+                }
+                quikOrderTable.put(quikLimitOrder);
+                orders.put(quikLimitOrder.transId, quikLimitOrder);
+                activeLimitOrders.add(quikLimitOrder);
+            } else if (operation < 6) {
+                // Новый или повторно полученный номер заявки на бирже, в том числе совпадающий с номером другой заявки
+                final QuikLimitOrder quikLimitOrder = activeLimitOrders.get(random.nextInt(activeLimitOrders.size()));
+                final long orderNum = randomOrderNum();
+                if (orderNum != quikLimitOrder.orderNum) {
+                    if (quikLimitOrder.orderNum != 0L && limitOrders.get(quikLimitOrder.orderNum) == quikLimitOrder) {
+                        limitOrders.remove(quikLimitOrder.orderNum);
+                    }
+                    limitOrders.put(orderNum, quikLimitOrder);
+                }
+                quikOrderTable.setOrderNum(quikLimitOrder, orderNum);
+            } else if (operation < 7) {
+                final QuikLimitOrder quikLimitOrder = activeLimitOrders.get(random.nextInt(activeLimitOrders.size()));
+                final QuikKillOrder quikKillOrder = new QuikKillOrder(++transId, quikLimitOrder, now);
+                quikOrderTable.put(quikKillOrder);
+                orders.put(quikKillOrder.transId, quikKillOrder);
+                quikKillOrder.setStatus(random.nextBoolean() ? QuikKillStatus.EXECUTED : QuikKillStatus.ERROR, now);
+                quikOrderTable.retire(quikKillOrder.transId, now);
+                retired.add(new long[]{quikKillOrder.transId, now});
+            } else if (operation < 9) {
+                final int i = random.nextInt(activeLimitOrders.size());
+                final QuikLimitOrder quikLimitOrder = activeLimitOrders.get(i);
+                activeLimitOrders.set(i, activeLimitOrders.get(activeLimitOrders.size() - 1));
+                activeLimitOrders.remove(activeLimitOrders.size() - 1);
+                // Заявка не в конечном статусе не удаляется по истечении времени хранения
+                quikLimitOrder.setStatus(switch (random.nextInt(4)) {
+                    case 0 -> QuikLimitStatus.CANCELLED;
+                    case 1 -> QuikLimitStatus.EXECUTED;
+                    case 2 -> QuikLimitStatus.ERROR;
+                    default -> QuikLimitStatus.EXECUTION;
+                }, now);
+                quikOrderTable.retire(quikLimitOrder.transId, now);
+                retired.add(new long[]{quikLimitOrder.transId, now});
+            } else {
+                now += random.nextInt(20);
+                int count = 0;
+                while (!retired.isEmpty() && now - retired.peekFirst()[1] >= RETENTION_MILLIS) {
+                    final Object order = orders.get((int) retired.pollFirst()[0]);
+                    if (order != null && isFinal(order)) {
+                        orders.remove(transIdOf(order));
+                        if (order instanceof QuikLimitOrder quikLimitOrder
+                            && quikLimitOrder.orderNum != 0L
+                            && limitOrders.get(quikLimitOrder.orderNum) == quikLimitOrder) {
+                            limitOrders.remove(quikLimitOrder.orderNum);
+                        }
+                        count++;
+                    }
+                }
+                check(quikOrderTable.evict(now) == count, "evict count");
+                evicted += count;
+            }
+            check(quikOrderTable.size() == orders.size(), "size");
+            if (n % 10_000 == 0) {
+                checkOrderTable(quikOrderTable, orders, limitOrders, transId);
+            }
+        }
+        checkOrderTable(quikOrderTable, orders, limitOrders, transId);
+        logger.info("QuikOrderTable: " + OPERATIONS + " operations, " + transId + " orders, "
+                    + evicted + " evicted, " + quikOrderTable + ": OK");
+    }
+
+    private long randomOrderNum() {
+        return 1L + random.nextInt(1 << 16);
+    }
+
+    private static void checkOrderTable(final QuikOrderTable quikOrderTable,
+                                        final Map<Integer, Object> orders,
+                                        final Map<Long, QuikLimitOrder> limitOrders,
+                                        final int maxTransId) {
+        for (int transId = 1; transId <= maxTransId; transId++) {
+            final Object order = orders.get(transId);
+            check(quikOrderTable.getLimitOrder(transId) == ((order instanceof QuikLimitOrder) ? order : null),
+                    "getLimitOrder " + transId);
+            check(quikOrderTable.getKillOrder(transId) == ((order instanceof QuikKillOrder) ? order : null),
+                    "getKillOrder " + transId);
+        }
+        for (long orderNum = 1L; orderNum <= (1L << 16); orderNum++) {
+            check(quikOrderTable.getByOrderNum(orderNum) == limitOrders.get(orderNum), "getByOrderNum " + orderNum);
+        }
+    }
+
+    private static boolean isFinal(final Object order) {
+        if (order instanceof QuikLimitOrder quikLimitOrder) {
+            return quikLimitOrder.status == QuikLimitStatus.CANCELLED
+                   || quikLimitOrder.status == QuikLimitStatus.EXECUTED
+                   || quikLimitOrder.status == QuikLimitStatus.ERROR;
+        }
+        final QuikKillStatus status = ((QuikKillOrder) order).status;
+        return status == QuikKillStatus.EXECUTED || status == QuikKillStatus.ERROR;
+    }
+
+    private static int transIdOf(final Object order) {
+        return (order instanceof QuikLimitOrder quikLimitOrder)
+                ? quikLimitOrder.transId
+                : ((QuikKillOrder) order).transId;
+    }
+
+    private void testRecentTradeNums() {
+        final RecentTradeNums recentTradeNums = new RecentTradeNums(TRADE_NUMS_CAPACITY);
+        final LinkedHashMap<Long, Double> tradeNums = new LinkedHashMap<>();
+        for (int n = 0; n < OPERATIONS; n++) {
+            final long tradeNum = 1L + random.nextInt(TRADE_NUMS_CAPACITY * 4);
+            final double value = random.nextInt(8);
+            final Double previous = tradeNums.get(tradeNum);
+            if (previous == null && tradeNums.size() == TRADE_NUMS_CAPACITY) {
+                final Iterator<Long> eldest = tradeNums.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            // Замена значения не меняет порядок вытеснения
+            tradeNums.put(tradeNum, value);
+            final double result = recentTradeNums.put(tradeNum, value);
+            check((previous == null) ? Double.isNaN(result) : result == previous, "put " + tradeNum);
+            check(recentTradeNums.size() == tradeNums.size(), "size");
+            final long other = 1L + random.nextInt(TRADE_NUMS_CAPACITY * 4);
+            check(recentTradeNums.contains(other) == tradeNums.containsKey(other), "contains " + other);
+        }
+        logger.info("RecentTradeNums: " + OPERATIONS + " operations: OK");
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + message);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.algotrading.connectors.quik;
+
+import com.algotrading.connectors.quik.execution.QuikLimitOrder;
+import com.algotrading.connectors.quik.execution.QuikPosition;
+import com.algotrading.connectors.quik.execution.QuikPositionEngine;
+import com.algotrading.connectors.quik.execution.QuikTradeReply;
+import com.simpleutils.logs.AbstractLogger;
+import com.simpleutils.logs.SimpleLogger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Проверка сумм {@link QuikPositionEngine} по позициям, клиентам и счетам и согласованности снимков,
+ * читаемых во время применения сделок другим потоком.
+ * <p>
+ * Цены и комиссии кратны 1/4, поэтому все суммы вычисляются без ошибок округления и сравниваются точно.
+ */
+public class QuikPositionEngineTest {
+
+    private static final int TRADES = 2_000_000;
+
+    private final AbstractLogger logger = new SimpleLogger();
+    private final Random random = new Random(1L);
+
+    private final QuikAccountClientCode stockAccount = new QuikAccountClientCode("ACC1", "CC1");
+    private final QuikAccountClientCode futuresAccount = new QuikAccountClientCode("ACC2", "CC1");
+    private final QuikClient client1 = new QuikClient("client1", accounts("CC1"));
+    private final QuikClient client2 = new QuikClient("client2", accounts("CC1"));
+    private final QuikPosition[] positions = {
+            new QuikPosition("sber", client1, "TQBR:SBER", 10, 0, 0.0, 1000.0),
+            new QuikPosition("si", client1, "SPBFUT:SiZ6", 1, 2, 180_000.0, -180_000.0),
+            new QuikPosition("gazp", client2, "TQBR:GAZP", 10, 0, 0.0, 0.0)
+    };
+    private final QuikLimitOrder[] orders = new QuikLimitOrder[positions.length];
+    private final Map<QuikPosition, Reference> references = new IdentityHashMap<>();
+
+    /**
+     * Состояние позиции, вычисленное независимо от {@link QuikPositionEngine}.
+     */
+    private static final class Reference {
+        final int lotSize;
+        int size;
+        double price;
+        double cash;
+        double commission;
+
+        Reference(final QuikPosition quikPosition) {
+            lotSize = quikPosition.lotSize;
+            size = quikPosition.size;
+            price = (size == 0) ? 0.0 : quikPosition.value / ((double) size * lotSize);
+            cash = quikPosition.cash;
+        }
+
+        double value() {
+            return (double) size * lotSize * price;
+        }
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        new QuikPositionEngineTest().test();
+    }
+
+    private static JSONArray accounts(final String clientCode) {
+        final JSONArray array = new JSONArray();
+        array.add(account("ACC1", clientCode, "TQBR"));
+        array.add(account("ACC2", clientCode, "SPBFUT"));
+        return array;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject account(final String account, final String clientCode, final String classCodes) {
+        final JSONObject json = new JSONObject();
+        json.put("account", account);
+        json.put("clientCode", clientCode);
+        json.put("classCodes", classCodes);
+        return json;
+    }
+
+    private void test() throws InterruptedException {
+        logger.withLogLevel(AbstractLogger.INFO);
+        for (int i = 0; i < positions.length; i++) {
+            orders[i] = new QuikLimitOrder(i + 1, positions[i], "100", positions[i].lotSize, 1_000_000, 0L, 0L, "");
+            references.put(positions[i], new Reference(positions[i]));
+        }
+
+        final QuikPositionEngine positionEngine = new QuikPositionEngine();
+        // Позиция "gazp" добавляется при первой сделке
+        positionEngine.add(positions[0]);
+        positionEngine.add(positions[1]);
+        check(!positionEngine.apply(new QuikTradeReply(0L, null, "TQBR", "SBER", "100", 100.0, 0, 1, 0L, 1L, 0.0, 0L, 0)),
+                "apply without limit order");
+        check(new QuikTradeReply(0L, orders[0], "TQBR", "SBER", "100.25", 10, 1, 0L, 1L, 0.0, 0L, 0).priceValue == 100.25,
+                "parsed price");
+        check(!positionEngine.apply(new QuikTradeReply(0L, orders[0], "TQBR", "SBER", null, 10, 1, 0L, 1L, 0.0, 0L, 0)),
+                "apply without price");
+        for (int n = 0; n < 1000; n++) {
+            applyRandomTrade(positionEngine, n);
+        }
+        checkSnapshot(positionEngine.snapshot(), true);
+        logger.info("Sums: OK");
+
+        final Thread writer = new Thread(() -> {
+            for (int n = 1000; n < TRADES; n++) {
+                applyRandomTrade(positionEngine, n);
+            }
+        });
+        writer.start();
+        long snapshots = 0L;
+        long lastVersion = -1L;
+        while (writer.isAlive()) {
+            final QuikPositionEngine.Snapshot snapshot = positionEngine.snapshot();
+            check(snapshot.version() >= lastVersion, "version " + snapshot.version() + " < " + lastVersion);
+            lastVersion = snapshot.version();
+            checkSnapshot(snapshot, false);
+            snapshots++;
+        }
+        writer.join();
+        checkSnapshot(positionEngine.snapshot(), true);
+        logger.info("Snapshots: " + snapshots + " consistent snapshots during " + TRADES + " trades: OK");
+    }
+
+    private void applyRandomTrade(final QuikPositionEngine positionEngine, final int n) {
+        final int i = random.nextInt(positions.length);
+        final QuikPosition quikPosition = positions[i];
+        final Reference reference = references.get(quikPosition);
+        if (n % 10 == 9 && reference.commission != 0.0) {
+            // Поправка комиссии по повторному колбэку OnTrade
+            final double commission = (random.nextInt(5) - 2) * 0.25;
+            positionEngine.applyCommission(quikPosition, commission);
+            reference.cash -= commission;
+            reference.commission += commission;
+            return;
+        }
+        final double price = 100.0 + random.nextInt(80) * 0.25;
+        final int volumeTraded = random.nextInt(11) - 5;
+        final double commission = random.nextInt(4) * 0.25;
+        final QuikTradeReply quikTradeReply = new QuikTradeReply(0L, orders[i],
+                quikPosition.classCode, quikPosition.secCode, Double.toString(price), price,
+                (n % 2 == 0) ? quikPosition.lotSize : 0, volumeTraded, 0L, n + 1L, commission, 0L, 0);
+        check(positionEngine.apply(quikTradeReply), "apply");
+        reference.size += volumeTraded;
+        reference.price = price;
+        reference.cash -= (double) volumeTraded * reference.lotSize * price + commission;
+        reference.commission += commission;
+    }
+
+    /**
+     * Проверить, что суммы по клиентам и счетам равны суммам их позиций, а при {@code isFinal}
+     * также что позиции равны вычисленным независимо.
+     */
+    private void checkSnapshot(final QuikPositionEngine.Snapshot snapshot, final boolean isFinal) {
+        check(snapshot.positions().size() == positions.length, "positions " + snapshot.positions().size());
+        final double[] client1Sums = new double[3];
+        final double[] client2Sums = new double[3];
+        final double[] stockSums = new double[3];
+        final double[] futuresSums = new double[3];
+        for (final QuikPositionEngine.PositionState positionState : snapshot.positions()) {
+            final QuikPosition quikPosition = positionState.position();
+            final double[] sums = {positionState.value(), positionState.cash(), positionState.commission()};
+            add((quikPosition.quikClient == client1) ? client1Sums : client2Sums, sums);
+            add(quikPosition.classCode.equals("TQBR") ? stockSums : futuresSums, sums);
+            if (isFinal) {
+                final Reference reference = references.get(quikPosition);
+                check(positionState.size() == reference.size && quikPosition.size == reference.size,
+                        quikPosition.id + " size");
+                check(positionState.value() == reference.value() && quikPosition.value == reference.value(),
+                        quikPosition.id + " value");
+                check(positionState.cash() == reference.cash && quikPosition.cash == reference.cash,
+                        quikPosition.id + " cash");
+                check(positionState.commission() == reference.commission, quikPosition.id + " commission");
+            }
+        }
+        check(equals(snapshot.clients().get(client1), client1Sums), "client1 " + snapshot.clients().get(client1));
+        check(equals(snapshot.clients().get(client2), client2Sums), "client2 " + snapshot.clients().get(client2));
+        check(equals(snapshot.accounts().get(stockAccount), stockSums), "stock " + snapshot.accounts().get(stockAccount));
+        check(equals(snapshot.accounts().get(futuresAccount), futuresSums),
+                "futures " + snapshot.accounts().get(futuresAccount));
+    }
+
+    private static void add(final double[] sums, final double[] values) {
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] += values[i];
+        }
+    }
+
+    private static boolean equals(final QuikPositionEngine.Aggregate aggregate, final double[] sums) {
+        return aggregate != null
+               && aggregate.value() == sums[0]
+               && aggregate.cash() == sums[1]
+               && aggregate.commission() == sums[2];
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + message);
+        }
+    }
+}
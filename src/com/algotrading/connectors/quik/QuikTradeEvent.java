@@ -0,0 +1,68 @@
+package com.algotrading.connectors.quik;
+
+/**
+ * Собственная сделка (колбэк OnTrade). Объект переиспользуется слушателем для всех событий
+ * и действителен только во время вызова обработчика.
+ */
+public class QuikTradeEvent {
+    /**
+     * Номер сделки на бирже.
+     */
+    public long tradeNum;
+    /**
+     * Номер заявки на бирже.
+     */
+    public long orderNum;
+    /**
+     * Номер транзакции или 0, если неизвестен.
+     */
+    public long transId;
+    /**
+     * Идентификатор пользователя.
+     */
+    public long uid;
+    /**
+     * Флаги сделки: 0x4 -- продажа.
+     */
+    public long flags;
+    /**
+     * Код класса.
+     */
+    public String classCode;
+    /**
+     * Код инструмента.
+     */
+    public String secCode;
+    /**
+     * Идентификатор инструмента в {@link ClassSecCodeRegistry} или -1, если инструмент не зарегистрирован.
+     */
+    public int securityId;
+    /**
+     * Цена.
+     */
+    public double price;
+    /**
+     * Количество в лотах.
+     */
+    public long quantity;
+    /**
+     * Суммарная комиссия (биржевая, клиринговая, ТС и брокерская).
+     */
+    public double commission;
+    /**
+     * Комментарий.
+     */
+    public String brokerRef;
+    /**
+     * Биржевое время сделки или 0, если неизвестно.
+     */
+    public long timeCode;
+    /**
+     * Дата расчётов в формате yyyymmdd или 0, если неизвестна.
+     */
+    public int settleDate;
+
+    public boolean isSell() {
+        return (flags & 0x4L) != 0L;
+    }
+}
@@ -0,0 +1,86 @@
+package com.algotrading.connectors.quik;
+
+/**
+ * Ответ на транзакцию (колбэк OnTransReply). Объект переиспользуется слушателем для всех событий
+ * и действителен только во время вызова обработчика.
+ */
+public class QuikTransReplyEvent {
+    /**
+     * Номер транзакции.
+     */
+    public long transId;
+    /**
+     * Статус транзакции: 3 -- выполнена, 2, 4, 5, 6 и выше -- ошибка, 0 и 1 -- промежуточные статусы.
+     */
+    public int status;
+    /**
+     * Сообщение терминала.
+     */
+    public String resultMsg;
+    /**
+     * Номер заявки на бирже или 0, если неизвестен.
+     */
+    public long orderNum;
+    /**
+     * Идентификатор пользователя.
+     */
+    public long uid;
+    /**
+     * Флаги транзакции.
+     */
+    public long flags;
+    /**
+     * Код класса или {@code null}, если неизвестен.
+     */
+    public String classCode;
+    /**
+     * Код инструмента или {@code null}, если неизвестен.
+     */
+    public String secCode;
+    /**
+     * Идентификатор инструмента в {@link ClassSecCodeRegistry} или -1, если инструмент не зарегистрирован.
+     */
+    public int securityId;
+    /**
+     * Цена.
+     */
+    public double price;
+    /**
+     * Количество.
+     */
+    public long quantity;
+    /**
+     * Остаток.
+     */
+    public long balance;
+    /**
+     * Комментарий.
+     */
+    public String brokerRef;
+    /**
+     * Код ошибки или 0, если ошибки нет.
+     */
+    public long errorCode;
+    /**
+     * Источник ошибки или 0, если ошибки нет.
+     */
+    public int errorSource;
+    /**
+     * Время транзакции или 0, если неизвестно.
+     */
+    public long timeCode;
+
+    /**
+     * @return {@code true}, если транзакция выполнена
+     */
+    public boolean isExecuted() {
+        return status == 3;
+    }
+
+    /**
+     * @return {@code true}, если транзакция отвергнута
+     */
+    public boolean isError() {
+        return status == 2 || status >= 4;
+    }
+}
@@ -0,0 +1,179 @@
+package com.algotrading.connectors.quik;
+
+import com.algotrading.connectors.common.QuoteLevel2;
+import com.algotrading.connectors.common.QuoteLevel2Changes;
+import com.simpleutils.quik.ClassSecCode;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.algotrading.connectors.quik.ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY;
+
+/**
+ * Стаканы котировок по инструментам, поддерживаемые в актуальном состоянии по колбэкам OnQuote.
+ * <p>
+ * Для каждого инструмента хранится один экземпляр {@link QuoteLevel2}, который обновляется на месте.
+ * Подписчики получают только изменённые уровни. Все методы должны вызываться из потока,
+ * обрабатывающего колбэки; стаканы и изменения, переданные подписчику, действительны только во время вызова.
+ */
+public class QuoteLevel2Books {
+
+    /**
+     * Подписчик на изменения стакана котировок.
+     */
+    @FunctionalInterface
+    public interface Subscriber {
+        /**
+         * @param classSecCode инструмент
+         * @param quoteLevel2  актуальный стакан котировок
+         * @param changes      изменённые уровни
+         */
+        void onQuoteLevel2(ClassSecCode classSecCode, QuoteLevel2 quoteLevel2, QuoteLevel2Changes changes);
+    }
+
+    private static class Book {
+        final ClassSecCode classSecCode;
+        final QuoteLevel2 quoteLevel2 = new QuoteLevel2();
+        final List<Subscriber> subscribers = new ArrayList<>();
+
+        Book(final ClassSecCode classSecCode) {
+            this.classSecCode = classSecCode;
+        }
+    }
+
+    /**
+     * Стаканы по идентификаторам инструментов в {@link ClassSecCodeRegistry}.
+     */
+    private Book[] books = new Book[0];
+    private final List<Subscriber> commonSubscribers = new ArrayList<>();
+    private final QuoteLevel2 newQuoteLevel2 = new QuoteLevel2();
+    private final QuoteLevel2Changes changes = new QuoteLevel2Changes();
+
+    /**
+     * Добавить инструмент.
+     *
+     * @param classSecCode инструмент
+     */
+    public void add(final ClassSecCode classSecCode) {
+        getOrCreate(classSecCode);
+    }
+
+    /**
+     * Удалить инструмент вместе со стаканом и подписчиками на его изменения.
+     *
+     * @param classSecCode инструмент
+     * @return подписчики на изменения стакана инструмента (пустой список, если инструмент не добавлен)
+     */
+    public List<Subscriber> remove(final ClassSecCode classSecCode) {
+        final int id = CLASS_SEC_CODE_REGISTRY.getId(classSecCode.classCode(), classSecCode.secCode());
+        final Book book = find(id);
+        if (book == null) {
+            return List.of();
+        }
+        books[id] = null;
+        return book.subscribers;
+    }
+
+    /**
+     * @param classSecCode инструмент
+     * @return подписчики на изменения стакана инструмента (пустой список, если инструмент не добавлен)
+     */
+    public List<Subscriber> getSubscribers(final ClassSecCode classSecCode) {
+        final Book book = find(CLASS_SEC_CODE_REGISTRY.getId(classSecCode.classCode(), classSecCode.secCode()));
+        return (book == null) ? List.of() : List.copyOf(book.subscribers);
+    }
+
+    /**
+     * Добавить подписчика на изменения стакана заданного инструмента.
+     *
+     * @param classSecCode инструмент
+     * @param subscriber   подписчик
+     */
+    public void addSubscriber(final ClassSecCode classSecCode, final Subscriber subscriber) {
+        getOrCreate(classSecCode).subscribers.add(subscriber);
+    }
+
+    /**
+     * Добавить подписчика на изменения стаканов всех инструментов.
+     *
+     * @param subscriber подписчик
+     */
+    public void addSubscriber(final Subscriber subscriber) {
+        commonSubscribers.add(subscriber);
+    }
+
+    /**
+     * @param classCode код класса
+     * @param secCode   код инструмента
+     * @return актуальный стакан или {@code null}, если инструмент не добавлен
+     */
+    public QuoteLevel2 get(final String classCode, final String secCode) {
+        return get(CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode));
+    }
+
+    /**
+     * @param securityId идентификатор инструмента в {@link ClassSecCodeRegistry}
+     * @return актуальный стакан или {@code null}, если инструмент не добавлен
+     */
+    public QuoteLevel2 get(final int securityId) {
+        final Book book = find(securityId);
+        return (book == null) ? null : book.quoteLevel2;
+    }
+
+    /**
+     * Обновить стакан инструмента по данным колбэка OnQuote и уведомить подписчиков,
+     * если какие-либо уровни изменились.
+     *
+     * @param classCode  код класса
+     * @param secCode    код инструмента
+     * @param jsonQuotes json-представление стакана
+     * @return {@code true}, если стакан изменился; {@code false}, если изменений нет или инструмент не добавлен
+     */
+    public boolean update(final String classCode, final String secCode, final JSONObject jsonQuotes) {
+        return update(CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode), jsonQuotes);
+    }
+
+    /**
+     * Обновить стакан инструмента по данным колбэка OnQuote и уведомить подписчиков,
+     * если какие-либо уровни изменились.
+     *
+     * @param securityId идентификатор инструмента в {@link ClassSecCodeRegistry}
+     * @param jsonQuotes json-представление стакана
+     * @return {@code true}, если стакан изменился; {@code false}, если изменений нет или инструмент не добавлен
+     */
+    public boolean update(final int securityId, final JSONObject jsonQuotes) {
+        final Book book = find(securityId);
+        if (book == null) {
+            return false;
+        }
+        QuikDecoder.quoteLevel2(jsonQuotes, newQuoteLevel2);
+        book.quoteLevel2.update(newQuoteLevel2, changes);
+        if (changes.size() == 0) {
+            return false;
+        }
+        for (final Subscriber subscriber : book.subscribers) {
+            subscriber.onQuoteLevel2(book.classSecCode, book.quoteLevel2, changes);
+        }
+        for (final Subscriber subscriber : commonSubscribers) {
+            subscriber.onQuoteLevel2(book.classSecCode, book.quoteLevel2, changes);
+        }
+        return true;
+    }
+
+    private Book find(final int securityId) {
+        return (securityId >= 0 && securityId < books.length) ? books[securityId] : null;
+    }
+
+    private Book getOrCreate(final ClassSecCode classSecCode) {
+        final int id = CLASS_SEC_CODE_REGISTRY.register(classSecCode);
+        if (id >= books.length) {
+            books = Arrays.copyOf(books, Math.max(Math.max(16, id + 1), books.length * 2));
+        }
+        if (books[id] == null) {
+            books[id] = new Book(classSecCode);
+        }
+        return books[id];
+    }
+}
@@ -0,0 +1,222 @@
+package com.algotrading.connectors.quik;
+
+import com.simpleutils.quik.SimpleQuikListener;
+
+/**
+ * Выполнение задач из очереди слушателя с ограничением по времени и количеству задач и сбор метрик очереди.
+ * <p>
+ * Очередь слушателя не сообщает ни свой размер, ни моменты постановки задач, поэтому глубина очереди
+ * оценивается по количеству задач, выполненных за один вызов (и по количеству вызовов, прерванных
+ * по ограничению), а задержка задач -- по паузе между вызовами и по задержке выполнения задачи
+ * относительно начала вызова.
+ * <p>
+ * Метод {@link #drain(SimpleQuikListener, long, int)} вызывается из одного потока; метрики могут читаться
+ * из любых потоков.
+ */
+public class RunnableQueueDrainer {
+
+    private volatile long drains;
+    private volatile long runnables;
+    private volatile long limitedDrains;
+    private volatile int lastDrainRunnables;
+    private volatile int maxDrainRunnables;
+    private volatile long lastDrainNanos;
+    private volatile long maxDrainNanos;
+    private volatile long totalDrainNanos;
+    private volatile long maxRunnableNanos;
+    private volatile long maxRunnableDelayNanos;
+    private volatile long lastGapNanos;
+    private volatile long maxGapNanos;
+    private long lastDrainEnd = Long.MIN_VALUE;
+
+    /**
+     * Выполнить задачи из очереди слушателя.
+     *
+     * @param listener     слушатель
+     * @param budgetNanos  ограничение по времени в наносекундах ({@link Long#MAX_VALUE} -- без ограничения);
+     *                     новая задача не начинается после его исчерпания, выполняемая задача не прерывается
+     * @param maxRunnables ограничение по количеству задач ({@link Integer#MAX_VALUE} -- без ограничения)
+     * @return количество выполненных задач
+     */
+    public int drain(final SimpleQuikListener listener, final long budgetNanos, final int maxRunnables) {
+        if (budgetNanos <= 0L) {
+            throw new IllegalArgumentException("Illegal budgetNanos: " + budgetNanos);
+        }
+        if (maxRunnables <= 0) {
+            throw new IllegalArgumentException("Illegal maxRunnables: " + maxRunnables);
+        }
+        final long start = System.nanoTime();
+        if (lastDrainEnd != Long.MIN_VALUE) {
+            final long gap = start - lastDrainEnd;
+            lastGapNanos = gap;
+            if (gap > maxGapNanos) {
+                maxGapNanos = gap;
+            }
+        }
+        int count = 0;
+        long maxRunnable = 0L;
+        long maxDelay = 0L;
+        long now = start;
+        boolean isLimited = false;
+        while (true) {
+            if (count >= maxRunnables || now - start >= budgetNanos) {
+                isLimited = true;
+                break;
+            }
+            final Runnable runnable = listener.poll();
+            if (runnable == null) {
+                break;
+            }
+            final long runnableStart = System.nanoTime();
+            try {
+                runnable.run();
+            } catch (final Exception e) {
+                listener.logError("Cannot execute a runnable submitted by "
+                        + listener.getClass().getSimpleName(), e);
+            }
+            now = System.nanoTime();
+            maxRunnable = Math.max(maxRunnable, now - runnableStart);
+            maxDelay = Math.max(maxDelay, runnableStart - start);
+            count++;
+        }
+        final long duration = now - start;
+        lastDrainEnd = now;
+        drains++;
+        runnables += count;
+        if (isLimited) {
+            limitedDrains++;
+        }
+        lastDrainRunnables = count;
+        if (count > maxDrainRunnables) {
+            maxDrainRunnables = count;
+        }
+        lastDrainNanos = duration;
+        if (duration > maxDrainNanos) {
+            maxDrainNanos = duration;
+        }
+        totalDrainNanos += duration;
+        if (maxRunnable > maxRunnableNanos) {
+            maxRunnableNanos = maxRunnable;
+        }
+        if (maxDelay > maxRunnableDelayNanos) {
+            maxRunnableDelayNanos = maxDelay;
+        }
+        return count;
+    }
+
+    /**
+     * Сбросить накопленные максимумы и счётчики. Вызывается из потока, выполняющего задачи.
+     */
+    public void reset() {
+        drains = 0L;
+        runnables = 0L;
+        limitedDrains = 0L;
+        lastDrainRunnables = 0;
+        maxDrainRunnables = 0;
+        lastDrainNanos = 0L;
+        maxDrainNanos = 0L;
+        totalDrainNanos = 0L;
+        maxRunnableNanos = 0L;
+        maxRunnableDelayNanos = 0L;
+        lastGapNanos = 0L;
+        maxGapNanos = 0L;
+    }
+
+    /**
+     * @return количество вызовов
+     */
+    public long getDrains() {
+        return drains;
+    }
+
+    /**
+     * @return общее количество выполненных задач
+     */
+    public long getRunnables() {
+        return runnables;
+    }
+
+    /**
+     * @return количество вызовов, прерванных по ограничению времени или количества задач
+     * (очередь могла остаться непустой)
+     */
+    public long getLimitedDrains() {
+        return limitedDrains;
+    }
+
+    /**
+     * @return количество задач, выполненных за последний вызов
+     */
+    public int getLastDrainRunnables() {
+        return lastDrainRunnables;
+    }
+
+    /**
+     * @return максимальное количество задач, выполненных за один вызов (оценка глубины очереди)
+     */
+    public int getMaxDrainRunnables() {
+        return maxDrainRunnables;
+    }
+
+    /**
+     * @return длительность последнего вызова в наносекундах
+     */
+    public long getLastDrainNanos() {
+        return lastDrainNanos;
+    }
+
+    /**
+     * @return максимальная длительность вызова в наносекундах
+     */
+    public long getMaxDrainNanos() {
+        return maxDrainNanos;
+    }
+
+    /**
+     * @return суммарная длительность вызовов в наносекундах
+     */
+    public long getTotalDrainNanos() {
+        return totalDrainNanos;
+    }
+
+    /**
+     * @return максимальная длительность выполнения одной задачи в наносекундах
+     */
+    public long getMaxRunnableNanos() {
+        return maxRunnableNanos;
+    }
+
+    /**
+     * @return максимальная задержка начала выполнения задачи относительно начала вызова в наносекундах
+     */
+    public long getMaxRunnableDelayNanos() {
+        return maxRunnableDelayNanos;
+    }
+
+    /**
+     * @return пауза между окончанием предыдущего и началом последнего вызова в наносекундах
+     */
+    public long getLastGapNanos() {
+        return lastGapNanos;
+    }
+
+    /**
+     * @return максимальная пауза между вызовами в наносекундах (верхняя оценка ожидания задачи до начала вызова)
+     */
+    public long getMaxGapNanos() {
+        return maxGapNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "RunnableQueueDrainer{drains=" + drains
+               + ", runnables=" + runnables
+               + ", limitedDrains=" + limitedDrains
+               + ", maxDrainRunnables=" + maxDrainRunnables
+               + ", maxDrainNanos=" + maxDrainNanos
+               + ", maxRunnableNanos=" + maxRunnableNanos
+               + ", maxRunnableDelayNanos=" + maxRunnableDelayNanos
+               + ", maxGapNanos=" + maxGapNanos
+               + '}';
+    }
+}
@@ -0,0 +1,21 @@
+package com.algotrading.connectors.quik;
+
+/**
+ * Терминал, задачи и обслуживание которого выполняются циклом: вызовом {@code step()} или {@link TerminalRunner}.
+ * Методы вызываются одним потоком.
+ */
+public interface RunnableTerminal {
+
+    /**
+     * Выполнить задачи из очереди слушателя в пределах ограничений терминала по времени и количеству задач;
+     * оставшиеся задачи выполняются при следующем вызове.
+     *
+     * @return количество выполненных задач
+     */
+    int drain();
+
+    /**
+     * Проверить соединение и подписки и записать метрики в журнал, если истёк период их записи.
+     */
+    void maintain();
+}
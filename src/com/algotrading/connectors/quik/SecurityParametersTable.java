@@ -0,0 +1,284 @@
+package com.algotrading.connectors.quik;
+
+import com.algotrading.base.helpers.ParseHelper;
+import com.simpleutils.quik.ClassSecCode;
+import org.json.simple.JSONObject;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import static com.algotrading.connectors.quik.ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY;
+
+/**
+ * Таблица текущих значений параметров инструментов (LAST, BID, OFFER и т.п.), на которые оформлена подписка.
+ * <p>
+ * Инструменты индексируются идентификаторами {@link ClassSecCodeRegistry}, каждому параметру инструмента
+ * присваивается индекс ячейки-примитива. Таблица обновляется одним потоком (потоком обработки колбэков),
+ * а читается любым количеством потоков без блокировок: согласованность набора значений инструмента
+ * обеспечивается счётчиком версий (seqlock), отдельное значение читается без ожидания.
+ * <p>
+ * Инструменты и параметры добавляются до запуска обработки колбэков или тем же потоком, который обновляет
+ * значения. Добавление не изменяет опубликованные данные: инструмент с новым параметром публикуется
+ * новой записью с копией значений, поэтому читатели видят либо прежний, либо новый набор параметров.
+ */
+public class SecurityParametersTable {
+
+    private static final VarHandle ENTRIES = MethodHandles.arrayElementVarHandle(Entry[].class);
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+    private static final VarHandle VERSION;
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(Entry.class, "version", long.class);
+        } catch (final ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Параметры инструмента и их значения.
+     */
+    private static final class Entry {
+        final String[] parameters;
+        final double[] values;
+        /**
+         * Версия значений: нечётная версия означает, что значения в процессе обновления.
+         */
+        @SuppressWarnings("unused")
+        long version;
+
+        Entry(final String[] parameters, final double[] values, final long version) {
+            this.parameters = parameters;
+            this.values = values;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Записи инструментов по идентификаторам; элементы публикуются с семантикой release.
+     */
+    private volatile Entry[] entries = new Entry[0];
+    private int size;
+
+    /**
+     * Добавить параметр инструмента в таблицу.
+     *
+     * @param classSecCode инструмент
+     * @param parameter    наименование параметра
+     * @return идентификатор инструмента в {@link ClassSecCodeRegistry}
+     */
+    public int add(final ClassSecCode classSecCode, final String parameter) {
+        final int id = CLASS_SEC_CODE_REGISTRY.register(classSecCode);
+        Entry[] array = entries;
+        final boolean isGrown = id >= array.length;
+        if (isGrown) {
+            array = Arrays.copyOf(array, Math.max(Math.max(16, id + 1), array.length * 2));
+        }
+        final Entry entry = array[id];
+        final Entry newEntry;
+        if (entry == null) {
+            newEntry = new Entry(new String[]{parameter}, new double[]{Double.NaN}, 0L);
+            size++;
+        } else if (indexOf(entry.parameters, parameter) < 0) {
+            final int n = entry.parameters.length;
+            final String[] newParameters = Arrays.copyOf(entry.parameters, n + 1);
+            newParameters[n] = parameter;
+            final double[] newValues = Arrays.copyOf(entry.values, n + 1);
+            newValues[n] = Double.NaN;
+            newEntry = new Entry(newParameters, newValues, (long) VERSION.get(entry));
+        } else {
+            return id;
+        }
+        ENTRIES.setRelease(array, id, newEntry);
+        if (isGrown) {
+            entries = array;
+        }
+        return id;
+    }
+
+    /**
+     * Удалить инструмент из таблицы. Вызывается только потоком-писателем. После удаления методы чтения
+     * по идентификатору инструмента ведут себя так же, как для не добавленного инструмента;
+     * снимок, читаемый во время удаления, остаётся согласованным.
+     *
+     * @param classSecCode инструмент
+     * @return {@code true}, если инструмент был в таблице
+     */
+    public boolean remove(final ClassSecCode classSecCode) {
+        final int id = CLASS_SEC_CODE_REGISTRY.getId(classSecCode.classCode(), classSecCode.secCode());
+        if (!contains(id)) {
+            return false;
+        }
+        ENTRIES.setRelease(entries, id, null);
+        size--;
+        return true;
+    }
+
+    /**
+     * @return количество инструментов в таблице
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param securityId идентификатор инструмента в {@link ClassSecCodeRegistry}
+     * @return {@code true}, если инструмент есть в таблице
+     */
+    public boolean contains(final int securityId) {
+        final Entry[] array = entries;
+        return securityId >= 0 && securityId < array.length && ENTRIES.getAcquire(array, securityId) != null;
+    }
+
+    /**
+     * @param classCode код класса
+     * @param secCode   код инструмента
+     * @return идентификатор инструмента или -1, если инструмент не добавлен
+     */
+    public int getSecurityId(final String classCode, final String secCode) {
+        final int id = CLASS_SEC_CODE_REGISTRY.getId(classCode, secCode);
+        return contains(id) ? id : -1;
+    }
+
+    /**
+     * @param securityId идентификатор инструмента
+     * @return инструмент
+     */
+    public ClassSecCode getClassSecCode(final int securityId) {
+        getEntry(securityId);
+        return CLASS_SEC_CODE_REGISTRY.get(securityId);
+    }
+
+    /**
+     * @param securityId идентификатор инструмента
+     * @return количество параметров инструмента
+     */
+    public int getParameterCount(final int securityId) {
+        return getEntry(securityId).parameters.length;
+    }
+
+    /**
+     * @param securityId идентификатор инструмента
+     * @param index      индекс параметра
+     * @return наименование параметра
+     */
+    public String getParameter(final int securityId, final int index) {
+        return getEntry(securityId).parameters[index];
+    }
+
+    /**
+     * @param securityId идентификатор инструмента
+     * @param parameter  наименование параметра
+     * @return индекс параметра или -1, если параметр не добавлен
+     */
+    public int getParameterIndex(final int securityId, final String parameter) {
+        return indexOf(getEntry(securityId).parameters, parameter);
+    }
+
+    private static int indexOf(final String[] array, final String parameter) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(parameter)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Прочитать текущее значение одного параметра без ожидания.
+     *
+     * @param securityId идентификатор инструмента
+     * @param index      индекс параметра
+     * @return значение или {@code NaN}, если оно ещё не получено
+     */
+    public double get(final int securityId, final int index) {
+        return (double) DOUBLES.getAcquire(getEntry(securityId).values, index);
+    }
+
+    /**
+     * @param securityId идентификатор инструмента
+     * @return версия значений инструмента: увеличивается при каждом обновлении, 0 -- значения ещё не получены
+     */
+    public long getVersion(final int securityId) {
+        return (long) VERSION.getAcquire(getEntry(securityId)) >>> 1;
+    }
+
+    /**
+     * Прочитать согласованный снимок значений всех параметров инструмента.
+     * Если снимок изменился во время чтения, чтение повторяется.
+     *
+     * @param securityId идентификатор инструмента
+     * @param snapshot   массив для записи значений в порядке индексов параметров
+     *                   (не короче {@link #getParameterCount(int)})
+     * @return версия прочитанного снимка
+     */
+    public long read(final int securityId, final double[] snapshot) {
+        final Entry entry = getEntry(securityId);
+        final double[] array = entry.values;
+        while (true) {
+            final long version = (long) VERSION.getAcquire(entry);
+            if ((version & 1L) == 0L) {
+                for (int i = 0; i < array.length; i++) {
+                    snapshot[i] = (double) DOUBLES.getOpaque(array, i);
+                }
+                VarHandle.acquireFence();
+                if ((long) VERSION.getOpaque(entry) == version) {
+                    return version >>> 1;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Обновить значения параметров инструмента по json-объекту, полученному из QUIK.
+     * Значение параметра задаётся числом, строкой или таблицей getParamEx с полем {@code param_value}.
+     * Параметры, отсутствующие в json-объекте, сохраняют прежние значения. Вызывается только потоком-писателем.
+     *
+     * @param securityId идентификатор инструмента в {@link ClassSecCodeRegistry}
+     * @param json       json-объект вида {"LAST":..., "BID":..., ...}
+     * @return {@code true}, если инструмент есть в таблице
+     */
+    public boolean update(final int securityId, final JSONObject json) {
+        if (!contains(securityId)) {
+            return false;
+        }
+        final Entry entry = entries[securityId];
+        final String[] names = entry.parameters;
+        final double[] array = entry.values;
+        final long version = (long) VERSION.get(entry);
+        VERSION.setOpaque(entry, version + 1L);
+        VarHandle.storeStoreFence();
+        for (int i = 0; i < names.length; i++) {
+            final Object value = json.get(names[i]);
+            if (value != null) {
+                DOUBLES.setOpaque(array, i, parseValue(value));
+            }
+        }
+        VERSION.setRelease(entry, version + 2L);
+        return true;
+    }
+
+    private static double parseValue(final Object value) {
+        final Object o = (value instanceof JSONObject json) ? json.get("param_value") : value;
+        if (o == null) {
+            return Double.NaN;
+        }
+        try {
+            return ParseHelper.asDouble(o);
+        } catch (final RuntimeException e) {
+            return Double.NaN;
+        }
+    }
+
+    private Entry getEntry(final int securityId) {
+        final Entry[] array = entries;
+        final Entry entry = (securityId >= 0 && securityId < array.length)
+                ? (Entry) ENTRIES.getAcquire(array, securityId) : null;
+        if (entry == null) {
+            throw new IllegalArgumentException("Illegal securityId: " + securityId);
+        }
+        return entry;
+    }
+}
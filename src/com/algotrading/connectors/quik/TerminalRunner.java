@@ -0,0 +1,171 @@
+package com.algotrading.connectors.quik;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Цикл обработки событий терминалов, заменяющий внешний цикл вида "step(), затем Thread.sleep(100L)".
+ * <p>
+ * Поток выполняет задачи слушателей терминалов ({@link RunnableTerminal#drain()}) в пределах ограничений,
+ * заданных терминалам, как только задачи появляются в очередях, а при их отсутствии ожидает согласно выбранной
+ * стратегии; обслуживание терминалов ({@link RunnableTerminal#maintain()}: проверка соединения и подписок,
+ * запись метрик) выполняется по таймеру.
+ * Очереди слушателей не сообщают о поступлении задач, поэтому в режиме {@link WaitStrategy#BLOCKING}
+ * поток засыпает с нарастающей паузой, ограниченной {@code maxParkDuration}, и немедленно просыпается
+ * по вызову {@link #wakeUp()}.
+ * <p>
+ * Поток может быть виртуальным: {@code runner.start(Thread.ofVirtual().factory())}
+ * (для стратегий {@link WaitStrategy#BLOCKING}).
+ */
+public class TerminalRunner implements Runnable {
+
+    /**
+     * Стратегия ожидания при отсутствии задач.
+     */
+    public enum WaitStrategy {
+        /**
+         * Короткое активное ожидание, затем сон с нарастающей паузой; минимальная нагрузка на процессор.
+         */
+        BLOCKING,
+        /**
+         * Уступать процессор другим потокам ({@link Thread#yield()}).
+         */
+        YIELDING,
+        /**
+         * Активное ожидание ({@link Thread#onSpinWait()}); минимальная задержка, полная загрузка ядра.
+         */
+        BUSY_SPIN
+    }
+
+    private static final int SPIN_ITERATIONS = 100;
+    private static final int YIELD_ITERATIONS = 10;
+    private static final long MIN_PARK_NANOS = 10_000L;
+
+    private final List<RunnableTerminal> terminals;
+    private final WaitStrategy waitStrategy;
+    private final long maintenancePeriodNanos;
+    private final long maxParkNanos;
+    private volatile boolean isStopped;
+    private volatile Thread thread;
+
+    /**
+     * Конструктор.
+     *
+     * @param terminals         терминалы, задачи которых выполняются
+     * @param waitStrategy      стратегия ожидания
+     * @param maintenancePeriod период обслуживания терминалов
+     * @param maxParkDuration   максимальная пауза в режиме {@link WaitStrategy#BLOCKING}
+     */
+    public TerminalRunner(final List<? extends RunnableTerminal> terminals,
+                          final WaitStrategy waitStrategy,
+                          final Duration maintenancePeriod,
+                          final Duration maxParkDuration) {
+        if (terminals.isEmpty()) {
+            throw new IllegalArgumentException("Illegal terminals: empty");
+        }
+        if (maintenancePeriod.isNegative() || maintenancePeriod.isZero()) {
+            throw new IllegalArgumentException("Illegal maintenancePeriod: " + maintenancePeriod);
+        }
+        if (maxParkDuration.isNegative() || maxParkDuration.isZero()) {
+            throw new IllegalArgumentException("Illegal maxParkDuration: " + maxParkDuration);
+        }
+        this.terminals = List.copyOf(terminals);
+        this.waitStrategy = Objects.requireNonNull(waitStrategy);
+        maintenancePeriodNanos = maintenancePeriod.toNanos();
+        maxParkNanos = maxParkDuration.toNanos();
+    }
+
+    public static TerminalRunner of(final RunnableTerminal terminal, final WaitStrategy waitStrategy) {
+        return new TerminalRunner(List.of(terminal), waitStrategy, Duration.ofMillis(100L), Duration.ofMillis(1L));
+    }
+
+    /**
+     * Запустить цикл в новом потоке.
+     *
+     * @param threadFactory фабрика потоков (например, {@code Thread.ofVirtual().factory()})
+     * @return запущенный поток
+     */
+    public Thread start(final ThreadFactory threadFactory) {
+        final Thread newThread = threadFactory.newThread(this);
+        newThread.start();
+        return newThread;
+    }
+
+    /**
+     * Остановить цикл. Поток завершается после выполнения текущей задачи; повторный запуск не предусмотрен.
+     */
+    public void stop() {
+        isStopped = true;
+        wakeUp();
+    }
+
+    /**
+     * Разбудить поток цикла, если он ожидает задачи (например, после добавления задачи в очередь из другого потока).
+     */
+    public void wakeUp() {
+        final Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            long nextMaintenance = System.nanoTime();
+            int idleIterations = 0;
+            long parkNanos = MIN_PARK_NANOS;
+            while (!isStopped && !Thread.currentThread().isInterrupted()) {
+                final boolean isProcessed = drain();
+                final long now = System.nanoTime();
+                if (now - nextMaintenance >= 0L) {
+                    for (final RunnableTerminal terminal : terminals) {
+                        terminal.maintain();
+                    }
+                    nextMaintenance = System.nanoTime() + maintenancePeriodNanos;
+                }
+                if (isProcessed) {
+                    idleIterations = 0;
+                    parkNanos = MIN_PARK_NANOS;
+                    continue;
+                }
+                switch (waitStrategy) {
+                    case BUSY_SPIN -> Thread.onSpinWait();
+                    case YIELDING -> Thread.yield();
+                    case BLOCKING -> {
+                        if (idleIterations < SPIN_ITERATIONS) {
+                            Thread.onSpinWait();
+                        } else if (idleIterations < SPIN_ITERATIONS + YIELD_ITERATIONS) {
+                            Thread.yield();
+                        } else {
+                            LockSupport.parkNanos(this,
+                                    Math.max(0L, Math.min(Math.min(parkNanos, maxParkNanos), nextMaintenance - System.nanoTime())));
+                            parkNanos = Math.min(parkNanos * 2L, maxParkNanos);
+                        }
+                    }
+                }
+                if (idleIterations < SPIN_ITERATIONS + YIELD_ITERATIONS) {
+                    idleIterations++;
+                }
+            }
+        } finally {
+            thread = null;
+        }
+    }
+
+    private boolean drain() {
+        boolean isProcessed = false;
+        for (final RunnableTerminal terminal : terminals) {
+            isProcessed |= terminal.drain() > 0;
+        }
+        return isProcessed;
+    }
+}
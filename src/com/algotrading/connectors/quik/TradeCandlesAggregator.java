@@ -0,0 +1,187 @@
+package com.algotrading.connectors.quik;
+
+import com.algotrading.base.core.columns.LongColumn;
+import com.algotrading.base.core.series.FinSeries;
+import org.json.simple.JSONObject;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Построение свечей ряда {@link MarketDataSeries} из ленты обезличенных сделок {@link TradeTape}
+ * вместо периодических запросов свечей из терминала.
+ * <p>
+ * Полный запрос свечей выполняется только при старте и после обнаруженного разрыва
+ * (читатель ленты отстал и сделки были потеряны или лента отметила разрыв при смене состояния связи
+ * с терминалом, {@link TradeTape#markGap()}) -- см. {@link #isSynchronizationRequired()}.
+ * Между ними свечи достраиваются по сделкам: свеча закрывается с приходом первой сделки следующего
+ * интервала, а незакрытая свеча передаётся в {@link MarketDataSeries#commit(FinSeries)} один раз
+ * за вызов {@link #poll()}, если она изменилась.
+ * <p>
+ * Класс не является потокобезопасным; методы вызываются из потока, обрабатывающего колбэки терминала.
+ */
+public class TradeCandlesAggregator {
+
+    private final MarketDataSeries marketDataSeries;
+    private final TradeTape tradeTape;
+    private final TradeTape.Cursor cursor;
+    private boolean isSynchronizationRequired = true;
+    private long lost;
+    private long gaps;
+
+    private long timeFrameStart = Long.MIN_VALUE;
+    private double open;
+    private double high;
+    private double low;
+    private double close;
+    private long volume;
+    private boolean isChanged;
+    private FinSeries pending;
+
+    /**
+     * Конструктор.
+     *
+     * @param marketDataSeries ряд, свечи которого достраиваются
+     * @param tradeTape        лента обезличенных сделок по инструменту этого ряда
+     */
+    public TradeCandlesAggregator(final MarketDataSeries marketDataSeries, final TradeTape tradeTape) {
+        if (!marketDataSeries.hasTimeFrame()) {
+            throw new IllegalArgumentException("Unsupported interval: " + marketDataSeries.interval);
+        }
+        this.marketDataSeries = marketDataSeries;
+        this.tradeTape = tradeTape;
+        cursor = tradeTape.tailCursor();
+    }
+
+    public MarketDataSeries getMarketDataSeries() {
+        return marketDataSeries;
+    }
+
+    /**
+     * @return {@code true}, если нужен полный запрос свечей: при старте или после потери сделок
+     * или смены состояния связи с терминалом
+     */
+    public boolean isSynchronizationRequired() {
+        return isSynchronizationRequired;
+    }
+
+    /**
+     * Выполнить полный запрос свечей через слушатель и синхронизироваться с ним.
+     * Размер запроса -- наибольший из {@link MarketDataSeries#updateSizes}.
+     *
+     * @param marketDataQuikListener слушатель терминала
+     * @return результат {@link MarketDataSeries#commit(FinSeries)}
+     * @throws ExecutionException   если запрос завершился с ошибкой
+     * @throws InterruptedException если поток был прерван
+     */
+    public int synchronize(final MarketDataQuikListener marketDataQuikListener) throws ExecutionException, InterruptedException {
+        final int[] updateSizes = marketDataSeries.updateSizes;
+        return synchronize(marketDataQuikListener.getCandles(
+                marketDataSeries.classCode,
+                marketDataSeries.secCode,
+                marketDataSeries.interval,
+                updateSizes[updateSizes.length - 1]));
+    }
+
+    /**
+     * Синхронизироваться с полным окном свечей, полученным из терминала. Сделки, уже записанные в ленту,
+     * считаются учтёнными в этих свечах; последующие сделки достраивают последнюю свечу окна.
+     * Поэтому свечи следует запрашивать, когда очередь колбэков обработана.
+     *
+     * @param candles json-объект, полученный из QUIK
+     * @return результат {@link MarketDataSeries#commit(FinSeries)}
+     */
+    public int synchronize(final JSONObject candles) {
+        marketDataSeries.resetLastTimeCode();
+        final FinSeries series = marketDataSeries.decode(candles);
+        final LongColumn timeCode = series.timeCode();
+        final int n = timeCode.length();
+        if (n == 0) {
+            timeFrameStart = Long.MIN_VALUE;
+        } else {
+            timeFrameStart = timeCode.get(n - 1);
+            open = series.open().get(n - 1);
+            high = series.high().get(n - 1);
+            low = series.low().get(n - 1);
+            close = series.close().get(n - 1);
+            volume = series.volume().get(n - 1);
+        }
+        isChanged = false;
+        pending = null;
+        while (cursor.next()) {
+            // сделки, записанные до синхронизации, уже учтены в свечах терминала
+        }
+        lost = cursor.lost();
+        gaps = tradeTape.gaps();
+        isSynchronizationRequired = false;
+        return marketDataSeries.commit(series);
+    }
+
+    /**
+     * Обработать новые сделки из ленты.
+     *
+     * @return количество обработанных сделок
+     */
+    public int poll() {
+        int count = 0;
+        while (cursor.next()) {
+            count++;
+            if (isSynchronizationRequired) {
+                continue;
+            }
+            final long tfs = marketDataSeries.getTradeTimeFrameStart(cursor.timeCode());
+            if (tfs == Long.MIN_VALUE) {
+                continue;
+            }
+            final double price = cursor.price();
+            if (tfs == timeFrameStart) {
+                if (high < price) {
+                    high = price;
+                }
+                if (low > price) {
+                    low = price;
+                }
+                close = price;
+                volume += cursor.quantity();
+            } else if (tfs > timeFrameStart) {
+                if (isChanged) {
+                    appendOpenBar();
+                }
+                timeFrameStart = tfs;
+                open = high = low = close = price;
+                volume = cursor.quantity();
+            } else {
+                continue;
+            }
+            isChanged = true;
+        }
+        if (cursor.lost() != lost || tradeTape.gaps() != gaps) {
+            lost = cursor.lost();
+            gaps = tradeTape.gaps();
+            isSynchronizationRequired = true;
+            pending = null;
+            isChanged = false;
+            return count;
+        }
+        if (isChanged) {
+            appendOpenBar();
+            isChanged = false;
+        }
+        if (pending != null) {
+            marketDataSeries.commit(pending);
+            pending = null;
+        }
+        return count;
+    }
+
+    private void appendOpenBar() {
+        if (pending == null) {
+            pending = FinSeries.newCandles();
+        }
+        pending.timeCode().append(timeFrameStart);
+        pending.open().append(open);
+        pending.high().append(high);
+        pending.low().append(low);
+        pending.close().append(close);
+        pending.volume().append(volume);
+    }
+}
@@ -0,0 +1,223 @@
+package com.algotrading.connectors.quik;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Лента обезличенных сделок по одному инструменту: кольцевой буфер фиксированной ёмкости
+ * на массивах примитивов (цена, количество, направление, номер сделки, время).
+ * <p>
+ * Запись выполняется одним потоком (потоком обработки колбэков OnAllTrade), чтение -- любым количеством
+ * потоков через собственные курсоры {@link Cursor}. Ни запись, ни чтение не создают объектов.
+ * Если читатель отстал более чем на ёмкость буфера, устаревшие сделки пропускаются, а их количество
+ * учитывается в {@link Cursor#lost()}.
+ */
+public class TradeTape {
+
+    /**
+     * Направление сделки не определено.
+     */
+    public static final int SIDE_UNKNOWN = 0;
+    /**
+     * Сделка по инициативе покупателя.
+     */
+    public static final int SIDE_BUY = 1;
+    /**
+     * Сделка по инициативе продавца.
+     */
+    public static final int SIDE_SELL = -1;
+
+    private final int mask;
+    private final double[] prices;
+    private final long[] quantities;
+    private final byte[] sides;
+    private final long[] tradeNums;
+    private final long[] timeCodes;
+    /**
+     * Количество опубликованных сделок; запись в массивы выполняется до увеличения счётчика.
+     */
+    private volatile long sequence;
+    /**
+     * Количество отмеченных разрывов ленты.
+     */
+    private volatile long gaps;
+
+    /**
+     * Конструктор.
+     *
+     * @param capacity ёмкость буфера; округляется вверх до степени двойки
+     */
+    public TradeTape(final int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        final int size = (capacity == 1) ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        prices = new double[size];
+        quantities = new long[size];
+        sides = new byte[size];
+        tradeNums = new long[size];
+        timeCodes = new long[size];
+    }
+
+    /**
+     * @return ёмкость буфера
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return общее количество записанных сделок
+     */
+    public long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return количество отмеченных разрывов ленты
+     */
+    public long gaps() {
+        return gaps;
+    }
+
+    /**
+     * Отметить разрыв ленты: сделки могли быть не получены (например, пока терминал был не в сети),
+     * хотя переполнения буфера не было. Вызывается только потоком-писателем.
+     */
+    public void markGap() {
+        gaps = gaps + 1;
+    }
+
+    /**
+     * Записать сделку. Вызывается только потоком-писателем.
+     *
+     * @param price    цена
+     * @param quantity количество
+     * @param side     направление: {@link #SIDE_BUY}, {@link #SIDE_SELL} или {@link #SIDE_UNKNOWN}
+     * @param tradeNum номер сделки
+     * @param timeCode время сделки
+     */
+    public void append(final double price, final long quantity, final int side, final long tradeNum, final long timeCode) {
+        final long s = sequence;
+        // Запись предыдущего значения счётчика должна стать видимой раньше перезаписи ячейки:
+        // иначе читатель увидит новые данные ячейки вместе со старым счётчиком и примет их за старую сделку
+        VarHandle.storeStoreFence();
+        final int i = (int) s & mask;
+        prices[i] = price;
+        quantities[i] = quantity;
+        sides[i] = (byte) side;
+        tradeNums[i] = tradeNum;
+        timeCodes[i] = timeCode;
+        sequence = s + 1;
+    }
+
+    /**
+     * Создать курсор, начинающий чтение с первой ещё доступной сделки.
+     *
+     * @return курсор
+     */
+    public Cursor cursor() {
+        final Cursor cursor = new Cursor();
+        cursor.position = Math.max(0L, sequence - capacity());
+        return cursor;
+    }
+
+    /**
+     * Создать курсор, начинающий чтение со следующей записанной сделки.
+     *
+     * @return курсор
+     */
+    public Cursor tailCursor() {
+        final Cursor cursor = new Cursor();
+        cursor.position = sequence;
+        return cursor;
+    }
+
+    /**
+     * Курсор для чтения ленты сделок. Курсор используется одним потоком-читателем;
+     * после успешного {@link #next()} поля текущей сделки скопированы в курсор и не меняются до следующего вызова.
+     */
+    public final class Cursor {
+        private long position;
+        private long lost;
+        private double price;
+        private long quantity;
+        private int side;
+        private long tradeNum;
+        private long timeCode;
+
+        private Cursor() {
+        }
+
+        /**
+         * Перейти к следующей сделке.
+         *
+         * @return {@code true}, если сделка прочитана; {@code false}, если новых сделок нет
+         */
+        public boolean next() {
+            while (true) {
+                final long available = sequence;
+                if (position >= available) {
+                    return false;
+                }
+                final long oldest = available - capacity();
+                if (position < oldest) {
+                    lost += oldest - position;
+                    position = oldest;
+                }
+                final int i = (int) position & mask;
+                price = prices[i];
+                quantity = quantities[i];
+                side = sides[i];
+                tradeNum = tradeNums[i];
+                timeCode = timeCodes[i];
+                VarHandle.acquireFence();
+                if (sequence - position <= capacity() - 1) {
+                    position++;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return номер следующей читаемой сделки в последовательности записи
+         */
+        public long position() {
+            return position;
+        }
+
+        /**
+         * @return количество сделок, пропущенных из-за переполнения буфера
+         */
+        public long lost() {
+            return lost;
+        }
+
+        /**
+         * @return количество сделок, записанных, но ещё не прочитанных этим курсором
+         */
+        public long remaining() {
+            return Math.max(0L, sequence - position);
+        }
+
+        public double price() {
+            return price;
+        }
+
+        public long quantity() {
+            return quantity;
+        }
+
+        public int side() {
+            return side;
+        }
+
+        public long tradeNum() {
+            return tradeNum;
+        }
+
+        public long timeCode() {
+            return timeCode;
+        }
+    }
+}
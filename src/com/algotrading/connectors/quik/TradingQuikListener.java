@@ -1,24 +1,156 @@
 package com.algotrading.connectors.quik;
 
+import com.algotrading.connectors.quik.execution.*;
 import com.simpleutils.json.JSONConfig;
 import com.simpleutils.logs.AbstractLogger;
 import com.simpleutils.quik.SimpleQuikListener;
+import com.simpleutils.quik.requests.Request;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.time.Duration;
 import java.time.temporal.ChronoUnit;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
 import static com.simpleutils.json.JSONConfig.getLong;
 
 public class TradingQuikListener extends SimpleQuikListener {
 
-    public final Map<Long, JSONObject> transReplyMap = new HashMap<>();
+    /**
+     * Последние ответы на транзакции по номерам транзакций (не более {@link #transReplyMapCapacity},
+     * более старые удаляются). Заполняется, только если задана ёмкость
+     * {@link #setTransReplyMapCapacity(int)}.
+     *
+     * @deprecated заявки по номерам транзакций и номерам заявок хранятся в {@link #getOrderTable()},
+     * ответы на транзакции передаются в {@link #setTransReplyHandler(Consumer)}
+     */
+    @Deprecated
+    public final Map<Long, JSONObject> transReplyMap = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, JSONObject> eldest) {
+            return size() > transReplyMapCapacity;
+        }
+    };
+    /**
+     * Максимальное количество ответов на транзакции в {@link #transReplyMap}; 0 -- не заполнять.
+     */
+    private int transReplyMapCapacity = 0;
     private long uid = 0L;
     private JSONArray brokerRefs = new JSONArray();
+    protected CallbackJournal callbackJournal = null;
+    private final QuikTransReplyEvent transReplyEvent = new QuikTransReplyEvent();
+    private final QuikOrderEvent orderEvent = new QuikOrderEvent();
+    private final QuikTradeEvent tradeEvent = new QuikTradeEvent();
+    protected Consumer<QuikTransReplyEvent> transReplyHandler = null;
+    protected Consumer<QuikOrderEvent> orderHandler = null;
+    protected Consumer<QuikTradeEvent> tradeHandler = null;
+    protected final QuikListenerMetrics metrics = new QuikListenerMetrics();
+    protected final OrderLatencyTracker orderLatencyTracker = new OrderLatencyTracker();
+    protected final QuikPositionEngine positionEngine = new QuikPositionEngine();
+    /**
+     * Время хранения завершённых заявок в {@link #orderTable} в миллисекундах.
+     */
+    protected long orderRetentionMillis = 600_000L;
+    protected final QuikOrderTable orderTable = new QuikOrderTable(orderRetentionMillis);
+    /**
+     * Номера последних сделок и их комиссии для обработки повторных колбэков OnTrade.
+     */
+    private final RecentTradeNums recentTradeNums = new RecentTradeNums(1 << 16);
+    /**
+     * Сделки, лимитная заявка которых ещё не известна (номер заявки на бирже ещё не получен).
+     */
+    private final List<QuikTradeReply> unlinkedTrades = new ArrayList<>();
+    protected Consumer<QuikTradeReply> tradeReplyHandler = null;
+
+    /**
+     * Задать журнал, в который записываются все получаемые колбэки.
+     *
+     * @param callbackJournal журнал или {@code null}, если журналирование не нужно
+     */
+    public void setCallbackJournal(final CallbackJournal callbackJournal) {
+        this.callbackJournal = callbackJournal;
+    }
+
+    /**
+     * @return метрики запросов к терминалу, колбэков и подписок
+     */
+    public QuikListenerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return таблица заявок по номерам транзакций и номерам заявок на бирже
+     */
+    public QuikOrderTable getOrderTable() {
+        return orderTable;
+    }
+
+    /**
+     * Задать максимальное количество ответов на транзакции, хранимых в {@link #transReplyMap}.
+     * По умолчанию 0: ответы не хранятся, и их обработка не выделяет память.
+     *
+     * @param transReplyMapCapacity максимальное количество ответов или 0
+     */
+    public void setTransReplyMapCapacity(final int transReplyMapCapacity) {
+        if (transReplyMapCapacity < 0) {
+            throw new IllegalArgumentException("Illegal transReplyMapCapacity: " + transReplyMapCapacity);
+        }
+        this.transReplyMapCapacity = transReplyMapCapacity;
+        if (transReplyMapCapacity == 0) {
+            transReplyMap.clear();
+        }
+    }
+
+    /**
+     * Задать время хранения завершённых заявок в таблице заявок и не связанных с заявками сделок.
+     * Заявки, уже находящиеся в таблице, сохраняются.
+     *
+     * @param orderRetention время хранения
+     */
+    public void setOrderRetention(final Duration orderRetention) {
+        if (orderRetention.isNegative()) {
+            throw new IllegalArgumentException("Illegal orderRetention: " + orderRetention);
+        }
+        orderRetentionMillis = orderRetention.toMillis();
+        orderTable.setRetentionMillis(orderRetentionMillis);
+    }
+
+    /**
+     * Задать обработчик сделок по лимитным заявкам из {@link #orderTable}. Вызывается в потоке обработки
+     * колбэков один раз для каждой сделки после того, как сделка связана с лимитной заявкой и применена к ней
+     * и к позиции заявки.
+     *
+     * @param tradeReplyHandler обработчик или {@code null}
+     */
+    public void setTradeReplyHandler(final Consumer<QuikTradeReply> tradeReplyHandler) {
+        this.tradeReplyHandler = tradeReplyHandler;
+    }
+
+    /**
+     * @return задержки жизненного цикла заявок по инструментам
+     */
+    public OrderLatencyTracker getOrderLatencyTracker() {
+        return orderLatencyTracker;
+    }
+
+    /**
+     * @return позиции, изменяемые по сделкам лимитных заявок из {@link #orderTable}
+     */
+    public QuikPositionEngine getPositionEngine() {
+        return positionEngine;
+    }
+
+    /**
+     * Записать в журнал метрики, собранные с предыдущей записи, и сбросить их.
+     */
+    public void logMetrics() {
+        logger.info(logPrefix + "Metrics: " + metrics.snapshotAndReset());
+    }
 
     public void configurate(final AbstractLogger logger, final JSONObject config) {
         setLogger(logger);
@@ -31,6 +163,10 @@ public class TradingQuikListener extends SimpleQuikListener {
         configurate(config, "checkConnectedPeriod", this::setCheckConnectedPeriod);
         configurate(config, "subscriptionPeriod", this::setSubscriptionPeriod);
         configurate(config, "onlineDuration", this::setOnlineDuration);
+        configurate(config, "orderRetention", this::setOrderRetention);
+        if (config.containsKey("transReplyMapCapacity")) {
+            setTransReplyMapCapacity((int) JSONConfig.getLong(config, "transReplyMapCapacity"));
+        }
 
         configurateCallbacks((JSONArray) config.get("callbacks"));
     }
@@ -51,34 +187,128 @@ public class TradingQuikListener extends SimpleQuikListener {
         }
     }
 
+    /**
+     * Задать обработчик ответов на транзакции. Вызывается в потоке обработки колбэков
+     * для ответов с идентификатором пользователя {@code uid}; событие действительно только во время вызова.
+     *
+     * @param transReplyHandler обработчик или {@code null}
+     */
+    public void setTransReplyHandler(final Consumer<QuikTransReplyEvent> transReplyHandler) {
+        this.transReplyHandler = transReplyHandler;
+    }
+
+    /**
+     * Задать обработчик изменений заявок. Вызывается в потоке обработки колбэков
+     * для заявок с идентификатором пользователя {@code uid}; событие действительно только во время вызова.
+     *
+     * @param orderHandler обработчик или {@code null}
+     */
+    public void setOrderHandler(final Consumer<QuikOrderEvent> orderHandler) {
+        this.orderHandler = orderHandler;
+    }
+
+    /**
+     * Задать обработчик собственных сделок. Вызывается в потоке обработки колбэков
+     * для сделок с идентификатором пользователя {@code uid} один раз для каждой сделки: повторные колбэки
+     * по той же сделке изменяют только комиссию позиции; событие действительно только во время вызова.
+     *
+     * @param tradeHandler обработчик или {@code null}
+     */
+    public void setTradeHandler(final Consumer<QuikTradeEvent> tradeHandler) {
+        this.tradeHandler = tradeHandler;
+    }
+
+    /**
+     * Проверить соединение и удалить из таблицы заявок завершённые заявки, время хранения которых истекло,
+     * а также не связанные с заявками сделки, полученные раньше времени хранения.
+     */
+    @Override
+    public void ensureConnection() {
+        super.ensureConnection();
+        final long now = System.currentTimeMillis();
+        orderTable.evict(now);
+        if (!unlinkedTrades.isEmpty()) {
+            unlinkedTrades.removeIf(quikTradeReply -> {
+                if (now - quikTradeReply.time < orderRetentionMillis) {
+                    return false;
+                }
+                logger.debug(() -> logPrefix + "Trade " + quikTradeReply.tradeNum + " is not linked to any order.");
+                return true;
+            });
+        }
+    }
+
+    @Override
+    public void subscribe() {
+        try {
+            super.subscribe();
+        } finally {
+            metrics.recordSubscribe(isSubscribed);
+        }
+    }
+
+    /**
+     * Выполнить запрос к терминалу с записью времени выполнения в {@link #metrics}.
+     */
+    @Override
+    public Object executeMN(final Request request) throws ExecutionException, InterruptedException {
+        return metrics.execute(request.getClass().getSimpleName(), () -> super.executeMN(request));
+    }
+
     @Override
     protected void processCallback(final String callback, final JSONObject jsonObject) {
-        switch (callback) {
-            case "OnTransReply" -> onTransReply((JSONObject) jsonObject.get("arg1"));
-            case "OnOrder" -> onOrder((JSONObject) jsonObject.get("arg1"));
-            case "OnStopOrder" -> onStopOrder((JSONObject) jsonObject.get("arg1"));
-            case "OnTrade" -> onTrade((JSONObject) jsonObject.get("arg1"));
+        final long start = System.nanoTime();
+        try {
+            dispatchCallback(callback, jsonObject);
+        } finally {
+            metrics.recordCallback(callback, System.nanoTime() - start);
+        }
+    }
+
+    private void dispatchCallback(final String callback, final JSONObject jsonObject) {
+        if (callbackJournal != null) {
+            callbackJournal.append(callback, jsonObject);
+        }
+        switch (QuikCallback.of(callback)) {
+            case ON_TRANS_REPLY -> onTransReply((JSONObject) jsonObject.get("arg1"));
+            case ON_ORDER -> onOrder((JSONObject) jsonObject.get("arg1"));
+            case ON_STOP_ORDER -> onStopOrder((JSONObject) jsonObject.get("arg1"));
+            case ON_TRADE -> onTrade((JSONObject) jsonObject.get("arg1"));
             default -> super.processCallback(callback, jsonObject);
         }
     }
 
     protected void onTransReply(final JSONObject jsonObject) {
-        if (jsonObject == null || getLong(jsonObject, "uid") != uid) {
+        if (jsonObject == null) {
             return;
         }
-        final long transId = getLong(jsonObject, "trans_id");
-        if (transId == 0L) {
+        final QuikTransReplyEvent event = QuikDecoder.transReply(jsonObject, transReplyEvent);
+        if (event.uid != uid || event.transId == 0L) {
             return;
         }
         logger.debug(() -> logPrefix + "OnTransReply: " + jsonObject);
-        transReplyMap.put(transId, jsonObject);
+        if (transReplyMapCapacity > 0) {
+            transReplyMap.put(event.transId, jsonObject);
+        }
+        applyTransReply(event, System.currentTimeMillis());
+        if (transReplyHandler != null) {
+            transReplyHandler.accept(event);
+        }
     }
 
     protected void onOrder(final JSONObject jsonObject) {
-        if (jsonObject == null || getLong(jsonObject, "uid") != uid) {
+        if (jsonObject == null) {
+            return;
+        }
+        final QuikOrderEvent event = QuikDecoder.order(jsonObject, orderEvent);
+        if (event.uid != uid) {
             return;
         }
         logger.debug(() -> logPrefix + "OnOrder: " + jsonObject);
+        applyOrder(event, System.currentTimeMillis());
+        if (orderHandler != null) {
+            orderHandler.accept(event);
+        }
     }
 
     protected void onStopOrder(final JSONObject jsonObject) {
@@ -89,9 +319,202 @@ public class TradingQuikListener extends SimpleQuikListener {
     }
 
     protected void onTrade(final JSONObject jsonObject) {
-        if (jsonObject == null || jsonObject.get("uid") == null || getLong(jsonObject, "uid") != uid) {
+        if (jsonObject == null || jsonObject.get("uid") == null) {
+            return;
+        }
+        final QuikTradeEvent event = QuikDecoder.trade(jsonObject, tradeEvent);
+        if (event.uid != uid) {
             return;
         }
         logger.debug(() -> logPrefix + "OnTrade: " + jsonObject);
+        final Object price = jsonObject.get("price");
+        if (price == null || event.classCode == null || event.secCode == null) {
+            // Сделка без цены или инструмента не применяется ни к заявке, ни к позиции
+            // и не запоминается, поэтому может быть применена по повторному колбэку
+            logger.error(logPrefix + "Illegal OnTrade: " + jsonObject);
+            return;
+        }
+        if (event.tradeNum != 0L) {
+            final double commission = recentTradeNums.put(event.tradeNum, event.commission);
+            if (!Double.isNaN(commission)) {
+                // QUIK повторяет колбэк при изменении полей сделки: применяется только изменение комиссии
+                if (commission != event.commission) {
+                    applyCommission(event, event.commission - commission);
+                }
+                return;
+            }
+        }
+        applyTrade(event, price, System.currentTimeMillis());
+        if (tradeHandler != null) {
+            tradeHandler.accept(event);
+        }
+    }
+
+    /**
+     * Применить ответ на транзакцию к лимитной заявке или kill-заявке из {@link #orderTable}.
+     */
+    private void applyTransReply(final QuikTransReplyEvent event, final long now) {
+        final int transId = (int) event.transId;
+        final QuikLimitOrder quikLimitOrder = orderTable.getLimitOrder(transId);
+        if (quikLimitOrder != null) {
+            if (isFinal(quikLimitOrder.status)) {
+                return;
+            }
+            if (event.isError()) {
+                quikLimitOrder.errorCode = (int) event.errorCode;
+                quikLimitOrder.errorDescription = event.resultMsg;
+                orderLatencyTracker.setStatus(quikLimitOrder, QuikLimitStatus.ERROR, now);
+                orderTable.retire(transId, now);
+            } else if (event.isExecuted()) {
+                orderTable.setOrderNum(quikLimitOrder, event.orderNum);
+                acknowledge(quikLimitOrder, now);
+                linkTrades(quikLimitOrder, now);
+            } else if (quikLimitOrder.status == QuikLimitStatus.PENDING) {
+                orderLatencyTracker.setStatus(quikLimitOrder, QuikLimitStatus.SENT, now);
+            }
+            return;
+        }
+        final QuikKillOrder quikKillOrder = orderTable.getKillOrder(transId);
+        if (quikKillOrder == null
+            || quikKillOrder.status == QuikKillStatus.EXECUTED || quikKillOrder.status == QuikKillStatus.ERROR) {
+            return;
+        }
+        if (event.isError()) {
+            quikKillOrder.errorCode = (int) event.errorCode;
+            quikKillOrder.errorDescription = event.resultMsg;
+            orderLatencyTracker.setStatus(quikKillOrder, QuikKillStatus.ERROR, now);
+            orderTable.retire(transId, now);
+        } else if (event.isExecuted()) {
+            orderLatencyTracker.setStatus(quikKillOrder, QuikKillStatus.EXECUTED, now);
+            orderTable.retire(transId, now);
+        } else if (quikKillOrder.status == QuikKillStatus.PENDING) {
+            orderLatencyTracker.setStatus(quikKillOrder, QuikKillStatus.SENT, now);
+        }
+    }
+
+    /**
+     * Применить состояние заявки на бирже к лимитной заявке из {@link #orderTable}:
+     * остаток, номер заявки и статус (выставлена, снята или исполнена).
+     */
+    private void applyOrder(final QuikOrderEvent event, final long now) {
+        final QuikLimitOrder quikLimitOrder = findLimitOrder(event.orderNum, event.transId);
+        if (quikLimitOrder == null) {
+            return;
+        }
+        quikLimitOrder.volumeLeft = (int) event.balance;
+        if (!isFinal(quikLimitOrder.status)) {
+            acknowledge(quikLimitOrder, now);
+            if (!event.isActive()) {
+                orderLatencyTracker.setStatus(quikLimitOrder,
+                        event.isCancelled() ? QuikLimitStatus.CANCELLED : QuikLimitStatus.EXECUTED, now);
+                orderTable.retire(quikLimitOrder.transId, now);
+            }
+        }
+        linkTrades(quikLimitOrder, now);
+    }
+
+    /**
+     * Создать сделку и применить её к лимитной заявке; если лимитная заявка ещё не известна,
+     * сделка применяется после получения номера заявки на бирже.
+     */
+    private void applyTrade(final QuikTradeEvent event, final Object price, final long now) {
+        final QuikLimitOrder quikLimitOrder = findLimitOrder(event.orderNum, event.transId);
+        final QuikTradeReply quikTradeReply = new QuikTradeReply(now, quikLimitOrder,
+                event.classCode, event.secCode, String.valueOf(price), event.price,
+                (quikLimitOrder == null) ? 0 : quikLimitOrder.lotSize,
+                (int) (event.isSell() ? -event.quantity : event.quantity),
+                event.orderNum, event.tradeNum, event.commission, event.timeCode, event.settleDate);
+        if (quikLimitOrder == null) {
+            unlinkedTrades.add(quikTradeReply);
+        } else {
+            applyTradeReply(quikTradeReply, now);
+        }
+    }
+
+    /**
+     * Применить изменение комиссии уже полученной сделки: к сделке, ожидающей связи с лимитной заявкой,
+     * или к позиции лимитной заявки.
+     */
+    private void applyCommission(final QuikTradeEvent event, final double commission) {
+        for (final QuikTradeReply quikTradeReply : unlinkedTrades) {
+            if (quikTradeReply.tradeNum == event.tradeNum) {
+                quikTradeReply.commission += commission;
+                return;
+            }
+        }
+        final QuikLimitOrder quikLimitOrder = findLimitOrder(event.orderNum, event.transId);
+        if (quikLimitOrder != null) {
+            positionEngine.applyCommission(quikLimitOrder.quikPosition, commission);
+        }
+    }
+
+    private void applyTradeReply(final QuikTradeReply quikTradeReply, final long now) {
+        final QuikLimitOrder quikLimitOrder = quikTradeReply.quikLimitOrder;
+        quikLimitOrder.volumeTraded += Math.abs(quikTradeReply.volumeTraded);
+        quikLimitOrder.volumeLeft = Math.max(0,
+                Math.min(quikLimitOrder.volumeLeft, quikLimitOrder.volume - quikLimitOrder.volumeTraded));
+        // Сделка учитывается до выставления, выведенного из самой сделки, чтобы задержка исполнения
+        // не учитывалась от момента обработки сделки
+        orderLatencyTracker.onTrade(quikTradeReply);
+        if (!isFinal(quikLimitOrder.status)) {
+            acknowledge(quikLimitOrder, now);
+        }
+        if (quikLimitOrder.volumeLeft == 0 && !isFinal(quikLimitOrder.status)) {
+            orderLatencyTracker.setStatus(quikLimitOrder, QuikLimitStatus.EXECUTED, now);
+            orderTable.retire(quikLimitOrder.transId, now);
+        }
+        positionEngine.apply(quikTradeReply);
+        if (tradeReplyHandler != null) {
+            tradeReplyHandler.accept(quikTradeReply);
+        }
+    }
+
+    /**
+     * Применить к лимитной заявке сделки, полученные до получения номера заявки на бирже.
+     */
+    private void linkTrades(final QuikLimitOrder quikLimitOrder, final long now) {
+        if (unlinkedTrades.isEmpty() || quikLimitOrder.orderNum == 0L) {
+            return;
+        }
+        for (int i = 0; i < unlinkedTrades.size(); ) {
+            final QuikTradeReply quikTradeReply = unlinkedTrades.get(i);
+            if (quikTradeReply.orderNum == quikLimitOrder.orderNum) {
+                unlinkedTrades.remove(i);
+                quikTradeReply.quikLimitOrder = quikLimitOrder;
+                quikTradeReply.lotSize = quikLimitOrder.lotSize;
+                applyTradeReply(quikTradeReply, now);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * @return лимитная заявка по номеру заявки на бирже, а если она не найдена -- по номеру транзакции
+     * (тогда ей присваивается номер заявки на бирже), или {@code null}
+     */
+    private QuikLimitOrder findLimitOrder(final long orderNum, final long transId) {
+        final QuikLimitOrder quikLimitOrder = orderTable.getByOrderNum(orderNum);
+        if (quikLimitOrder != null) {
+            return quikLimitOrder;
+        }
+        final QuikLimitOrder byTransId = orderTable.getLimitOrder((int) transId);
+        if (byTransId != null) {
+            orderTable.setOrderNum(byTransId, orderNum);
+        }
+        return byTransId;
+    }
+
+    /**
+     * Перевести лимитную заявку, ожидающую выставления, в статус {@link QuikLimitStatus#EXECUTION}.
+     */
+    private void acknowledge(final QuikLimitOrder quikLimitOrder, final long now) {
+        if (quikLimitOrder.status == QuikLimitStatus.PENDING || quikLimitOrder.status == QuikLimitStatus.SENT) {
+            orderLatencyTracker.setStatus(quikLimitOrder, QuikLimitStatus.EXECUTION, now);
+        }
+    }
+
+    private static boolean isFinal(final QuikLimitStatus status) {
+        return status == QuikLimitStatus.CANCELLED || status == QuikLimitStatus.EXECUTED || status == QuikLimitStatus.ERROR;
     }
 }
@@ -5,20 +5,36 @@ import com.simpleutils.logs.AbstractLogger;
 import com.simpleutils.quik.QuikConnect;
 import org.json.simple.JSONObject;
 
+import java.time.Duration;
 import java.util.concurrent.ExecutionException;
 
-public class TradingTerminal {
+public class TradingTerminal implements RunnableTerminal {
 
     private final TradingQuikListener tradingQuikListener;
     private final QuikConnect quikConnect;
     private final String terminalId;
+    private final RunnableQueueDrainer runnableQueueDrainer = new RunnableQueueDrainer();
+    private long drainBudgetNanos = Long.MAX_VALUE;
+    private int maxRunnablesPerDrain = Integer.MAX_VALUE;
+    private long metricsLogPeriodNanos = 0L;
+    private long nextMetricsLogTime;
 
     public static TradingTerminal newInstance(final AbstractLogger logger, final JSONObject config) {
         final TradingQuikListener tradingQuikListener = new TradingQuikListener();
         tradingQuikListener.configurate(logger, config);
         final QuikConnect quikConnect = QuikConnect.newInstance(config, tradingQuikListener);
-        return new TradingTerminal(tradingQuikListener, quikConnect,
+        final TradingTerminal terminal = new TradingTerminal(tradingQuikListener, quikConnect,
                 JSONConfig.getString(config, "clientId"));
+        if (config.containsKey("drainBudgetMicros")) {
+            terminal.setDrainBudget(Duration.ofNanos(JSONConfig.getLong(config, "drainBudgetMicros") * 1000L));
+        }
+        if (config.containsKey("maxRunnablesPerDrain")) {
+            terminal.setMaxRunnablesPerDrain((int) JSONConfig.getLong(config, "maxRunnablesPerDrain"));
+        }
+        if (config.containsKey("metricsLogPeriod")) {
+            terminal.setMetricsLogPeriod(Duration.ofMillis(JSONConfig.getLong(config, "metricsLogPeriod")));
+        }
+        return terminal;
     }
 
     public TradingTerminal(final TradingQuikListener tradingQuikListener,
@@ -34,26 +50,106 @@ public class TradingTerminal {
         return terminalId;
     }
 
+    public TradingQuikListener getTradingQuikListener() {
+        return tradingQuikListener;
+    }
+
     public void start() {
         quikConnect.start();
     }
 
     public void step() {
-        processRunnables();
+        drain();
+        maintain();
+    }
+
+    /**
+     * Выполнить задачи из очереди слушателя в пределах ограничений {@link #setDrainBudget(Duration)}
+     * и {@link #setMaxRunnablesPerDrain(int)}.
+     */
+    @Override
+    public int drain() {
+        return runnableQueueDrainer.drain(tradingQuikListener, drainBudgetNanos, maxRunnablesPerDrain);
+    }
+
+    @Override
+    public void maintain() {
         tradingQuikListener.ensureConnection();
         tradingQuikListener.ensureSubscription();
+        if (metricsLogPeriodNanos > 0L && System.nanoTime() - nextMetricsLogTime >= 0L) {
+            nextMetricsLogTime = System.nanoTime() + metricsLogPeriodNanos;
+            tradingQuikListener.logMetrics();
+        }
     }
 
+    /**
+     * Выполнить все задачи из очереди слушателя.
+     */
     public void processRunnables() {
-        Runnable runnable;
-        while ((runnable = tradingQuikListener.poll()) != null) {
-            try {
-                runnable.run();
-            } catch (final Exception e) {
-                tradingQuikListener.logError("Cannot execute a runnable submitted by "
-                        + tradingQuikListener.getClass().getSimpleName(), e);
-            }
+        runnableQueueDrainer.drain(tradingQuikListener, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Выполнить задачи из очереди слушателя в пределах ограничений; оставшиеся задачи выполняются
+     * при следующем вызове.
+     *
+     * @param budget       ограничение по времени (выполняемая задача не прерывается)
+     * @param maxRunnables ограничение по количеству задач
+     * @return количество выполненных задач
+     */
+    public int processRunnables(final Duration budget, final int maxRunnables) {
+        return runnableQueueDrainer.drain(tradingQuikListener, budget.toNanos(), maxRunnables);
+    }
+
+    /**
+     * @return метрики выполнения задач из очереди слушателя
+     */
+    public RunnableQueueDrainer getRunnableQueueDrainer() {
+        return runnableQueueDrainer;
+    }
+
+    /**
+     * @return метрики запросов к терминалу, колбэков и подписок
+     */
+    public QuikListenerMetrics getMetrics() {
+        return tradingQuikListener.getMetrics();
+    }
+
+    /**
+     * Задать период записи метрик в журнал в {@link #step()}.
+     *
+     * @param period период или {@link Duration#ZERO}, если метрики не записываются
+     */
+    public void setMetricsLogPeriod(final Duration period) {
+        if (period.isNegative()) {
+            throw new IllegalArgumentException("Illegal metricsLogPeriod: " + period);
+        }
+        metricsLogPeriodNanos = period.toNanos();
+        nextMetricsLogTime = System.nanoTime() + metricsLogPeriodNanos;
+    }
+
+    /**
+     * Задать ограничение по времени на выполнение задач в {@link #step()}.
+     *
+     * @param budget ограничение по времени
+     */
+    public void setDrainBudget(final Duration budget) {
+        if (budget.isNegative() || budget.isZero()) {
+            throw new IllegalArgumentException("Illegal drainBudget: " + budget);
+        }
+        drainBudgetNanos = budget.toNanos();
+    }
+
+    /**
+     * Задать ограничение по количеству задач, выполняемых в {@link #step()}.
+     *
+     * @param maxRunnablesPerDrain ограничение по количеству задач
+     */
+    public void setMaxRunnablesPerDrain(final int maxRunnablesPerDrain) {
+        if (maxRunnablesPerDrain <= 0) {
+            throw new IllegalArgumentException("Illegal maxRunnablesPerDrain: " + maxRunnablesPerDrain);
         }
+        this.maxRunnablesPerDrain = maxRunnablesPerDrain;
     }
 
     public void shutdown() {
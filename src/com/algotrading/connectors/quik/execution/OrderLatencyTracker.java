@@ -0,0 +1,161 @@
+package com.algotrading.connectors.quik.execution;
+
+import com.algotrading.connectors.quik.LatencyHistogram;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.algotrading.connectors.quik.ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY;
+
+/**
+ * Задержки жизненного цикла заявок по инструментам, вычисляемые по моментам смены статусов заявок
+ * и получения сделок (System.nanoTime()).
+ * <p>
+ * Статусы заявок изменяются через методы {@code setStatus} трекера, сделки передаются в {@link #onTrade(QuikTradeReply)}.
+ * Изменения выполняются одним потоком (потоком обработки колбэков), гистограммы читаются из любых потоков.
+ */
+public class OrderLatencyTracker {
+
+    /**
+     * Этап жизненного цикла заявки.
+     */
+    public enum Stage {
+        /**
+         * От отправки лимитной заявки ({@link QuikLimitStatus#SENT}, если статус не устанавливался --
+         * от создания) до её выставления на бирже ({@link QuikLimitStatus#EXECUTION}): задержка терминала и биржи.
+         */
+        ORDER_TO_ACK,
+        /**
+         * От выставления лимитной заявки на бирже до получения первой сделки по ней.
+         */
+        ACK_TO_FILL,
+        /**
+         * От отправки kill-заявки ({@link QuikKillStatus#SENT}, если статус не устанавливался -- от создания)
+         * до её исполнения ({@link QuikKillStatus#EXECUTED}).
+         */
+        CANCEL_TO_CONFIRM
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * Гистограммы по идентификаторам инструментов в {@link com.algotrading.connectors.quik.ClassSecCodeRegistry}
+     * и этапам.
+     */
+    private volatile LatencyHistogram[][] histograms = new LatencyHistogram[0][];
+
+    /**
+     * Изменить статус лимитной заявки и учесть задержку выставления.
+     *
+     * @param quikLimitOrder лимитная заявка
+     * @param status         статус
+     * @param statusTime     время изменения статуса (System.currentTimeMillis())
+     */
+    public void setStatus(final QuikLimitOrder quikLimitOrder, final QuikLimitStatus status, final long statusTime) {
+        if (quikLimitOrder.setStatus(status, statusTime) && status == QuikLimitStatus.EXECUTION) {
+            final long start = quikLimitOrder.getStatusNanos(
+                    quikLimitOrder.hasStatus(QuikLimitStatus.SENT) ? QuikLimitStatus.SENT : QuikLimitStatus.PENDING);
+            record(quikLimitOrder.securityId(), Stage.ORDER_TO_ACK,
+                    quikLimitOrder.getStatusNanos(QuikLimitStatus.EXECUTION) - start);
+        }
+    }
+
+    /**
+     * Изменить статус kill-заявки и учесть задержку снятия.
+     *
+     * @param quikKillOrder kill-заявка
+     * @param status        статус
+     * @param statusTime    момент изменения статуса
+     */
+    public void setStatus(final QuikKillOrder quikKillOrder, final QuikKillStatus status, final long statusTime) {
+        if (quikKillOrder.setStatus(status, statusTime) && status == QuikKillStatus.EXECUTED) {
+            final long start = quikKillOrder.getStatusNanos(
+                    quikKillOrder.hasStatus(QuikKillStatus.SENT) ? QuikKillStatus.SENT : QuikKillStatus.PENDING);
+            record(quikKillOrder.quikLimitOrder.securityId(), Stage.CANCEL_TO_CONFIRM,
+                    quikKillOrder.getStatusNanos(QuikKillStatus.EXECUTED) - start);
+        }
+    }
+
+    /**
+     * Учесть сделку: для первой сделки по лимитной заявке запоминается момент её получения
+     * и учитывается задержка исполнения. Сделки, не связанные с лимитной заявкой, не учитываются.
+     * Задержка исполнения не учитывается, если выставление заявки стало известно позже получения сделки
+     * (сделка пришла раньше OnTransReply и OnOrder или ожидала получения номера заявки).
+     *
+     * @param quikTradeReply сделка
+     */
+    public void onTrade(final QuikTradeReply quikTradeReply) {
+        final QuikLimitOrder quikLimitOrder = quikTradeReply.quikLimitOrder;
+        if (quikLimitOrder == null || quikLimitOrder.isTraded) {
+            return;
+        }
+        quikLimitOrder.firstTradeNanos = quikTradeReply.nanoTime;
+        quikLimitOrder.isTraded = true;
+        if (quikLimitOrder.hasStatus(QuikLimitStatus.EXECUTION)) {
+            // Моменты System.nanoTime() сравниваются только по разности
+            final long nanos = quikTradeReply.nanoTime - quikLimitOrder.getStatusNanos(QuikLimitStatus.EXECUTION);
+            if (nanos >= 0L) {
+                record(quikLimitOrder.securityId(), Stage.ACK_TO_FILL, nanos);
+            }
+        }
+    }
+
+    /**
+     * @param securityId идентификатор инструмента
+     * @param stage      этап
+     * @return снимок гистограммы задержек (пустой, если задержки по инструменту не учитывались)
+     */
+    public LatencyHistogram.Snapshot snapshot(final int securityId, final Stage stage) {
+        final LatencyHistogram[][] array = histograms;
+        if (securityId < 0 || securityId >= array.length || array[securityId] == null) {
+            return new LatencyHistogram().snapshot();
+        }
+        return array[securityId][stage.ordinal()].snapshot();
+    }
+
+    /**
+     * @param stage этап
+     * @return снимки гистограмм задержек по инструментам в формате "CLASS:SEC"
+     */
+    public Map<String, LatencyHistogram.Snapshot> snapshots(final Stage stage) {
+        final LatencyHistogram[][] array = histograms;
+        final Map<String, LatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+        for (int securityId = 0; securityId < array.length; securityId++) {
+            if (array[securityId] != null) {
+                final LatencyHistogram.Snapshot snapshot = array[securityId][stage.ordinal()].snapshot();
+                if (snapshot.count() > 0L) {
+                    snapshots.put(CLASS_SEC_CODE_REGISTRY.security(securityId), snapshot);
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("OrderLatencyTracker{");
+        for (final Stage stage : STAGES) {
+            for (final Map.Entry<String, LatencyHistogram.Snapshot> entry : snapshots(stage).entrySet()) {
+                sb.append("\n  ").append(stage).append(' ').append(entry.getKey()).append(": ").append(entry.getValue());
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private void record(final int securityId, final Stage stage, final long nanos) {
+        LatencyHistogram[][] array = histograms;
+        if (securityId >= array.length || array[securityId] == null) {
+            final int capacity = (securityId < array.length)
+                    ? array.length : Math.max(Math.max(16, securityId + 1), array.length * 2);
+            array = Arrays.copyOf(array, capacity);
+            final LatencyHistogram[] stageHistograms = new LatencyHistogram[STAGES.length];
+            for (int i = 0; i < stageHistograms.length; i++) {
+                stageHistograms[i] = new LatencyHistogram();
+            }
+            array[securityId] = stageHistograms;
+            histograms = array;
+        }
+        array[securityId][stage.ordinal()].record(nanos);
+    }
+}
@@ -6,6 +6,8 @@ import java.util.Objects;
  * Kill-заявка в терминале QUIK.
  */
 public class QuikKillOrder {
+    private static final int STATUS_COUNT = QuikKillStatus.values().length;
+
     /**
      * Номер транзакции терминала QUIK для отправки kill-заявки.
      */
@@ -26,6 +28,16 @@ public class QuikKillOrder {
      * Момент изменения статуса заявки.
      */
     public long statusTime;
+    /**
+     * Моменты первого перехода kill-заявки в статусы по монотонным часам (System.nanoTime()),
+     * индекс -- порядковый номер статуса; значение действительно, только если статус есть в {@link #statusMask}
+     * (System.nanoTime() может вернуть любое значение, в том числе 0).
+     */
+    public final long[] statusNanos = new long[STATUS_COUNT];
+    /**
+     * Статусы, в которые kill-заявка переходила: бит с номером порядкового номера статуса.
+     */
+    public int statusMask;
     /**
      * Код ошибки или 0, если ошибки нет.
      */
@@ -43,10 +55,48 @@ public class QuikKillOrder {
         this.timeCreated = timeCreated;
         status = QuikKillStatus.PENDING;
         statusTime = timeCreated;
+        statusNanos[QuikKillStatus.PENDING.ordinal()] = System.nanoTime();
+        statusMask = 1 << QuikKillStatus.PENDING.ordinal();
         errorCode = 0;
         errorDescription = null;
     }
 
+    /**
+     * Изменить статус kill-заявки. Момент первого перехода в статус запоминается в {@link #statusNanos}.
+     *
+     * @param status     статус
+     * @param statusTime момент изменения статуса
+     * @return {@code true}, если kill-заявка перешла в статус впервые
+     */
+    public boolean setStatus(final QuikKillStatus status, final long statusTime) {
+        this.status = Objects.requireNonNull(status);
+        this.statusTime = statusTime;
+        final int index = status.ordinal();
+        if ((statusMask & (1 << index)) != 0) {
+            return false;
+        }
+        statusNanos[index] = System.nanoTime();
+        statusMask |= 1 << index;
+        return true;
+    }
+
+    /**
+     * @param status статус
+     * @return {@code true}, если kill-заявка переходила в статус
+     */
+    public boolean hasStatus(final QuikKillStatus status) {
+        return (statusMask & (1 << status.ordinal())) != 0;
+    }
+
+    /**
+     * @param status статус
+     * @return момент первого перехода kill-заявки в статус (System.nanoTime()); действителен,
+     * только если {@link #hasStatus(QuikKillStatus)}
+     */
+    public long getStatusNanos(final QuikKillStatus status) {
+        return statusNanos[status.ordinal()];
+    }
+
     public String security() {
         return quikLimitOrder.security();
     }
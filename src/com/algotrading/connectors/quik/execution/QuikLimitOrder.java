@@ -8,6 +8,8 @@ import static com.simpleutils.Deduplicator.STRING_DEDUPLICATOR;
  * Лимитная заявка в терминале QUIK.
  */
 public class QuikLimitOrder {
+    private static final int STATUS_COUNT = QuikLimitStatus.values().length;
+
     /**
      * Номер транзакции терминала QUIK для выставления заявки.
      */
@@ -56,6 +58,24 @@ public class QuikLimitOrder {
      * Время изменения статуса заявки (System.currentTimeMillis()).
      */
     public long statusTime;
+    /**
+     * Моменты первого перехода заявки в статусы по монотонным часам (System.nanoTime()),
+     * индекс -- порядковый номер статуса; значение действительно, только если статус есть в {@link #statusMask}
+     * (System.nanoTime() может вернуть любое значение, в том числе 0).
+     */
+    public final long[] statusNanos = new long[STATUS_COUNT];
+    /**
+     * Статусы, в которые заявка переходила: бит с номером порядкового номера статуса.
+     */
+    public int statusMask;
+    /**
+     * Момент получения первой сделки по заявке (System.nanoTime()); действителен, только если {@link #isTraded}.
+     */
+    public long firstTradeNanos;
+    /**
+     * {@code true}, если по заявке получена сделка.
+     */
+    public boolean isTraded;
     /**
      * Комментарий.
      */
@@ -89,11 +109,49 @@ public class QuikLimitOrder {
         this.timeToCancel = timeToCancel;
         status = QuikLimitStatus.PENDING;
         statusTime = timeCreated;
+        statusNanos[QuikLimitStatus.PENDING.ordinal()] = System.nanoTime();
+        statusMask = 1 << QuikLimitStatus.PENDING.ordinal();
         this.brokerRef = STRING_DEDUPLICATOR.deduplicate(Objects.requireNonNull(brokerRef));
         errorCode = 0;
         errorDescription = null;
     }
 
+    /**
+     * Изменить статус заявки. Момент первого перехода в статус запоминается в {@link #statusNanos}.
+     *
+     * @param status     статус
+     * @param statusTime время изменения статуса (System.currentTimeMillis())
+     * @return {@code true}, если заявка перешла в статус впервые
+     */
+    public boolean setStatus(final QuikLimitStatus status, final long statusTime) {
+        this.status = Objects.requireNonNull(status);
+        this.statusTime = statusTime;
+        final int index = status.ordinal();
+        if ((statusMask & (1 << index)) != 0) {
+            return false;
+        }
+        statusNanos[index] = System.nanoTime();
+        statusMask |= 1 << index;
+        return true;
+    }
+
+    /**
+     * @param status статус
+     * @return {@code true}, если заявка переходила в статус
+     */
+    public boolean hasStatus(final QuikLimitStatus status) {
+        return (statusMask & (1 << status.ordinal())) != 0;
+    }
+
+    /**
+     * @param status статус
+     * @return момент первого перехода заявки в статус (System.nanoTime()); действителен,
+     * только если {@link #hasStatus(QuikLimitStatus)}
+     */
+    public long getStatusNanos(final QuikLimitStatus status) {
+        return statusNanos[status.ordinal()];
+    }
+
     public String security() {
         return quikPosition.security;
     }
@@ -105,4 +163,8 @@ public class QuikLimitOrder {
     public String secCode() {
         return quikPosition.secCode;
     }
+
+    public int securityId() {
+        return quikPosition.securityId;
+    }
 }
@@ -0,0 +1,338 @@
+package com.algotrading.connectors.quik.execution;
+
+import java.util.Objects;
+
+/**
+ * Таблица лимитных и kill-заявок по номерам транзакций ({@code transId}) с дополнительным индексом
+ * лимитных заявок по номерам заявок на бирже ({@code orderNum}).
+ * <p>
+ * Индексы -- хеш-таблицы с открытой адресацией по примитивным ключам: поиск выполняется за O(1)
+ * без выделения памяти, память выделяется только при росте таблицы. Заявки в конечном статусе
+ * передаются в {@link #retire(int, long)} и удаляются из таблицы методом {@link #evict(long)}
+ * по истечении времени хранения, поэтому размер таблицы ограничен количеством активных заявок
+ * и заявок, завершённых за время хранения.
+ * <p>
+ * Таблица не синхронизирована и используется потоком обработки колбэков.
+ */
+public class QuikOrderTable {
+
+    private static final int MIN_CAPACITY = 64;
+
+    private long retentionMillis;
+
+    private int[] transIds = new int[MIN_CAPACITY];
+    private Object[] orders = new Object[MIN_CAPACITY];
+    private int size;
+
+    private long[] orderNums = new long[MIN_CAPACITY];
+    private QuikLimitOrder[] limitOrders = new QuikLimitOrder[MIN_CAPACITY];
+    private int orderNumSize;
+
+    /**
+     * Номера транзакций завершённых заявок и время их завершения в порядке завершения (кольцевой буфер).
+     */
+    private int[] retiredTransIds = new int[MIN_CAPACITY];
+    private long[] retiredTimes = new long[MIN_CAPACITY];
+    private int retiredHead;
+    private int retiredSize;
+
+    /**
+     * Конструктор.
+     *
+     * @param retentionMillis время хранения заявок после завершения в миллисекундах
+     */
+    public QuikOrderTable(final long retentionMillis) {
+        if (retentionMillis < 0L) {
+            throw new IllegalArgumentException("Illegal retentionMillis: " + retentionMillis);
+        }
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Задать время хранения заявок после завершения. Применяется и к уже завершённым заявкам
+     * при следующем {@link #evict(long)}.
+     *
+     * @param retentionMillis время хранения заявок после завершения в миллисекундах
+     */
+    public void setRetentionMillis(final long retentionMillis) {
+        if (retentionMillis < 0L) {
+            throw new IllegalArgumentException("Illegal retentionMillis: " + retentionMillis);
+        }
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * @return количество лимитных и kill-заявок в таблице
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Добавить лимитную заявку. Если номер заявки на бирже известен, заявка добавляется в индекс по нему.
+     *
+     * @param quikLimitOrder лимитная заявка
+     */
+    public void put(final QuikLimitOrder quikLimitOrder) {
+        putOrder(quikLimitOrder.transId, quikLimitOrder);
+        if (quikLimitOrder.orderNum != 0L) {
+            putOrderNum(quikLimitOrder.orderNum, quikLimitOrder);
+        }
+    }
+
+    /**
+     * Добавить kill-заявку.
+     *
+     * @param quikKillOrder kill-заявка
+     */
+    public void put(final QuikKillOrder quikKillOrder) {
+        putOrder(quikKillOrder.transId, quikKillOrder);
+    }
+
+    /**
+     * @param transId номер транзакции
+     * @return лимитная заявка или {@code null}, если лимитной заявки с таким номером транзакции нет
+     */
+    public QuikLimitOrder getLimitOrder(final int transId) {
+        return (get(transId) instanceof QuikLimitOrder quikLimitOrder) ? quikLimitOrder : null;
+    }
+
+    /**
+     * @param transId номер транзакции
+     * @return kill-заявка или {@code null}, если kill-заявки с таким номером транзакции нет
+     */
+    public QuikKillOrder getKillOrder(final int transId) {
+        return (get(transId) instanceof QuikKillOrder quikKillOrder) ? quikKillOrder : null;
+    }
+
+    /**
+     * @param orderNum номер заявки на бирже
+     * @return лимитная заявка или {@code null}, если заявки с таким номером нет
+     */
+    public QuikLimitOrder getByOrderNum(final long orderNum) {
+        if (orderNum == 0L) {
+            return null;
+        }
+        final int mask = orderNums.length - 1;
+        for (int i = index(orderNum, mask); orderNums[i] != 0L; i = (i + 1) & mask) {
+            if (orderNums[i] == orderNum) {
+                return limitOrders[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Задать номер заявки на бирже и добавить заявку в индекс по нему.
+     *
+     * @param quikLimitOrder лимитная заявка
+     * @param orderNum       номер заявки на бирже
+     */
+    public void setOrderNum(final QuikLimitOrder quikLimitOrder, final long orderNum) {
+        if (orderNum == 0L || quikLimitOrder.orderNum == orderNum) {
+            return;
+        }
+        if (quikLimitOrder.orderNum != 0L) {
+            removeOrderNum(quikLimitOrder.orderNum, quikLimitOrder);
+        }
+        quikLimitOrder.orderNum = orderNum;
+        putOrderNum(orderNum, quikLimitOrder);
+    }
+
+    /**
+     * Отметить заявку как завершённую: она будет удалена из таблицы по истечении времени хранения.
+     *
+     * @param transId номер транзакции
+     * @param time    время завершения (System.currentTimeMillis())
+     */
+    public void retire(final int transId, final long time) {
+        if (retiredSize == retiredTransIds.length) {
+            final int capacity = retiredTransIds.length * 2;
+            final int[] newTransIds = new int[capacity];
+            final long[] newTimes = new long[capacity];
+            for (int i = 0; i < retiredSize; i++) {
+                final int j = (retiredHead + i) & (retiredTransIds.length - 1);
+                newTransIds[i] = retiredTransIds[j];
+                newTimes[i] = retiredTimes[j];
+            }
+            retiredTransIds = newTransIds;
+            retiredTimes = newTimes;
+            retiredHead = 0;
+        }
+        final int j = (retiredHead + retiredSize) & (retiredTransIds.length - 1);
+        retiredTransIds[j] = transId;
+        retiredTimes[j] = time;
+        retiredSize++;
+    }
+
+    /**
+     * Удалить завершённые заявки, время хранения которых истекло.
+     * Заявка удаляется, только если она находится в конечном статусе.
+     *
+     * @param now текущее время (System.currentTimeMillis())
+     * @return количество удалённых заявок
+     */
+    public int evict(final long now) {
+        int count = 0;
+        final int mask = retiredTransIds.length - 1;
+        while (retiredSize > 0 && now - retiredTimes[retiredHead] >= retentionMillis) {
+            final int transId = retiredTransIds[retiredHead];
+            retiredHead = (retiredHead + 1) & mask;
+            retiredSize--;
+            final Object order = get(transId);
+            if (order != null && isFinal(order)) {
+                removeOrder(transId);
+                if (order instanceof QuikLimitOrder quikLimitOrder && quikLimitOrder.orderNum != 0L) {
+                    removeOrderNum(quikLimitOrder.orderNum, quikLimitOrder);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isFinal(final Object order) {
+        if (order instanceof QuikLimitOrder quikLimitOrder) {
+            return switch (quikLimitOrder.status) {
+                case CANCELLED, EXECUTED, ERROR -> true;
+                default -> false;
+            };
+        }
+        final QuikKillStatus status = ((QuikKillOrder) order).status;
+        return status == QuikKillStatus.EXECUTED || status == QuikKillStatus.ERROR;
+    }
+
+    private Object get(final int transId) {
+        if (transId == 0) {
+            return null;
+        }
+        final int mask = transIds.length - 1;
+        for (int i = index(transId, mask); transIds[i] != 0; i = (i + 1) & mask) {
+            if (transIds[i] == transId) {
+                return orders[i];
+            }
+        }
+        return null;
+    }
+
+    private void putOrder(final int transId, final Object order) {
+        if (transId == 0) {
+            throw new IllegalArgumentException("Illegal transId: " + transId);
+        }
+        Objects.requireNonNull(order);
+        if ((size + 1) * 2 > transIds.length) {
+            final int[] oldTransIds = transIds;
+            final Object[] oldOrders = orders;
+            transIds = new int[oldTransIds.length * 2];
+            orders = new Object[oldTransIds.length * 2];
+            size = 0;
+            for (int i = 0; i < oldTransIds.length; i++) {
+                if (oldTransIds[i] != 0) {
+                    putOrder(oldTransIds[i], oldOrders[i]);
+                }
+            }
+        }
+        final int mask = transIds.length - 1;
+        int i = index(transId, mask);
+        while (transIds[i] != 0 && transIds[i] != transId) {
+            i = (i + 1) & mask;
+        }
+        if (transIds[i] == 0) {
+            transIds[i] = transId;
+            size++;
+        }
+        orders[i] = order;
+    }
+
+    private void removeOrder(final int transId) {
+        final int mask = transIds.length - 1;
+        int i = index(transId, mask);
+        while (transIds[i] != transId) {
+            if (transIds[i] == 0) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        // Удаление со сдвигом последующих элементов цепочки, чтобы не оставлять пометок об удалении
+        for (int j = (i + 1) & mask; transIds[j] != 0; j = (j + 1) & mask) {
+            final int k = index(transIds[j], mask);
+            if (((j - k) & mask) >= ((j - i) & mask)) {
+                transIds[i] = transIds[j];
+                orders[i] = orders[j];
+                i = j;
+            }
+        }
+        transIds[i] = 0;
+        orders[i] = null;
+        size--;
+    }
+
+    private void putOrderNum(final long orderNum, final QuikLimitOrder quikLimitOrder) {
+        if ((orderNumSize + 1) * 2 > orderNums.length) {
+            final long[] oldOrderNums = orderNums;
+            final QuikLimitOrder[] oldLimitOrders = limitOrders;
+            orderNums = new long[oldOrderNums.length * 2];
+            limitOrders = new QuikLimitOrder[oldOrderNums.length * 2];
+            orderNumSize = 0;
+            for (int i = 0; i < oldOrderNums.length; i++) {
+                if (oldOrderNums[i] != 0L) {
+                    putOrderNum(oldOrderNums[i], oldLimitOrders[i]);
+                }
+            }
+        }
+        final int mask = orderNums.length - 1;
+        int i = index(orderNum, mask);
+        while (orderNums[i] != 0L && orderNums[i] != orderNum) {
+            i = (i + 1) & mask;
+        }
+        if (orderNums[i] == 0L) {
+            orderNums[i] = orderNum;
+            orderNumSize++;
+        }
+        limitOrders[i] = quikLimitOrder;
+    }
+
+    private void removeOrderNum(final long orderNum, final QuikLimitOrder quikLimitOrder) {
+        final int mask = orderNums.length - 1;
+        int i = index(orderNum, mask);
+        while (orderNums[i] != orderNum) {
+            if (orderNums[i] == 0L) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        if (limitOrders[i] != quikLimitOrder) {
+            return;
+        }
+        for (int j = (i + 1) & mask; orderNums[j] != 0L; j = (j + 1) & mask) {
+            final int k = index(orderNums[j], mask);
+            if (((j - k) & mask) >= ((j - i) & mask)) {
+                orderNums[i] = orderNums[j];
+                limitOrders[i] = limitOrders[j];
+                i = j;
+            }
+        }
+        orderNums[i] = 0L;
+        limitOrders[i] = null;
+        orderNumSize--;
+    }
+
+    private static int index(final int key, final int mask) {
+        final int h = key * 0x9E3779B9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    private static int index(final long key, final int mask) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return "QuikOrderTable{size=" + size
+               + ", orderNums=" + orderNumSize
+               + ", retired=" + retiredSize
+               + ", capacity=" + transIds.length
+               + '}';
+    }
+}
@@ -2,7 +2,7 @@ package com.algotrading.connectors.quik.execution;
 
 import com.algotrading.connectors.quik.QuikClient;
 
-import static com.simpleutils.Deduplicator.STRING_DEDUPLICATOR;
+import static com.algotrading.connectors.quik.ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY;
 
 /**
  * Позиция.
@@ -11,6 +11,10 @@ public class QuikPosition {
     public final String id;
     public final QuikClient quikClient;
     public final String security;
+    /**
+     * Идентификатор инструмента в {@link com.algotrading.connectors.quik.ClassSecCodeRegistry}.
+     */
+    public final int securityId;
     public final String classCode;
     public final String secCode;
     public int lotSize;
@@ -27,10 +31,10 @@ public class QuikPosition {
                         final double cash) {
         this.id = id;
         this.quikClient = quikClient;
-        this.security = STRING_DEDUPLICATOR.deduplicate(security);
-        final int j = security.indexOf(':');
-        classCode = STRING_DEDUPLICATOR.deduplicate(security.substring(0, j));
-        secCode = STRING_DEDUPLICATOR.deduplicate(security.substring(j + 1));
+        securityId = CLASS_SEC_CODE_REGISTRY.register(security);
+        this.security = CLASS_SEC_CODE_REGISTRY.security(securityId);
+        classCode = CLASS_SEC_CODE_REGISTRY.classCode(securityId);
+        secCode = CLASS_SEC_CODE_REGISTRY.secCode(securityId);
         this.lotSize = lotSize;
         this.size = size;
         this.value = value;
@@ -0,0 +1,313 @@
+package com.algotrading.connectors.quik.execution;
+
+import com.algotrading.connectors.quik.QuikAccountClientCode;
+import com.algotrading.connectors.quik.QuikClient;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+
+/**
+ * Учёт позиций по сделкам: каждая сделка ({@link QuikTradeReply}) изменяет позицию своей лимитной заявки,
+ * а также суммарные показатели клиента ({@link QuikClient}) и счёта ({@link QuikAccountClientCode}).
+ * <p>
+ * Для позиции ведутся: размер в лотах ({@code size}), стоимость по цене последней сделки
+ * ({@code value = size * lotSize * price}), денежный поток ({@code cash}: покупки и комиссии уменьшают его,
+ * продажи увеличивают) и накопленная комиссия. Для клиента и счёта суммируются стоимость, денежный поток
+ * и комиссия их позиций.
+ * <p>
+ * Сделки применяются одним потоком (потоком обработки колбэков), который также обновляет поля
+ * {@link QuikPosition#size}, {@link QuikPosition#value} и {@link QuikPosition#cash}. Другие потоки читают
+ * согласованный снимок всех позиций и сумм методом {@link #snapshot()} без блокировок:
+ * согласованность обеспечивается счётчиком версий (seqlock), поток сделок не ожидает читателей.
+ */
+public class QuikPositionEngine {
+
+    private static final VarHandle VERSION;
+    private static final VarHandle DOUBLES = MethodHandles.arrayElementVarHandle(double[].class);
+
+    static {
+        try {
+            VERSION = MethodHandles.lookup().findVarHandle(QuikPositionEngine.class, "version", long.class);
+        } catch (final ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final int SIZE = 0;
+    private static final int VALUE = 1;
+    private static final int CASH = 2;
+    private static final int COMMISSION = 3;
+    private static final int FIELDS = 4;
+
+    /**
+     * Состояние позиции.
+     *
+     * @param position   позиция
+     * @param size       размер в лотах: положительный -- длинная позиция, отрицательный -- короткая
+     * @param value      стоимость по цене последней сделки
+     * @param cash       денежный поток
+     * @param commission накопленная комиссия
+     */
+    public record PositionState(QuikPosition position, int size, double value, double cash, double commission) {
+    }
+
+    /**
+     * Суммарные показатели позиций клиента или счёта.
+     *
+     * @param value      стоимость
+     * @param cash       денежный поток
+     * @param commission накопленная комиссия
+     */
+    public record Aggregate(double value, double cash, double commission) {
+    }
+
+    /**
+     * Согласованный снимок позиций и сумм.
+     *
+     * @param version   версия: увеличивается при каждой сделке и добавлении позиции
+     * @param positions состояния позиций в порядке добавления
+     * @param clients   суммы по клиентам
+     * @param accounts  суммы по счетам
+     */
+    public record Snapshot(long version,
+                           List<PositionState> positions,
+                           Map<QuikClient, Aggregate> clients,
+                           Map<QuikAccountClientCode, Aggregate> accounts) {
+    }
+
+    private final Map<QuikPosition, Integer> positionSlots = new IdentityHashMap<>();
+    private final Map<QuikClient, Integer> clientSlots = new IdentityHashMap<>();
+    private final Map<QuikAccountClientCode, Integer> accountSlots = new HashMap<>();
+    private QuikPosition[] positions = new QuikPosition[0];
+    private int[] positionClients = new int[0];
+    private int[] positionAccounts = new int[0];
+    private double[] positionData = new double[0];
+    private QuikClient[] clients = new QuikClient[0];
+    private double[] clientData = new double[0];
+    private QuikAccountClientCode[] accounts = new QuikAccountClientCode[0];
+    private double[] accountData = new double[0];
+    /**
+     * Версия данных: нечётная версия означает, что данные в процессе обновления.
+     */
+    @SuppressWarnings("unused")
+    private volatile long version;
+
+    /**
+     * Добавить позицию с её текущими размером, стоимостью и денежным потоком.
+     * Позиции сделок, не добавленные заранее, добавляются при первой сделке.
+     *
+     * @param quikPosition позиция
+     */
+    public void add(final QuikPosition quikPosition) {
+        if (positionSlots.containsKey(quikPosition)) {
+            return;
+        }
+        final long v = beginWrite();
+        final int slot = positions.length;
+        positions = Arrays.copyOf(positions, slot + 1);
+        positions[slot] = quikPosition;
+        positionData = Arrays.copyOf(positionData, (slot + 1) * FIELDS);
+        positionClients = Arrays.copyOf(positionClients, slot + 1);
+        positionAccounts = Arrays.copyOf(positionAccounts, slot + 1);
+        positionClients[slot] = clientSlot(quikPosition.quikClient);
+        positionAccounts[slot] = accountSlot((quikPosition.quikClient == null)
+                ? null : quikPosition.quikClient.getQuikAccountClientCode(quikPosition.classCode));
+        positionSlots.put(quikPosition, slot);
+        add(positionData, slot, SIZE, quikPosition.size);
+        add(positionData, slot, VALUE, quikPosition.value);
+        add(positionData, slot, CASH, quikPosition.cash);
+        addAggregates(slot, quikPosition.value, quikPosition.cash, 0.0);
+        endWrite(v);
+    }
+
+    /**
+     * Применить сделку к позиции её лимитной заявки. Вызывается одним потоком для каждой сделки один раз.
+     *
+     * @param quikTradeReply сделка
+     * @return {@code true}, если сделка применена; {@code false}, если сделка не связана с лимитной заявкой
+     * или её цена неизвестна
+     */
+    public boolean apply(final QuikTradeReply quikTradeReply) {
+        final QuikLimitOrder quikLimitOrder = quikTradeReply.quikLimitOrder;
+        if (quikLimitOrder == null || Double.isNaN(quikTradeReply.priceValue)) {
+            return false;
+        }
+        final QuikPosition quikPosition = quikLimitOrder.quikPosition;
+        final int slot = slot(quikPosition);
+        final int lotSize = (quikTradeReply.lotSize != 0) ? quikTradeReply.lotSize : quikLimitOrder.lotSize;
+        final double price = quikTradeReply.priceValue;
+        final int size = quikPosition.size + quikTradeReply.volumeTraded;
+        final double value = (double) size * lotSize * price;
+        final double deltaValue = value - quikPosition.value;
+        final double deltaCash = -(double) quikTradeReply.volumeTraded * lotSize * price - quikTradeReply.commission;
+
+        final long v = beginWrite();
+        quikPosition.size = size;
+        quikPosition.value = value;
+        quikPosition.cash += deltaCash;
+        add(positionData, slot, SIZE, quikTradeReply.volumeTraded);
+        add(positionData, slot, VALUE, deltaValue);
+        add(positionData, slot, CASH, deltaCash);
+        add(positionData, slot, COMMISSION, quikTradeReply.commission);
+        addAggregates(slot, deltaValue, deltaCash, quikTradeReply.commission);
+        endWrite(v);
+        return true;
+    }
+
+    /**
+     * Применить поправку комиссии уже применённой сделки: QUIK повторяет колбэк OnTrade при изменении
+     * полей сделки, в том числе комиссии. Размер и стоимость позиции не меняются.
+     *
+     * @param quikPosition позиция лимитной заявки сделки
+     * @param commission   изменение комиссии
+     */
+    public void applyCommission(final QuikPosition quikPosition, final double commission) {
+        final int slot = slot(quikPosition);
+        final long v = beginWrite();
+        quikPosition.cash -= commission;
+        add(positionData, slot, CASH, -commission);
+        add(positionData, slot, COMMISSION, commission);
+        addAggregates(slot, 0.0, -commission, commission);
+        endWrite(v);
+    }
+
+    private int slot(final QuikPosition quikPosition) {
+        final Integer slot = positionSlots.get(quikPosition);
+        if (slot != null) {
+            return slot;
+        }
+        add(quikPosition);
+        return positionSlots.get(quikPosition);
+    }
+
+    /**
+     * Прочитать согласованный снимок всех позиций и сумм. Если данные изменились во время чтения,
+     * чтение повторяется.
+     *
+     * @return снимок
+     */
+    public Snapshot snapshot() {
+        while (true) {
+            final long v = (long) VERSION.getAcquire(this);
+            if ((v & 1L) == 0L) {
+                final QuikPosition[] positions = this.positions;
+                final QuikClient[] clients = this.clients;
+                final QuikAccountClientCode[] accounts = this.accounts;
+                final double[] positionData = copy(this.positionData);
+                final double[] clientData = copy(this.clientData);
+                final double[] accountData = copy(this.accountData);
+                VarHandle.acquireFence();
+                if ((long) VERSION.getOpaque(this) == v
+                    && positionData.length == positions.length * FIELDS
+                    && clientData.length == clients.length * FIELDS
+                    && accountData.length == accounts.length * FIELDS) {
+                    return snapshot(v >>> 1, positions, positionData, clients, clientData, accounts, accountData);
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    private static Snapshot snapshot(final long version,
+                                     final QuikPosition[] positions,
+                                     final double[] positionData,
+                                     final QuikClient[] clients,
+                                     final double[] clientData,
+                                     final QuikAccountClientCode[] accounts,
+                                     final double[] accountData) {
+        final List<PositionState> positionStates = new ArrayList<>(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            positionStates.add(new PositionState(positions[i],
+                    (int) positionData[i * FIELDS + SIZE],
+                    positionData[i * FIELDS + VALUE],
+                    positionData[i * FIELDS + CASH],
+                    positionData[i * FIELDS + COMMISSION]));
+        }
+        final Map<QuikClient, Aggregate> clientAggregates = new IdentityHashMap<>();
+        for (int i = 0; i < clients.length; i++) {
+            clientAggregates.put(clients[i], aggregate(clientData, i));
+        }
+        final Map<QuikAccountClientCode, Aggregate> accountAggregates = new HashMap<>();
+        for (int i = 0; i < accounts.length; i++) {
+            accountAggregates.put(accounts[i], aggregate(accountData, i));
+        }
+        return new Snapshot(version, Collections.unmodifiableList(positionStates),
+                Collections.unmodifiableMap(clientAggregates), Collections.unmodifiableMap(accountAggregates));
+    }
+
+    private static Aggregate aggregate(final double[] data, final int slot) {
+        return new Aggregate(data[slot * FIELDS + VALUE], data[slot * FIELDS + CASH], data[slot * FIELDS + COMMISSION]);
+    }
+
+    private static double[] copy(final double[] array) {
+        final double[] copy = new double[array.length];
+        for (int i = 0; i < array.length; i++) {
+            copy[i] = (double) DOUBLES.getOpaque(array, i);
+        }
+        return copy;
+    }
+
+    private int clientSlot(final QuikClient quikClient) {
+        if (quikClient == null) {
+            return -1;
+        }
+        final Integer slot = clientSlots.get(quikClient);
+        if (slot != null) {
+            return slot;
+        }
+        final int newSlot = clients.length;
+        clients = Arrays.copyOf(clients, newSlot + 1);
+        clients[newSlot] = quikClient;
+        clientData = Arrays.copyOf(clientData, (newSlot + 1) * FIELDS);
+        clientSlots.put(quikClient, newSlot);
+        return newSlot;
+    }
+
+    private int accountSlot(final QuikAccountClientCode quikAccountClientCode) {
+        if (quikAccountClientCode == null) {
+            return -1;
+        }
+        final Integer slot = accountSlots.get(quikAccountClientCode);
+        if (slot != null) {
+            return slot;
+        }
+        final int newSlot = accounts.length;
+        accounts = Arrays.copyOf(accounts, newSlot + 1);
+        accounts[newSlot] = quikAccountClientCode;
+        accountData = Arrays.copyOf(accountData, (newSlot + 1) * FIELDS);
+        accountSlots.put(quikAccountClientCode, newSlot);
+        return newSlot;
+    }
+
+    private void addAggregates(final int positionSlot, final double value, final double cash, final double commission) {
+        final int clientSlot = positionClients[positionSlot];
+        if (clientSlot >= 0) {
+            add(clientData, clientSlot, VALUE, value);
+            add(clientData, clientSlot, CASH, cash);
+            add(clientData, clientSlot, COMMISSION, commission);
+        }
+        final int accountSlot = positionAccounts[positionSlot];
+        if (accountSlot >= 0) {
+            add(accountData, accountSlot, VALUE, value);
+            add(accountData, accountSlot, CASH, cash);
+            add(accountData, accountSlot, COMMISSION, commission);
+        }
+    }
+
+    private static void add(final double[] data, final int slot, final int field, final double delta) {
+        final int index = slot * FIELDS + field;
+        DOUBLES.setOpaque(data, index, (double) DOUBLES.get(data, index) + delta);
+    }
+
+    private long beginWrite() {
+        final long v = (long) VERSION.get(this);
+        VERSION.setOpaque(this, v + 1L);
+        VarHandle.storeStoreFence();
+        return v;
+    }
+
+    private void endWrite(final long v) {
+        VERSION.setRelease(this, v + 2L);
+    }
+}
@@ -2,7 +2,7 @@ package com.algotrading.connectors.quik.execution;
 
 import java.util.Objects;
 
-import static com.simpleutils.Deduplicator.STRING_DEDUPLICATOR;
+import static com.algotrading.connectors.quik.ClassSecCodeRegistry.CLASS_SEC_CODE_REGISTRY;
 
 /**
  * Сделка в терминале QUIK.
@@ -12,6 +12,10 @@ public class QuikTradeReply {
      * Момент получения ответа (System.currentTimeMillis()).
      */
     public final long time;
+    /**
+     * Момент получения ответа по монотонным часам (System.nanoTime()).
+     */
+    public final long nanoTime;
     /**
      * Лимитная заявка, для которой пришёл ответ, или {@code null},
      * если пока связь с лимитной заявкой не установлена.
@@ -21,6 +25,10 @@ public class QuikTradeReply {
      * Инструмент.
      */
     public final String security;
+    /**
+     * Идентификатор инструмента в {@link com.algotrading.connectors.quik.ClassSecCodeRegistry}.
+     */
+    public final int securityId;
     /**
      * Код класса.
      */
@@ -34,9 +42,13 @@ public class QuikTradeReply {
      */
     public final String price;
     /**
-     * Размер лота.
+     * Цена в виде числа для расчёта позиций или {@code NaN}, если цена неизвестна.
+     */
+    public final double priceValue;
+    /**
+     * Размер лота: размер лота лимитной заявки или 0, если пока связь с лимитной заявкой не установлена.
      */
-    public final int lotSize;
+    public int lotSize;
     /**
      * Объём сделки: положительное число -- покупка, отрицательное -- продажа.
      */
@@ -50,9 +62,10 @@ public class QuikTradeReply {
      */
     public final long tradeNum;
     /**
-     * Размер комиссии.
+     * Размер комиссии: изменяется, если до связи с лимитной заявкой получен повторный колбэк OnTrade
+     * с изменённой комиссией.
      */
-    public final double commission;
+    public double commission;
     /**
      * Биржевое время сделки.
      */
@@ -62,11 +75,31 @@ public class QuikTradeReply {
      */
     public final int settleDate;
 
+    /**
+     * Конструктор, разбирающий цену из строки.
+     */
+    public QuikTradeReply(final long time,
+                          final QuikLimitOrder quikLimitOrder,
+                          final String classCode,
+                          final String secCode,
+                          final String price,
+                          final int lotSize,
+                          final int volumeTraded,
+                          final long orderNum,
+                          final long tradeNum,
+                          final double commission,
+                          final long tradeTimeCode,
+                          final int settleDate) {
+        this(time, quikLimitOrder, classCode, secCode, price, (price == null) ? Double.NaN : Double.parseDouble(price),
+                lotSize, volumeTraded, orderNum, tradeNum, commission, tradeTimeCode, settleDate);
+    }
+
     public QuikTradeReply(final long time,
                           final QuikLimitOrder quikLimitOrder,
                           final String classCode,
                           final String secCode,
                           final String price,
+                          final double priceValue,
                           final int lotSize,
                           final int volumeTraded,
                           final long orderNum,
@@ -75,11 +108,14 @@ public class QuikTradeReply {
                           final long tradeTimeCode,
                           final int settleDate) {
         this.time = time;
+        nanoTime = System.nanoTime();
         this.quikLimitOrder = quikLimitOrder;
-        this.classCode = STRING_DEDUPLICATOR.deduplicate(Objects.requireNonNull(classCode));
-        this.secCode = STRING_DEDUPLICATOR.deduplicate(Objects.requireNonNull(secCode));
-        security = STRING_DEDUPLICATOR.deduplicate(classCode + ":" + secCode);
+        securityId = CLASS_SEC_CODE_REGISTRY.register(Objects.requireNonNull(classCode), Objects.requireNonNull(secCode));
+        this.classCode = CLASS_SEC_CODE_REGISTRY.classCode(securityId);
+        this.secCode = CLASS_SEC_CODE_REGISTRY.secCode(securityId);
+        security = CLASS_SEC_CODE_REGISTRY.security(securityId);
         this.price = price;
+        this.priceValue = priceValue;
         this.lotSize = lotSize;
         this.volumeTraded = volumeTraded;
         this.orderNum = orderNum;
@@ -0,0 +1,125 @@
+package com.algotrading.connectors.quik.execution;
+
+/**
+ * Номера последних сделок: позволяет отбросить повторно полученные колбэки OnTrade по той же сделке.
+ * Для каждой сделки хранится число (комиссия), чтобы повторный колбэк с изменённым значением
+ * можно было применить как поправку.
+ * <p>
+ * Хранит не более заданного количества номеров, при переполнении удаляются самые старые. Поиск и добавление
+ * выполняются за O(1) без выделения памяти. Не синхронизирован.
+ */
+public class RecentTradeNums {
+
+    private final long[] ring;
+    private int head;
+    private int size;
+    private final long[] keys;
+    private final double[] values;
+    private final int mask;
+
+    /**
+     * Конструктор.
+     *
+     * @param capacity количество хранимых номеров сделок (степень двойки)
+     */
+    public RecentTradeNums(final int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || capacity > (1 << 29)) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+        ring = new long[capacity];
+        keys = new long[capacity * 2];
+        values = new double[capacity * 2];
+        mask = keys.length - 1;
+    }
+
+    /**
+     * @param tradeNum номер сделки
+     * @return {@code true}, если номер сделки хранится
+     */
+    public boolean contains(final long tradeNum) {
+        return find(tradeNum) >= 0;
+    }
+
+    /**
+     * Добавить номер сделки со значением 0.
+     *
+     * @param tradeNum номер сделки (не 0)
+     * @return {@code true}, если номер сделки добавлен, {@code false} -- если он уже хранится
+     */
+    public boolean add(final long tradeNum) {
+        return Double.isNaN(put(tradeNum, 0.0));
+    }
+
+    /**
+     * Добавить номер сделки со значением или заменить значение уже хранящейся сделки.
+     *
+     * @param tradeNum номер сделки (не 0)
+     * @param value    значение
+     * @return прежнее значение или {@link Double#NaN}, если номер сделки добавлен
+     */
+    public double put(final long tradeNum, final double value) {
+        if (tradeNum == 0L) {
+            throw new IllegalArgumentException("Illegal tradeNum: " + tradeNum);
+        }
+        final int j = find(tradeNum);
+        if (j >= 0) {
+            final double previous = values[j];
+            values[j] = value;
+            return previous;
+        }
+        if (size == ring.length) {
+            remove(ring[head]);
+            head = (head + 1) & (ring.length - 1);
+            size--;
+        }
+        ring[(head + size) & (ring.length - 1)] = tradeNum;
+        size++;
+        int i = index(tradeNum);
+        while (keys[i] != 0L) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = tradeNum;
+        values[i] = value;
+        return Double.NaN;
+    }
+
+    /**
+     * @return количество хранимых номеров сделок
+     */
+    public int size() {
+        return size;
+    }
+
+    private int find(final long tradeNum) {
+        for (int i = index(tradeNum); keys[i] != 0L; i = (i + 1) & mask) {
+            if (keys[i] == tradeNum) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void remove(final long tradeNum) {
+        int i = index(tradeNum);
+        while (keys[i] != tradeNum) {
+            if (keys[i] == 0L) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; keys[j] != 0L; j = (j + 1) & mask) {
+            final int k = index(keys[j]);
+            if (((j - k) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0L;
+    }
+
+    private int index(final long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & mask;
+    }
+}
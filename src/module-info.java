@@ -2,6 +2,7 @@ module com.algotrading.connectors {
     requires com.simpleutils;
     requires com.algotrading.base;
     requires json.simple;
+    requires static jdk.management;
     exports com.algotrading.connectors.common;
     exports com.algotrading.connectors.quik;
     exports com.algotrading.connectors.quik.execution;